@@ -3,17 +3,11 @@ package com.obruta.astrosee;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.json.JSONException;
-import org.json.JSONObject;
-//import org.opencv.core.MatOfPoint3f;
-//import org.opencv.core.Point3;
 import org.ros.message.MessageFactory;
 import org.ros.message.MessageListener;
 import org.ros.message.Time;
@@ -23,30 +17,26 @@ import org.ros.node.ConnectedNode;
 import org.ros.node.Node;
 import org.ros.node.topic.Publisher;
 import org.ros.node.topic.Subscriber;
-import org.tensorflow.lite.support.image.ImageProcessor;
 import org.tensorflow.lite.support.image.TensorImage;
 import org.tensorflow.lite.support.label.Category;
-import org.tensorflow.lite.task.core.BaseOptions;
 import org.tensorflow.lite.task.vision.detector.Detection;
-import org.tensorflow.lite.task.vision.detector.ObjectDetector;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import ff_hw_msgs.PmcCommand;
-import ff_msgs.EkfState;
+import geometry_msgs.Quaternion;
 import geometry_msgs.QuaternionStamped;
 import geometry_msgs.Vector3;
 import geometry_msgs.Vector3Stamped;
 import sensor_msgs.CompressedImage;
-import std_msgs.Float64;
 import std_msgs.Header;
-import std_msgs.Int32;
 
 
 
@@ -57,77 +47,147 @@ public class AstroseeNode extends AbstractNodeMain {
     private final String dataPath;
     private final String dockCamDataPath;
 
-    private String robotName = "undef";
-    private EkfState robotEKF;
-    private PmcCommand pmcCommand;
-
-    // Yazan's custom ones to log
-    private Vector3Stamped adaptiveGNCctlAcceleration;
-    private Vector3Stamped adaptiveGNCctlXmPos;
-    private Vector3Stamped adaptiveGNCctlXmVel;
-    private Vector3Stamped adaptiveGNCctlXmPosError;
-    private Vector3Stamped adaptiveGNCctlXmVelError;
-    private Vector3Stamped adaptiveGNCguidancePos;
-    private Vector3Stamped adaptiveGNCguidanceError;
-    private Vector3Stamped adaptiveControlTorque;
-    private QuaternionStamped quaternionError;
-    private QuaternionStamped quaternionDesired;
-    private Vector3Stamped clientAdaptiveControlTorque;
-    private QuaternionStamped clientQuaternionError;
-    private QuaternionStamped clientQuaternionDesired;
-    private Vector3Stamped adaptiveGNCnavRelativePosition;
-    private Vector3Stamped adaptiveGNCnavClientStates;
-    private Boolean onStartCompleteFlag;
-    private Float64 simulinkTime;
-    private Int32 simulinkPhase;
-
-    private Vector3Stamped clientNavigationPoseEstimate;
-    private Vector3Stamped clientControlAcceleration;
-    private Vector3Stamped clientGuidancePosition;
-    private Vector3Stamped clientGuidanceError;
-
-    private Vector3Stamped cvRelPosition;
-    private QuaternionStamped cvRelQuaternion;
-    private Vector3Stamped cvBBcentre;
-    private Vector3Stamped GNCsCvRelPosition;
-    private QuaternionStamped GNCsCvRelQuaternion;
+    private static final TelemetryField[] FIELDS = TelemetryField.values();
+
+    private volatile String robotName = "undef";
+    private volatile boolean onStartCompleteFlag;
+
+    // Latest values of every subscribed topic, written by the rosjava threads
+    private final TelemetryStateStore telemetryState = new TelemetryStateStore();
+    // Store signal feeding each field, -1 for none
+    private final int[] fieldSignals = new int[FIELDS.length];
+    // Where each field's values start among its signal's, resolved from the topic manifest
+    private final int[] fieldOffsets = new int[FIELDS.length];
+    private final double[] signalValues = new double[TelemetryStateStore.MAX_VALUES];
+    // Recent samples of every topic, summarised over statsWindowMs for the fields in statsMask
+    private final TelemetryHistory telemetryHistory = new TelemetryHistory();
+    private final double[] fieldStats = new double[TelemetryHistory.STAT_COUNT * TelemetryField.VALUE_COUNT];
+    private volatile long statsWindowMs = 0;
+    private volatile long statsMask = 0;
+    private volatile boolean statsInPlace = false;
+    // In delta mode, statistics go out once per window whether or not their field changed
+    private long nextStatsMs = 0;
+    // Message counts, arrival intervals and latencies of every topic, see TopicMonitor. The
+    // summary window feeds the telemetry every topicSummaryPeriodMs, the report window
+    // get_topic_stats
+    private final TopicMonitor topicMonitor = new TopicMonitor();
+    private final TopicMonitor.Window summaryWindow = topicMonitor.new Window();
+    private final TopicMonitor.Window reportWindow = topicMonitor.new Window();
+    private volatile long topicSummaryPeriodMs = 0;
+    private long nextTopicSummaryMs = 0;
+    // Every message taken, to files under dataPath/delayed/telemetry while recording
+    private final TelemetryRecorder telemetryRecorder;
+    // Queries of what was recorded, run one at a time off the command thread
+    private final TelemetryArchive telemetryArchive;
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger queryCount = new AtomicInteger();
 
     private final Context context;
-    private final Paint paint;
 
-    private ObjectDetector objectDetector;
-    private ObjectDetector poseDetector;
-    private ImageProcessor imageProcessor;
-    private boolean saveImages;
-    private boolean processImages;
+    // Reused every telemetry tick
+    private final TelemetryFrame telemetryFrame = new TelemetryFrame();
+    private final TelemetryEncoder telemetryEncoder = new TelemetryEncoder();
+    private final BinaryTelemetryEncoder binaryTelemetryEncoder = new BinaryTelemetryEncoder();
+    private long telemetrySeq = 0;
+    private final TelemetryDeltaTracker deltaTracker = new TelemetryDeltaTracker();
+    private volatile boolean deltaTelemetry = false;
+    private final DownlinkScheduler downlinkScheduler = new DownlinkScheduler();
+
+    // Stage timings of the dock cam pipeline, logged every VISION_LOG_PERIOD_MS and sent on request
+    private static final long VISION_LOG_PERIOD_MS = 30000;
+    private final VisionStats visionStats = new VisionStats();
+    private final VisionStats.Window visionLogWindow = visionStats.new Window();
+    private final VisionStats.Window visionReportWindow = visionStats.new Window();
+    private long nextVisionLogMs = 0;
+    private static final String DOCK_CAM_TOPIC = "/mgt/img_sampler/dock_cam/image_record/compressed";
+    // Latest dock cam image, handed from the rosjava listener to the inference thread
+    private static final long INFERENCE_IDLE_MS = 500;
+    // Size of the frame the detectors are warmed up on until the dock cam's is known
+    private static final int DOCK_CAM_WIDTH = 1280;
+    private static final int DOCK_CAM_HEIGHT = 960;
+    private final FrameMailbox dockCamFrames = new FrameMailbox();
+    private Thread inferenceThread;
+    private volatile boolean inferenceRunning;
+    // Frames are decoded into pooled bitmaps; only used by inference
+    private final BitmapPool bitmapPool = new BitmapPool();
+    private final FramePreprocessor framePreprocessor = new FramePreprocessor(bitmapPool);
+    private final RectF mappedBox = new RectF();
+    // Where to look for the target in the next frame, see set_tracking
+    private final RoiTracker roiTracker = new RoiTracker();
+    private final Rect roiRegion = new Rect();
+    private final RectF trackedBox = new RectF();
+    // Predicts the box on the frames the detector skips, see set_box_tracker
+    private final BoxTracker boxTracker = new BoxTracker();
+    private final RectF predictedBox = new RectF();
+
+    // Detection and pose networks, run side by side on the same frame within a thread budget
+    static final int MODEL_DETECTION = 0;
+    static final int MODEL_POSE = 1;
+    private final DetectorScheduler detectorScheduler;
+    // The usual detection model, the bundled one until load_model replaces it
+    private volatile DetectorScheduler.Model detectionModel = new DetectorScheduler.Model("detection",
+            "efficiendet_dockcam_1_5_detection.tflite", 0.5f, 1, 1);
+    // Quicker detection models to step down to when the detector is over its time, see
+    // set_model_ladder
+    private final ModelLadder modelLadder = new ModelLadder();
+    private final DetectorScheduler.Results detections = new DetectorScheduler.Results();
+    // Thread count and delegate of the detectors, tuned on the first start, see calibrate_inference
+    private static final String CALIBRATION_FRAME = "calibration_frame.jpg";
+    private final InferenceAutotuner inferenceAutotuner;
+    // Most threads to try in the next calibration, 0 for every core, -1 for none pending
+    private volatile int calibrationCap = -1;
+    // Set by a thread budget from the ground, which the saved tuning then doesn't override
+    private volatile boolean explicitThreads = false;
+    // Loads and tests models sent to the HLP, see load_model
+    private final ExecutorService modelLoader = Executors.newSingleThreadExecutor();
+    // Guards detectionModel between the loader and a swap back on the inference thread, which
+    // can come first; the file swapped back from is kept until the loader sees it
+    private final Object detectionModelLock = new Object();
+    private DetectorScheduler.Model replacedModel;
+    private String rejectedFile;
+    private volatile boolean saveImages;
+    private volatile boolean processImages;
+    // Saved images are written off the inference thread, raw or annotated, see set_image_saving
+    private final ImageArchiver imageArchiver;
+    private volatile boolean rawImages = true;
 
     // CV Topics
     Publisher<std_msgs.String> cvResultsPub;
     private String CV_Results;
     private String CV_pose_Results;
 
-    //Publisher<Vector3Stamped> cvRelPositionPub;
-    //Publisher<Vector3Stamped> cvRelRodriugesPub;
+    Publisher<Vector3Stamped> cvRelPositionPub;
+    Publisher<QuaternionStamped> cvRelQuaternionPub;
     Publisher<Vector3Stamped> cvBBcentrePub;
-    //private Vector3Stamped cvRelPosition;
 
     MessageFactory factory;
 
-    /*
-    // Hard-coding the objectPoints
-    Point3[] pointsArray = new Point3[]{
-            new Point3(-0.148048, -0.125818, 0.099267),
-            new Point3(0.133917, -0.112317, -0.156238),
-            new Point3(-0.120165, 0.106573, -0.114485),
-            new Point3(0.133836, 0.142346, 0.141878),
-            new Point3(-0.137991, -0.152850, -0.155571),
-            new Point3(-0.137991, -0.152850, -0.155571),
-            new Point3(-0.148946, 0.137467, 0.138683),
-            new Point3(-0.140832, -0.147009, 0.142015)};
-
-    // Convert the array to a MatOfPoint3f
-    MatOfPoint3f objectPoints = new MatOfPoint3f(pointsArray);
-*/
+    // Hard-coding the objectPoints: the target's keypoints in its own frame, m, by pose class.
+    // Classes 4 and 5 are the same point, which the solver counts once
+    private static final double[][] OBJECT_POINTS = {
+            {-0.148048, -0.125818, 0.099267},
+            {0.133917, -0.112317, -0.156238},
+            {-0.120165, 0.106573, -0.114485},
+            {0.133836, 0.142346, 0.141878},
+            {-0.137991, -0.152850, -0.155571},
+            {-0.137991, -0.152850, -0.155571},
+            {-0.148946, 0.137467, 0.138683},
+            {-0.140832, -0.147009, 0.142015}};
+
+    // Camera properties, px; placeholders until the dock cam is calibrated
+    private static final double FX = 900;
+    private static final double FY = 900;
+    private static final double CX = 525;
+    private static final double CY = 600;
+    // Mean reprojection error past which a pose isn't published, px
+    private static final double MAX_POSE_ERROR_PX = 10;
+
+    // Pose of the target from the keypoints, see EpnpSolver; only used by inference
+    private final EpnpSolver poseSolver = new EpnpSolver(FX, FY, CX, CY, OBJECT_POINTS.length);
+    private final boolean[] keypointSeen = new boolean[OBJECT_POINTS.length];
+    private final double[] relRotation = new double[9];
+    private final double[] relPosition = new double[3];
+    private final double[] relQuaternion = new double[4];
 
     public AstroseeNode(Context applicationContext, String dataPath) {
         // /sdcard/data/com.obruta.astrosee
@@ -137,6 +197,10 @@ public class AstroseeNode extends AbstractNodeMain {
 
         this.dataPath = dataPath;
         this.dockCamDataPath = dataPath + "/delayed/dock_images";
+        this.telemetryRecorder = new TelemetryRecorder(telemetryState, dataPath + "/delayed/telemetry");
+        this.telemetryArchive = new TelemetryArchive(telemetryRecorder);
+        this.imageArchiver = new ImageArchiver(dockCamDataPath, ImageArchiver.DEFAULT_CAPACITY);
+        this.inferenceAutotuner = new InferenceAutotuner(dataPath);
         onStartCompleteFlag = false;
 
         File directory = new File(dockCamDataPath);
@@ -145,18 +209,21 @@ public class AstroseeNode extends AbstractNodeMain {
         }
 
         this.context = applicationContext;
+        this.detectorScheduler = new DetectorScheduler(applicationContext, Arrays.asList(detectionModel,
+                new DetectorScheduler.Model("pose", "dockcam_pose.tflite", 0.5f, 8, 1)),
+                DetectorScheduler.DEFAULT_THREAD_BUDGET);
+        visionStats.setDetectionModel(detectionModel.getFile());
         this.saveImages = false;
         this.processImages = false;
-
-
-        paint = new Paint();
-        paint.setColor(Color.RED);
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setStrokeWidth(3);
-
     }
 
-    public void enableImageSaving(boolean enable) {
+    /**
+     * Saves the processed frames with what was found on them, see ImageArchiver.
+     *
+     * @param raw Whether to save the received JPEG as it is, rather than annotated and re-encoded
+     */
+    public void enableImageSaving(boolean enable, boolean raw) {
+        rawImages = raw;
         saveImages = enable;
     }
 
@@ -164,454 +231,820 @@ public class AstroseeNode extends AbstractNodeMain {
         processImages = enable;
     }
 
-    public JSONObject getData() {
-
-        JSONObject data = new JSONObject();
-        if (!onStartCompleteFlag){
-            return data;
+    /**
+     * Runs the pose network next to the detection one, on the same frames.
+     *
+     * @param threadBudget Interpreter threads shared by the networks, 0 to keep the current ones
+     */
+    public void setModels(boolean pose, int threadBudget) {
+        detectorScheduler.setEnabled(MODEL_POSE, pose);
+        if (threadBudget > 0) {
+            // The budget is split by weight from now on, the tuned detection threads included
+            explicitThreads = true;
+            detectorScheduler.setThreads(MODEL_DETECTION, 0);
+            detectorScheduler.setThreadBudget(threadBudget);
         }
-        try {
-
-            String nozzleSideOne = "";
-            String nozzleSideTwo = "";
-            if (!pmcCommand.getGoals().isEmpty()) {
-
-                String nozzle1 = String.valueOf(pmcCommand.getGoals().get(0).getNozzlePositions().getUnsignedByte(0));
-                String nozzle2 = String.valueOf(pmcCommand.getGoals().get(0).getNozzlePositions().getUnsignedByte(1));
-                String nozzle3 = String.valueOf(pmcCommand.getGoals().get(0).getNozzlePositions().getUnsignedByte(2));
-                String nozzle4 = String.valueOf(pmcCommand.getGoals().get(0).getNozzlePositions().getUnsignedByte(3));
-                String nozzle5 = String.valueOf(pmcCommand.getGoals().get(0).getNozzlePositions().getUnsignedByte(4));
-                String nozzle6 = String.valueOf(pmcCommand.getGoals().get(0).getNozzlePositions().getUnsignedByte(5));
-                String nozzle7 = String.valueOf(pmcCommand.getGoals().get(1).getNozzlePositions().getUnsignedByte(0));
-                String nozzle8 = String.valueOf(pmcCommand.getGoals().get(1).getNozzlePositions().getUnsignedByte(1));
-                String nozzle9 = String.valueOf(pmcCommand.getGoals().get(1).getNozzlePositions().getUnsignedByte(2));
-                String nozzle10 = String.valueOf(pmcCommand.getGoals().get(1).getNozzlePositions().getUnsignedByte(3));
-                String nozzle11 = String.valueOf(pmcCommand.getGoals().get(1).getNozzlePositions().getUnsignedByte(4));
-                String nozzle12 = String.valueOf(pmcCommand.getGoals().get(1).getNozzlePositions().getUnsignedByte(5));
-
-                nozzleSideOne = "[" + nozzle1 + ", " + nozzle2 + ", " + nozzle3 + ", " + nozzle4 + ", " + nozzle5 + ", " + nozzle6 + "]";
-                nozzleSideTwo = "[" + nozzle7 + ", " + nozzle8 + ", " + nozzle9 + ", " + nozzle10 + ", " + nozzle11 + ", " + nozzle12 + "]";
-            }
-
-            data.put("robot_name", robotName)
-                .put("Time: ", String.format("%.2f", simulinkTime.getData()))
-                .put("Phase: ", String.format("%d", simulinkPhase.getData()))
-                //.put("Flight Mode: ", String.valueOf(flightMode.getSpeed()))
-                .put("EKF Position: ", "[" + String.format("%.4f", robotEKF.getPose().getPosition().getX()) + ", " + String.format("%.4f", robotEKF.getPose().getPosition().getY()) + ", " + String.format("%.4f", robotEKF.getPose().getPosition().getZ()) + "]") // Kirk look up how to concatenate in Java and make this as clean as possible
-                .put("EKF Attitude: ", "[" + String.format("%.4f", robotEKF.getPose().getOrientation().getX()) + ", " + String.format("%.4f", robotEKF.getPose().getOrientation().getY()) + ", " + String.format("%.4f", robotEKF.getPose().getOrientation().getZ()) + ", " + String.format("%.4f", robotEKF.getPose().getOrientation().getW()) + "]") // Kirk look up how to concatenate in Java and make this as clean as possible
-                .put("Nozzle Positions Side 1", nozzleSideOne)
-                .put("Nozzle Positions Side 2", nozzleSideTwo)
-                .put("--------------------", "------------------------------------")
-                //.put("Client KF Position: ", "[" + String.format("%.4f", clientNavigationPoseEstimate.getVector().getX()) + ", " + String.format("%.4f", clientNavigationPoseEstimate.getVector().getY()) + ", " + String.format("%.4f", clientNavigationPoseEstimate.getVector().getZ()) + "]")
-                .put("Client Position Error: ", "[" + String.format("%.4f", clientGuidanceError.getVector().getX()) + ", " + String.format("%.4f", clientGuidanceError.getVector().getY()) + ", " + String.format("%.4f", clientGuidanceError.getVector().getZ()) + "]")
-                .put("Client Quaternion Error: ", "[" + String.format("%.4f", clientQuaternionError.getQuaternion().getX()) + ", " + String.format("%.4f", clientQuaternionError.getQuaternion().getY()) + ", " + String.format("%.4f", clientQuaternionError.getQuaternion().getZ()) + ", " + String.format("%.4f", clientQuaternionError.getQuaternion().getW()) + "]")
-                .put("Client Quaternion Desired", "[" + String.format("%.4f", clientQuaternionDesired.getQuaternion().getX()) + ", " + String.format("%.4f", clientQuaternionDesired.getQuaternion().getY()) + ", " + String.format("%.4f", clientQuaternionDesired.getQuaternion().getZ()) + ", " + String.format("%.4f", clientQuaternionDesired.getQuaternion().getW()) + "]")
-                .put("Client Desired Position: ", "[" + String.format("%.4f", clientGuidancePosition.getVector().getX()) + ", " + String.format("%.4f", clientGuidancePosition.getVector().getY()) + ", " + String.format("%.4f", clientGuidancePosition.getVector().getZ()) + "]")
-                .put("Client Desired Acceleration: ", "[" + String.format("%.4f", clientControlAcceleration.getVector().getX()) + ", " + String.format("%.4f", clientControlAcceleration.getVector().getY()) + ", " + String.format("%.4f", clientControlAcceleration.getVector().getZ()) + "]")
-                .put("Client Control Torque", "[" + String.format("%.4f", clientAdaptiveControlTorque.getVector().getX()) + ", " + String.format("%.4f", clientAdaptiveControlTorque.getVector().getY()) + ", " + String.format("%.4f", clientAdaptiveControlTorque.getVector().getZ()) + "]")
-                .put("-------------------", "-----------------------------------")
-                .put("Servicer Xm Position Error", "[" + String.format("%.4f", adaptiveGNCctlXmPosError.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCctlXmPosError.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCctlXmPosError.getVector().getZ()) + "]")
-                //.put("Servicer Guided Position Error", "[" + String.format("%.4f", adaptiveGNCguidanceError.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCguidanceError.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCguidanceError.getVector().getZ()) + "]")
-                .put("Servicer Xm Position", "[" + String.format("%.4f", adaptiveGNCctlXmPos.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCctlXmPos.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCctlXmPos.getVector().getZ()) + "]")
-                //.put("Servicer Guided Position", "[" + String.format("%.4f", adaptiveGNCguidancePos.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCguidancePos.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCguidancePos.getVector().getZ()) + "]")
-                //.put("Servicer Xm Velocity", "[" + String.format("%.4f", adaptiveGNCctlXmVel.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCctlXmVel.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCctlXmVel.getVector().getZ()) + "]")
-                .put("Servicer Xm Velocity Error", "[" + String.format("%.4f", adaptiveGNCctlXmVelError.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCctlXmVelError.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCctlXmVelError.getVector().getZ()) + "]")
-                .put("Servicer Control Acceleration", "[" + String.format("%.4f", adaptiveGNCctlAcceleration.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCctlAcceleration.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCctlAcceleration.getVector().getZ()) + "]")
-                //.put("Servicer Quaternion Desired", "[" + String.format("%.4f", quaternionDesired.getQuaternion().getX()) + ", " + String.format("%.4f", quaternionDesired.getQuaternion().getY()) + ", " + String.format("%.4f", quaternionDesired.getQuaternion().getZ()) + ", " + String.format("%.4f", quaternionDesired.getQuaternion().getW()) + "]")
-                .put("Servicer Quaternion Error", "[" + String.format("%.4f", quaternionError.getQuaternion().getX()) + ", " + String.format("%.4f", quaternionError.getQuaternion().getY()) + ", " + String.format("%.4f", quaternionError.getQuaternion().getZ()) + ", " + String.format("%.4f", quaternionError.getQuaternion().getW()) + "]")
-                //.put("Servicer Control Torque", "[" + String.format("%.4f", adaptiveControlTorque.getVector().getX()) + ", " + String.format("%.4f", adaptiveControlTorque.getVector().getY()) + ", " + String.format("%.4f", adaptiveControlTorque.getVector().getZ()) + "]")
-                //.put("Servicer Pos Wrt Client", "[" + String.format("%.4f", adaptiveGNCnavRelativePosition.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCnavRelativePosition.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCnavRelativePosition.getVector().getZ()) + "]")
-                //.put("Servicer's Recv'd Abs Client Position", "[" + String.format("%.4f", adaptiveGNCnavClientStates.getVector().getX()) + ", " + String.format("%.4f", adaptiveGNCnavClientStates.getVector().getY()) + ", " + String.format("%.4f", adaptiveGNCnavClientStates.getVector().getZ()) + "]")
-                .put("CV Rel Pos: ", "[" + String.format("%.4f", cvRelPosition.getVector().getX()) + ", " + String.format("%.4f", cvRelPosition.getVector().getY()) + ", " + String.format("%.4f", cvRelPosition.getVector().getZ()) + "]")
-                .put("GNC Cam Rel Pos: ", "[" + String.format("%.4f", GNCsCvRelPosition.getVector().getX()) + ", " + String.format("%.4f", GNCsCvRelPosition.getVector().getY()) + ", " + String.format("%.4f", GNCsCvRelPosition.getVector().getZ()) + "]")
-                .put("CV Rel Quat: ", "[" + String.format("%.4f", cvRelQuaternion.getQuaternion().getX()) + ", " + String.format("%.4f", cvRelQuaternion.getQuaternion().getY()) + ", " + String.format("%.4f", cvRelQuaternion.getQuaternion().getZ()) + ", " + String.format("%.4f", cvRelQuaternion.getQuaternion().getW()) + "]")
-                .put("GNC Cam Rel Quat: ", "[" + String.format("%.4f", GNCsCvRelQuaternion.getQuaternion().getX()) + ", " + String.format("%.4f", GNCsCvRelQuaternion.getQuaternion().getY()) + ", " + String.format("%.4f", GNCsCvRelQuaternion.getQuaternion().getZ()) + ", " + String.format("%.4f", GNCsCvRelQuaternion.getQuaternion().getW()) + "]")
-                .put("CV BB Centre: ", "[" + String.format("%.4f", cvBBcentre.getVector().getX()) + ", " + String.format("%.4f", cvBBcentre.getVector().getY()) + ", " + String.format("%.4f", cvBBcentre.getVector().getZ()) + "]")
-                //.put("Object Detection Results: ", CV_Results)
-                ;
-
-
-            // More stuff
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return data;
+        Log.i(TAG, (pose ? "Detection and pose" : "Detection") + " on "
+                + detectorScheduler.getThreadBudget() + " threads");
     }
 
+    /**
+     * Steps between detection models by the time the detector takes, see ModelLadder.
+     *
+     * @param models   Model files, best first; none to keep to the usual model
+     * @param targetMs Time the detector should take on a frame
+     */
+    public void setModelLadder(String[] models, long targetMs) {
+        modelLadder.configure(models, targetMs);
+        Log.i(TAG, models.length > 0 ? "Model ladder of " + models.length + " models, to "
+                + targetMs + " ms" : "Model ladder off");
+    }
 
-
-    @Override
-    public GraphName getDefaultNodeName() {
-        return GraphName.of("astrosee_hlp_node_w_image_processing");
+    /**
+     * Replaces a network with a model file sent to the data path, without stopping the frames: it
+     * is loaded and tested on a background thread, then swapped in before the next frame, see
+     * DetectorScheduler.stage. If anything fails, the running model is kept.
+     *
+     * @param model MODEL_DETECTION or MODEL_POSE
+     * @param file  Relative to the data path
+     */
+    public void loadModel(final int model, String file) {
+        final File path = new File(dataPath, file);
+        modelLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!path.isFile()) {
+                    Log.e(TAG, "No model at " + path);
+                    return;
+                }
+                Bitmap blank = Bitmap.createBitmap(DOCK_CAM_WIDTH, DOCK_CAM_HEIGHT, Bitmap.Config.ARGB_8888);
+                boolean loaded;
+                try {
+                    TensorImage image = new TensorImage();
+                    image.load(blank);
+                    loaded = detectorScheduler.stage(model, path.getPath(), image);
+                } finally {
+                    blank.recycle();
+                }
+                if (!loaded) {
+                    Log.e(TAG, "Keeping " + detectorScheduler.getModel(model).getFile() + ", " + path + " didn't load");
+                    return;
+                }
+                if (model == MODEL_DETECTION) {
+                    synchronized (detectionModelLock) {
+                        if (path.getPath().equals(rejectedFile)) {
+                            // Already failed on a frame and swapped back from
+                            rejectedFile = null;
+                            return;
+                        }
+                        replacedModel = detectionModel;
+                        detectionModel = detectionModel.withFile(path.getPath());
+                        visionStats.setDetectionModel(path.getPath());
+                    }
+                }
+                Log.i(TAG, "Loaded " + path + ", running it from the next frame");
+            }
+        });
     }
 
-    @Override
-    public void onStart(ConnectedNode connectedNode) {
-        factory = connectedNode.getTopicMessageFactory();
-        robotEKF = factory.newFromType(EkfState._TYPE);
-        pmcCommand = factory.newFromType(PmcCommand._TYPE);
-        adaptiveGNCctlAcceleration = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        adaptiveGNCctlXmPos = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        adaptiveGNCctlXmVel = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        adaptiveGNCctlXmPosError = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        adaptiveGNCctlXmVelError = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        adaptiveGNCguidancePos = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        adaptiveGNCguidanceError = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        adaptiveControlTorque = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        quaternionError = factory.newFromType(QuaternionStamped._TYPE); // Add one of these for each topic to send
-        quaternionDesired = factory.newFromType(QuaternionStamped._TYPE); // Add one of these for each topic to send
-        clientAdaptiveControlTorque = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        clientQuaternionError = factory.newFromType(QuaternionStamped._TYPE); // Add one of these for each topic to send
-        clientQuaternionDesired = factory.newFromType(QuaternionStamped._TYPE); // Add one of these for each topic to send
-        adaptiveGNCnavRelativePosition = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        adaptiveGNCnavClientStates = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        simulinkTime = factory.newFromType(Float64._TYPE);
-        simulinkPhase = factory.newFromType(Int32._TYPE);
-
-
-        clientNavigationPoseEstimate = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        clientControlAcceleration = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        clientGuidancePosition = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        clientGuidanceError = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-
-        // CV Topics
-        cvRelPosition = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        cvRelQuaternion = factory.newFromType(QuaternionStamped._TYPE); // Add one of these for each topic to send
-        cvBBcentre = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        GNCsCvRelPosition = factory.newFromType(Vector3Stamped._TYPE); // Add one of these for each topic to send
-        GNCsCvRelQuaternion = factory.newFromType(QuaternionStamped._TYPE); // Add one of these for each topic to send
+    /**
+     * Times the detection network again on the thread counts and delegates, before the next
+     * frame, and keeps the quickest, see InferenceAutotuner.
+     *
+     * @param cpuCap Most threads to try, 0 for every core
+     */
+    public void calibrateInference(int cpuCap) {
+        // Asked for after the budget, so its choice wins
+        explicitThreads = false;
+        calibrationCap = Math.max(0, cpuCap);
+        Log.i(TAG, "Calibrating inference" + (cpuCap > 0 ? " on up to " + cpuCap + " threads" : ""));
+    }
 
-        cvResultsPub = connectedNode.newPublisher("/cv_results", std_msgs.String._TYPE);
-        //cvRelPositionPub = connectedNode.newPublisher("/cv/rel_position", Vector3Stamped._TYPE);
-        //cvRelRodriugesPub = connectedNode.newPublisher("/cv/rel_mrp", Vector3Stamped._TYPE);
-        cvBBcentrePub = connectedNode.newPublisher("/cv/bb_centre", Vector3Stamped._TYPE);
+    /**
+     * Records every message received on the manifest topics, see TelemetryRecorder.
+     *
+     * @param segmentSize Size of each recording file, in bytes
+     */
+    public void enableRecording(boolean enable, int segmentSize) {
+        if (enable) {
+            telemetryRecorder.start(segmentSize);
+        } else {
+            telemetryRecorder.stop();
+        }
+    }
 
-        Subscriber<std_msgs.String> robotNameSub = connectedNode.newSubscriber("/robot_name",
-                std_msgs.String._TYPE);
-        robotNameSub.addMessageListener(new MessageListener<std_msgs.String>() {
+    /**
+     * Sends back what was recorded of some topics over a time range, see TelemetryArchive.
+     *
+     * @param topics     Topic names, null for all of them
+     * @param fromMs     Start of the range, ms since the epoch
+     * @param toMs       End of the range, ms since the epoch
+     * @param decimation Send one sample out of this many
+     * @return Id of the query, repeated in each of its chunks
+     */
+    public int queryTelemetry(final String[] topics, final long fromMs, final long toMs, final int decimation,
+                              final TelemetryArchive.Sink sink) {
+        final int id = queryCount.incrementAndGet();
+        queryExecutor.execute(new Runnable() {
             @Override
-            public void onNewMessage(std_msgs.String string) {
-                robotName = string.getData();
+            public void run() {
+                telemetryArchive.query(id, topics, fromMs, toMs, decimation, sink);
             }
         });
+        return id;
+    }
 
-        Subscriber<EkfState> ekfStateSub = connectedNode.newSubscriber("/gnc/ekf", EkfState._TYPE);
-        ekfStateSub.addMessageListener((new MessageListener<EkfState>() {
-            @Override
-            public void onNewMessage(EkfState ekfState) {
-                robotEKF = ekfState;
-            }
-        }));
+    /**
+     * Timings of the vision pipeline since the previous call, see VisionStats.Window#toJson.
+     */
+    public String getVisionStats() {
+        synchronized (visionReportWindow) {
+            visionReportWindow.update();
+            return visionReportWindow.toJson();
+        }
+    }
 
-        Subscriber<PmcCommand> hardwarePMCcommand = connectedNode.newSubscriber("/hw/pmc/command", PmcCommand._TYPE);
-        hardwarePMCcommand.addMessageListener((new MessageListener<PmcCommand>() {
-            @Override
-            public void onNewMessage(PmcCommand pmcCommandIncoming) {
-                pmcCommand = pmcCommandIncoming;
+    /**
+     * Snapshot of the latest telemetry as JSON for the Ground Data System.
+     *
+     * @return The JSON text, backed by a reused buffer that is only valid until the next call.
+     */
+    public CharSequence getData() {
+        if (!onStartCompleteFlag){
+            return telemetryEncoder.encodeEmpty();
+        }
+        updateTelemetryFrame();
+        long fieldMask = selectTelemetryFields(TelemetryFormat.JSON);
+        return telemetryEncoder.encode(telemetryFrame, fieldMask, DownlinkScheduler.isPartial(fieldMask));
+    }
+
+    /**
+     * Snapshot of the latest telemetry as a binary frame, see BinaryTelemetryEncoder.
+     * Before the node has started the frame only carries its header.
+     */
+    public byte[] getBinaryData() {
+        long fieldMask = TelemetryField.ALL_FIELDS;
+        int flags = 0;
+        if (onStartCompleteFlag) {
+            updateTelemetryFrame();
+            fieldMask = selectTelemetryFields(TelemetryFormat.BINARY);
+            // Fields left out by the delta tracker or the budget keep their last values
+            if (DownlinkScheduler.isPartial(fieldMask)) {
+                flags = BinaryTelemetryEncoder.FLAG_DELTA;
             }
-        }));
+        } else {
+            telemetryFrame.clearAll();
+            telemetryFrame.setHeader(telemetrySeq++, System.currentTimeMillis());
+        }
+        int length = binaryTelemetryEncoder.encode(telemetryFrame, fieldMask, flags);
+        return Arrays.copyOf(binaryTelemetryEncoder.getBuffer(), length);
+    }
 
+    /**
+     * In delta mode, only fields that changed by more than their epsilon are sent, with a full
+     * keyframe every keyframeInterval ticks.
+     */
+    public void enableDeltaTelemetry(boolean enable, int keyframeInterval) {
+        deltaTracker.setKeyframeInterval(keyframeInterval);
+        deltaTracker.reset();
+        deltaTelemetry = enable;
+    }
 
-        // CUSTOM TOPICS RECEIVED FOR GDS
-        // Servicer Position Control Topics
-        Subscriber<Vector3Stamped> adaptiveGNCctlAccelerationSub = connectedNode.newSubscriber("/adaptive_gnc/ctl/acceleration", Vector3Stamped._TYPE);
-        adaptiveGNCctlAccelerationSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCctlAcceleration = vector3Stamped;
-            }
-        }));
+    public void setDeltaEpsilon(TelemetryField field, double epsilon) {
+        deltaTracker.setEpsilon(field, epsilon);
+    }
 
-        // Maybe exclude this one
-        Subscriber<Vector3Stamped> adaptiveGNCctlXmPosSub = connectedNode.newSubscriber("/adaptive_gnc/ctl/xm/pos", Vector3Stamped._TYPE);
-        adaptiveGNCctlXmPosSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCctlXmPos = vector3Stamped;
-            }
-        }));
+    /**
+     * Limits the telemetry downlink to a bytes-per-second budget, see DownlinkScheduler.
+     *
+     * @param bytesPerSecond Budget, 0 for no limit
+     * @param idlePhase      Simulink phase reported when no segment is running
+     */
+    public void setDownlinkBudget(int bytesPerSecond, long activePeriodMs, long idlePeriodMs, int idlePhase) {
+        downlinkScheduler.setIdlePhase(idlePhase);
+        downlinkScheduler.setBudget(bytesPerSecond, activePeriodMs, idlePeriodMs);
+    }
 
-        // Maybe exclude this one
-        Subscriber<Vector3Stamped> adaptiveGNCctlXmVelSub = connectedNode.newSubscriber("/adaptive_gnc/ctl/xm/vel", Vector3Stamped._TYPE);
-        adaptiveGNCctlXmVelSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCctlXmVel = vector3Stamped;
-            }
-        }));
+    public void setFieldPriority(TelemetryField field, int priority) {
+        downlinkScheduler.setPriority(field, priority);
+    }
 
-        Subscriber<Vector3Stamped> adaptiveGNCctlXmPosErrorSub = connectedNode.newSubscriber("/adaptive_gnc/ctl/xm/pos_error", Vector3Stamped._TYPE);
-        adaptiveGNCctlXmPosErrorSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCctlXmPosError = vector3Stamped;
-            }
-        }));
+    /**
+     * Sends the min, max, mean and RMS of the selected fields over the last windowMs with the
+     * telemetry, computed from every message received rather than the latest one.
+     *
+     * @param windowMs  Window of the statistics, 0 to stop sending them; at most
+     *                  TelemetryHistory.MAX_WINDOW_MS, which the history holds
+     * @param inPlace   Send the statistics instead of the latest values, not next to them
+     * @param fieldMask Fields to send statistics for, see {@link TelemetryField#mask()}
+     */
+    public void setTelemetryStats(long windowMs, boolean inPlace, long fieldMask) {
+        statsWindowMs = Math.min(Math.max(0, windowMs), TelemetryHistory.MAX_WINDOW_MS);
+        statsMask = windowMs > 0 ? fieldMask : 0;
+        statsInPlace = inPlace;
+        downlinkScheduler.setStats(statsMask, inPlace);
+    }
 
-        Subscriber<Vector3Stamped> adaptiveGNCctlXmVelErrorSub = connectedNode.newSubscriber("/adaptive_gnc/ctl/xm/vel_error", Vector3Stamped._TYPE);
-        adaptiveGNCctlXmVelErrorSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCctlXmVelError = vector3Stamped;
-            }
-        }));
+    /**
+     * How dock cam frames are prepared for the detector, from the next frame on. By default they
+     * are decoded at full resolution and the detector scales them to its input.
+     */
+    public void setPreprocessing(FramePreprocessor.Settings settings) {
+        framePreprocessor.setSettings(settings);
+        Log.i(TAG, "Preprocessing frames at " + settings);
+    }
 
-        Subscriber<Vector3Stamped> adaptiveGNCguidancePosSub = connectedNode.newSubscriber("/adaptive_gnc/guidance/pos", Vector3Stamped._TYPE);
-        adaptiveGNCguidancePosSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCguidancePos = vector3Stamped;
-            }
-        }));
+    /**
+     * Publishes a predicted box centre on the frames between detections, which only run on one
+     * frame in detectEvery, or sooner when the prediction is in doubt.
+     *
+     * @param alpha        Gain of the tracker on the position and size, 0 to 1
+     * @param beta         Gain on their rates of change, 0 to 1
+     * @param maxPredictMs Longest the box is predicted without a detection
+     */
+    public void setBoxTracker(boolean enable, int detectEvery, float alpha, float beta, long maxPredictMs) {
+        boxTracker.configure(enable, detectEvery, alpha, beta, maxPredictMs);
+        Log.i(TAG, enable ? "Detecting on one frame in " + detectEvery + ", predicting the others"
+                : "Detecting on every frame");
+    }
 
-        Subscriber<Vector3Stamped> adaptiveGNCguidanceErrorSub = connectedNode.newSubscriber("/adaptive_gnc/guidance/error", Vector3Stamped._TYPE);
-        adaptiveGNCguidanceErrorSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCguidanceError = vector3Stamped;
-            }
-        }));
-        // Done Servicer Position Control Topics
+    /**
+     * Runs the detector on a crop around the target's last box rather than on the whole frame,
+     * once it has been found.
+     *
+     * @param margin        Added on each side of the box, as a fraction of its larger side
+     * @param redetectEvery Frames between searches of the whole frame, 0 for only when the crop
+     *                      loses the target
+     */
+    public void setRoiTracking(boolean enable, float margin, int redetectEvery) {
+        roiTracker.configure(enable, margin, redetectEvery);
+        Log.i(TAG, enable ? "Tracking with margin " + margin + ", whole frame every " + redetectEvery
+                : "Tracking off");
+    }
 
-        // Servicer Attitude Control Topics
-        Subscriber<Vector3Stamped> adaptiveControlTorqueSub = connectedNode.newSubscriber("/attitude_control/torque", Vector3Stamped._TYPE);
-        adaptiveControlTorqueSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveControlTorque = vector3Stamped;
+    /**
+     * Adds the rate, jitter and latency of every topic to the telemetry every periodMs, computed
+     * over the time since the previous summary.
+     *
+     * @param periodMs Period of the summaries, 0 to stop sending them
+     */
+    public void setTopicSummaryPeriod(long periodMs) {
+        topicSummaryPeriodMs = Math.max(0, periodMs);
+    }
+
+    /**
+     * Sends how every topic arrived since the previous report, as JSON chunks of at most
+     * TelemetryArchive.MAX_CHUNK_SIZE characters:
+     * {"Topic Stats": part, "Window ms": ms, "Topics": [[signal id, topic, messages, rate (Hz),
+     * interval p50, p90, p99, max, latency p50, p90, p99, max (ms)], ...]}.
+     * Quantiles are null when there were too few messages, latencies for topics without a stamp.
+     */
+    public void reportTopicStats(TelemetryArchive.Sink sink) {
+        synchronized (reportWindow) {
+            reportWindow.update();
+            StringBuilder chunk = new StringBuilder(TelemetryArchive.MAX_CHUNK_SIZE);
+            StringBuilder row = new StringBuilder(256);
+            int part = 0;
+            for (int signal = 0; signal < telemetryState.getSignalCount(); signal++) {
+                if (!reportWindow.hasTopic(signal)) {
+                    continue;
+                }
+                row.setLength(0);
+                row.append('[').append(signal).append(", ");
+                TelemetryEncoder.appendQuoted(row, telemetryState.getName(signal));
+                row.append(", ").append(reportWindow.getMessages(signal));
+                appendStat(row, reportWindow.getRate(signal));
+                for (int quantile = TopicMonitor.Window.P50; quantile <= TopicMonitor.Window.MAX; quantile++) {
+                    appendStat(row, reportWindow.getInterval(signal, quantile));
+                }
+                for (int quantile = TopicMonitor.Window.P50; quantile <= TopicMonitor.Window.MAX; quantile++) {
+                    appendStat(row, reportWindow.getLatency(signal, quantile));
+                }
+                row.append(']');
+                if (chunk.length() > 0 && chunk.length() + row.length() + 4 > TelemetryArchive.MAX_CHUNK_SIZE) {
+                    sink.send(chunk.append("]}").toString());
+                    chunk.setLength(0);
+                    part++;
+                }
+                if (chunk.length() == 0) {
+                    chunk.append("{\"Topic Stats\": ").append(part)
+                            .append(", \"Window ms\": ").append(reportWindow.getDurationMs())
+                            .append(", \"Topics\": [");
+                } else {
+                    chunk.append(", ");
+                }
+                chunk.append(row);
             }
-        }));
+            if (chunk.length() > 0) {
+                sink.send(chunk.append("]}").toString());
+            }
+        }
+    }
 
-        Subscriber<QuaternionStamped> quaternionErrorSub = connectedNode.newSubscriber("/attitude_control/q_error", QuaternionStamped._TYPE);
-        quaternionErrorSub.addMessageListener((new MessageListener<QuaternionStamped>() {
-            @Override
-            public void onNewMessage(QuaternionStamped quaternionStamped) {
-                quaternionError = quaternionStamped;
+    private static void appendStat(StringBuilder sb, double value) {
+        sb.append(", ");
+        if (Double.isNaN(value)) {
+            sb.append("null");
+        } else {
+            TelemetryEncoder.appendFixed(sb, value, 3);
+        }
+    }
+
+    /**
+     * Call after each telemetry tick has been sent.
+     *
+     * @param bytes Size of what was sent
+     * @return Delay before the next tick, in ms
+     */
+    public long nextTelemetryDelay(int bytes) {
+        return downlinkScheduler.onSent(bytes, SystemClock.elapsedRealtime());
+    }
+
+    private long selectTelemetryFields(TelemetryFormat format) {
+        long fieldMask = downlinkScheduler.selectFields(telemetryFrame, format,
+                SystemClock.elapsedRealtime());
+        if (!deltaTelemetry) {
+            return fieldMask;
+        }
+        long mask = deltaTracker.update(telemetryFrame, fieldMask);
+        long withStats = fieldMask & statsMask;
+        long now = SystemClock.elapsedRealtime();
+        if (withStats != 0 && now >= nextStatsMs) {
+            nextStatsMs = now + statsWindowMs;
+            mask |= withStats;
+        }
+        return mask;
+    }
+
+    /**
+     * Fills the frame from the state store. Each topic is read once, so fields sharing a topic
+     * (the EKF position and attitude, both nozzle sides) always come from the same message.
+     * Topics that haven't published yet read as zeros, like the empty messages they replace.
+     */
+    private void updateTelemetryFrame() {
+        telemetryFrame.setHeader(telemetrySeq++, System.currentTimeMillis());
+        telemetryFrame.setRobotName(robotName);
+        long withStats = statsMask;
+        long statsFromMs = SystemClock.elapsedRealtime() - statsWindowMs;
+        telemetryFrame.setStatsInPlace(statsInPlace);
+        for (TelemetryField field : FIELDS) {
+            telemetryFrame.clearStats(field);
+        }
+        for (int signal = 0; signal < telemetryState.getSignalCount(); signal++) {
+            boolean read = false;
+            for (TelemetryField field : FIELDS) {
+                if (fieldSignals[field.ordinal()] != signal) {
+                    continue;
+                }
+                if (!read) {
+                    telemetryState.read(signal, signalValues, 0);
+                    read = true;
+                }
+                int offset = fieldOffsets[field.ordinal()];
+                if ((withStats & field.mask()) != 0) {
+                    setStats(field, signal, statsFromMs);
+                }
+                // Integer fields can't carry a NaN, it means the topic has no value for them
+                if (field.getDecimals() == 0 && Double.isNaN(signalValues[offset])) {
+                    telemetryFrame.clear(field);
+                    continue;
+                }
+                for (int i = 0; i < field.getWidth(); i++) {
+                    telemetryFrame.set(field, i, signalValues[offset + i]);
+                }
             }
-        }));
+        }
 
-        Subscriber<QuaternionStamped> quaternionDesiredSub = connectedNode.newSubscriber("/attitude_control/qdesired", QuaternionStamped._TYPE);
-        quaternionDesiredSub.addMessageListener((new MessageListener<QuaternionStamped>() {
-            @Override
-            public void onNewMessage(QuaternionStamped quaternionStamped) {
-                quaternionDesired = quaternionStamped;
+        telemetryFrame.clearTopicSummaries();
+        long summaryPeriodMs = topicSummaryPeriodMs;
+        long now = SystemClock.elapsedRealtime();
+        if (summaryPeriodMs > 0 && now >= nextTopicSummaryMs) {
+            nextTopicSummaryMs = now + summaryPeriodMs;
+            setTopicSummaries();
+        }
+    }
+
+    private void setTopicSummaries() {
+        summaryWindow.update();
+        for (int signal = 0; signal < telemetryState.getSignalCount(); signal++) {
+            if (!summaryWindow.hasTopic(signal)) {
+                continue;
             }
-        }));
-        // /adaptive_gnc/nav/relative_position (measured relative position)
-        Subscriber<Vector3Stamped> adaptiveGNCnavRelativePositionSub = connectedNode.newSubscriber("/adaptive_gnc/nav/relative_position", Vector3Stamped._TYPE);
-        adaptiveGNCnavRelativePositionSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCnavRelativePosition = vector3Stamped;
+            for (int summary = 0; summary < TopicMonitor.SUMMARY_COUNT; summary++) {
+                telemetryFrame.setTopicSummary(signal, telemetryState.getName(signal), summary,
+                        summaryWindow.get(signal, summary));
             }
-        }));
+        }
+    }
 
-        // /adaptive_gnc/nav/target_states (target absolute states as seen by the servicer)
-        Subscriber<Vector3Stamped> adaptiveGNCnavClientStatesSub = connectedNode.newSubscriber("/adaptive_gnc/nav/target_states", Vector3Stamped._TYPE);
-        adaptiveGNCnavClientStatesSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                adaptiveGNCnavClientStates = vector3Stamped;
+    private void setStats(TelemetryField field, int signal, long fromMs) {
+        int width = field.getWidth();
+        if (telemetryHistory.summarize(signal, fromMs, fieldOffsets[field.ordinal()], width, fieldStats) == 0) {
+            return;
+        }
+        for (int stat = 0; stat < TelemetryHistory.STAT_COUNT; stat++) {
+            for (int i = 0; i < width; i++) {
+                telemetryFrame.setStat(field, stat, i, fieldStats[stat * width + i]);
             }
-        }));
-        // Done Servicer Attitude Control Topics
+        }
+    }
 
+    /**
+     * Registers a topic the node subscribes to itself, outside the manifest, so its arrivals show
+     * up in the topic statistics; it has no values in the store.
+     *
+     * @return Its signal, -1 if the store is full
+     */
+    private int monitorTopic(String topic) {
+        try {
+            int signal = telemetryState.register(topic, 0);
+            topicMonitor.register(signal);
+            return signal;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Not monitoring " + topic + ": " + e.getMessage());
+            return -1;
+        }
+    }
 
-        // Client Attitude Control Topics
-        Subscriber<Vector3Stamped> clientAdaptiveControlTorqueSub = connectedNode.newSubscriber("client/attitude_control/torque", Vector3Stamped._TYPE);
-        clientAdaptiveControlTorqueSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                clientAdaptiveControlTorque = vector3Stamped;
+    /**
+     * Finds the field's values in the manifest by the name of their part of the message, so a
+     * manifest that lists the parts in another order still fills the right fields.
+     *
+     * @return The field's signal, its offset set in fieldOffsets; -1 if the manifest doesn't
+     * carry the field, which then stays empty
+     */
+    private int resolveField(TelemetryField field, List<TopicManifest.Entry> entries) {
+        for (TopicManifest.Entry entry : entries) {
+            if (!entry.getTopic().equals(field.getSource())) {
+                continue;
             }
-        }));
-
-        Subscriber<QuaternionStamped> clientQuaternionErrorSub = connectedNode.newSubscriber("/client/attitude_control/q_error", QuaternionStamped._TYPE);
-        clientQuaternionErrorSub.addMessageListener((new MessageListener<QuaternionStamped>() {
-            @Override
-            public void onNewMessage(QuaternionStamped quaternionStamped) {
-                clientQuaternionError = quaternionStamped;
+            int signal = telemetryState.find(entry.getTopic());
+            if (signal < 0) {
+                // Its subscription failed, already logged
+                return -1;
             }
-        }));
-
-        Subscriber<QuaternionStamped> clientQuaternionDesiredSub = connectedNode.newSubscriber("/client/attitude_control/qdesired", QuaternionStamped._TYPE);
-        clientQuaternionDesiredSub.addMessageListener((new MessageListener<QuaternionStamped>() {
-            @Override
-            public void onNewMessage(QuaternionStamped quaternionStamped) {
-                clientQuaternionDesired = quaternionStamped;
+            int part = TopicSubscriber.findPart(entry, field.getSourcePart());
+            if (part < 0) {
+                Log.e(TAG, "Manifest mismatch: " + field + " needs the " + field.getSourcePart() + " of "
+                        + entry.getTopic() + ", which only lists " + Arrays.toString(entry.getFields())
+                        + "; it won't be sent");
+                return -1;
             }
-        }));
+            if (field.getPartOffset() + field.getWidth()
+                    > TopicSubscriber.partWidth(entry.getType(), field.getSourcePart())) {
+                Log.e(TAG, "Manifest mismatch: " + field + " doesn't fit in the " + field.getSourcePart()
+                        + " of " + entry.getTopic() + " (" + entry.getType() + "); it won't be sent");
+                return -1;
+            }
+            fieldOffsets[field.ordinal()] = part + field.getPartOffset();
+            return signal;
+        }
+        Log.w(TAG, field + " has no topic in the manifest, " + field.getSource() + " isn't listed");
+        return -1;
+    }
 
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("astrosee_hlp_node_w_image_processing");
+    }
 
-        // The time signal
-        Subscriber<Float64> simulinkTimeSub = connectedNode.newSubscriber("/simulinkclock", Float64._TYPE);
-        simulinkTimeSub.addMessageListener((new MessageListener<Float64>() {
-            @Override
-            public void onNewMessage(Float64 float64data) {
-                simulinkTime = float64data;
-            }
-        }));
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        factory = connectedNode.getTopicMessageFactory();
 
-        // The simulink phase
-        Subscriber<Int32> simulinkPhaseSub = connectedNode.newSubscriber("/simulinkphase", Int32._TYPE);
-        simulinkPhaseSub.addMessageListener((new MessageListener<Int32>() {
-            @Override
-            public void onNewMessage(Int32 int32data) {
-                simulinkPhase = int32data;
-            }
-        }));
+        cvResultsPub = connectedNode.newPublisher("/cv_results", std_msgs.String._TYPE);
+        cvRelPositionPub = connectedNode.newPublisher("/cv/rel_position", Vector3Stamped._TYPE);
+        cvRelQuaternionPub = connectedNode.newPublisher("/cv/rel_quaternion", QuaternionStamped._TYPE);
+        cvBBcentrePub = connectedNode.newPublisher("/cv/bb_centre", Vector3Stamped._TYPE);
 
-        // More Client States
-        Subscriber<Vector3Stamped> clientNavigationPositionEstimateSub = connectedNode.newSubscriber("/client/gnc/nav/position_est", Vector3Stamped._TYPE);
-        clientNavigationPositionEstimateSub.addMessageListener((new MessageListener<Vector3Stamped>() {
+        // The models load and warm up on the inference thread while the topics are subscribed
+        detectorScheduler.setEnabled(MODEL_DETECTION, true);
+        inferenceRunning = true;
+        inferenceThread = new Thread(new Runnable() {
             @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                clientNavigationPoseEstimate = vector3Stamped;
+            public void run() {
+                runInference();
             }
-        }));
+        }, "DockCamInference");
+        inferenceThread.start();
 
-        Subscriber<Vector3Stamped> clientControlAccelerationSub = connectedNode.newSubscriber("/client/gnc/ctl/acceleration", Vector3Stamped._TYPE);
-        clientControlAccelerationSub.addMessageListener((new MessageListener<Vector3Stamped>() {
+        final int robotNameSignal = monitorTopic("/robot_name");
+        Subscriber<std_msgs.String> robotNameSub = connectedNode.newSubscriber("/robot_name",
+                std_msgs.String._TYPE);
+        robotNameSub.addMessageListener(new MessageListener<std_msgs.String>() {
             @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                clientControlAcceleration = vector3Stamped;
+            public void onNewMessage(std_msgs.String string) {
+                if (robotNameSignal >= 0) {
+                    topicMonitor.onMessage(robotNameSignal, SystemClock.elapsedRealtimeNanos(),
+                            System.currentTimeMillis(), 0);
+                }
+                robotName = string.getData();
             }
-        }));
+        });
 
-        Subscriber<Vector3Stamped> clientGuidancePositionSub = connectedNode.newSubscriber("/client/gnc/guidance/pos", Vector3Stamped._TYPE);
-        clientGuidancePositionSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                clientGuidancePosition = vector3Stamped;
+        // Numeric topics, see res/xml/topics.xml
+        TopicSubscriber topicSubscriber = new TopicSubscriber(telemetryState, telemetryHistory, telemetryRecorder,
+                topicMonitor);
+        List<TopicManifest.Entry> entries = TopicManifest.load(context, dataPath).getEntries();
+        for (TopicManifest.Entry entry : entries) {
+            try {
+                topicSubscriber.subscribe(connectedNode, entry);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.e(TAG, "Not subscribing to " + entry.getTopic() + ": " + e.getMessage());
             }
-        }));
+        }
+        for (TelemetryField field : FIELDS) {
+            fieldSignals[field.ordinal()] = field.getKind() == TelemetryField.Kind.NUMERIC
+                    ? resolveField(field, entries) : -1;
+        }
+
+
+        // Done logging signals!
 
-        Subscriber<Vector3Stamped> clientGuidanceErrorSub = connectedNode.newSubscriber("/client/gnc/guidance/error", Vector3Stamped._TYPE);
-        clientGuidanceErrorSub.addMessageListener((new MessageListener<Vector3Stamped>() {
+
+        final int dockCamSignal = monitorTopic(DOCK_CAM_TOPIC);
+        Subscriber<CompressedImage> dockCamSub = connectedNode.newSubscriber(DOCK_CAM_TOPIC,
+                CompressedImage._TYPE);
+        dockCamSub.addMessageListener(new MessageListener<CompressedImage>() {
             @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                clientGuidanceError = vector3Stamped;
+            public void onNewMessage(CompressedImage image) {
+                long receivedNs = SystemClock.elapsedRealtimeNanos();
+                long stampNs = image.getHeader().getStamp().totalNsecs();
+                if (dockCamSignal >= 0) {
+                    topicMonitor.onMessage(dockCamSignal, receivedNs, System.currentTimeMillis(), stampNs);
+                }
+                // Sequence numbers are unsigned
+                long seq = image.getHeader().getSeq() & 0xFFFFFFFFL;
+                // Images are mono8 compressed to JPEG
+                if (!processImages) {
+                    visionStats.ignoreFrame(seq);
+                    return;
+                }
+                visionStats.receiveFrame(seq);
+                // Inference runs on its own thread, on the latest frame only
+                dockCamFrames.acquire().set(image.getData(), seq, stampNs, receivedNs);
+                if (dockCamFrames.publish()) {
+                    visionStats.addDropped(1);
+                }
             }
-        }));
+        });
 
-        ////// MRS CV Signals
-        // CV position
-        Subscriber<Vector3Stamped> cvRelPositionSub = connectedNode.newSubscriber("/cv/rel_position", Vector3Stamped._TYPE);
-        cvRelPositionSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                cvRelPosition = vector3Stamped;
+        imageArchiver.start();
+
+        onStartCompleteFlag = true;
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        telemetryRecorder.stop();
+        inferenceRunning = false;
+        if (inferenceThread != null) {
+            inferenceThread.interrupt();
+            try {
+                inferenceThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        }));
-        // CV quaternion
-        Subscriber<QuaternionStamped> cvRelQuaternionSub = connectedNode.newSubscriber("/cv/rel_quaternion", QuaternionStamped._TYPE);
-        cvRelQuaternionSub.addMessageListener((new MessageListener<QuaternionStamped>() {
-            @Override
-            public void onNewMessage(QuaternionStamped quaternionStamped) {
-                cvRelQuaternion = quaternionStamped;
+        }
+        queryExecutor.shutdownNow();
+        modelLoader.shutdownNow();
+        try {
+            // A model being tested is staged or closed before the detectors are
+            modelLoader.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        detectorScheduler.close();
+        imageArchiver.stop();
+    }
+
+    // Runs until shutdown, on the latest frame each time
+    private void runInference() {
+        // The choice of a previous start, or one made now
+        InferenceAutotuner.Choice tuning = inferenceAutotuner.load(
+                detectorScheduler.getModel(MODEL_DETECTION).getFile());
+        if (tuning != null) {
+            applyTuning(tuning);
+        } else if (calibrationCap < 0) {
+            calibrationCap = 0;
+        }
+        while (inferenceRunning) {
+            if (calibrationCap >= 0) {
+                calibrate();
             }
-        }));
-        // CV BB Centre
-        Subscriber<Vector3Stamped> cvBBcentreSub = connectedNode.newSubscriber("/cv/bb_centre", Vector3Stamped._TYPE);
-        cvBBcentreSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                cvBBcentre = vector3Stamped;
+            // Models are loaded between frames, rather than on the next one
+            if (detectorScheduler.isChanged()) {
+                prepareDetectors();
             }
-        }));
-        // GNC's calculation of the CV output for position
-        Subscriber<Vector3Stamped> GNCsCvRelPositionSub = connectedNode.newSubscriber("/adaptive_gnc/nav/cv/rel_position", Vector3Stamped._TYPE);
-        GNCsCvRelPositionSub.addMessageListener((new MessageListener<Vector3Stamped>() {
-            @Override
-            public void onNewMessage(Vector3Stamped vector3Stamped) {
-                GNCsCvRelPosition = vector3Stamped;
+            FrameMailbox.Frame frame;
+            try {
+                frame = dockCamFrames.take(INFERENCE_IDLE_MS);
+            } catch (InterruptedException e) {
+                break;
             }
-        }));
-        // GNC's calculation of the CV output for attitude
-        Subscriber<QuaternionStamped> GNCsCvRelQuaternionSub = connectedNode.newSubscriber("/attitude_nav/cv/rel_quaternion", QuaternionStamped._TYPE);
-        GNCsCvRelQuaternionSub.addMessageListener((new MessageListener<QuaternionStamped>() {
-            @Override
-            public void onNewMessage(QuaternionStamped quaternionStamped) {
-                GNCsCvRelQuaternion = quaternionStamped;
+            if (frame != null && processImages) {
+                try {
+                    processFrame(frame);
+                } catch (RuntimeException e) {
+                    // A bad frame or model output mustn't end inference for the rest of the session
+                    Log.e(TAG, "Could not process image " + frame.getSeq(), e);
+                    visionStats.failFrame();
+                }
             }
-        }));
+        }
+    }
 
+    // Benchmarks the detection network on a sample frame, and runs it the quickest way from then on
+    private void calibrate() {
+        int cap = calibrationCap;
+        calibrationCap = -1;
+        visionStats.setModelState("CALIBRATING");
+        Bitmap sample = loadCalibrationFrame();
+        try {
+            InferenceAutotuner.Choice choice = inferenceAutotuner.calibrate(context,
+                    detectorScheduler.getModel(MODEL_DETECTION), framePreprocessor.process(sample), cap);
+            if (choice != null) {
+                applyTuning(choice);
+            } else {
+                Log.e(TAG, "No configuration of the detection model ran, keeping the current tuning");
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // The detectors keep their threads, inference goes on
+            Log.e(TAG, "Could not calibrate inference", e);
+        } finally {
+            sample.recycle();
+        }
+        visionStats.setModelState(detectorScheduler.getState().name());
+    }
 
-        // Done logging signals!
+    // The choice was timed on the detection network alone, so it sets that network's threads
+    // rather than the budget the networks share
+    private void applyTuning(InferenceAutotuner.Choice choice) {
+        detectorScheduler.setNnapi(choice.isNnapi());
+        if (explicitThreads) {
+            Log.i(TAG, "Inference tuned to " + choice + ", keeping the threads set from the ground");
+            return;
+        }
+        detectorScheduler.setThreads(MODEL_DETECTION, choice.getThreads());
+        Log.i(TAG, "Inference tuned to " + choice);
+    }
 
+    // dataPath/calibration_frame.jpg if there is one, a blank frame otherwise; the network's
+    // time hardly depends on what is in the frame
+    private Bitmap loadCalibrationFrame() {
+        File file = new File(dataPath, CALIBRATION_FRAME);
+        Bitmap frame = file.exists() ? BitmapFactory.decodeFile(file.getPath()) : null;
+        return frame != null ? frame : createBlankFrame();
+    }
 
-        // Build the Object detector neural network!
-        BaseOptions baseOptionsBuilder = BaseOptions.builder().setNumThreads(4).build();
-        ObjectDetector.ObjectDetectorOptions optionsBuilder = ObjectDetector.ObjectDetectorOptions.builder()
-                .setScoreThreshold(0.5f)
-                .setMaxResults(1).setBaseOptions(baseOptionsBuilder).build();
+    // The size of the dock cam's frames, once one came
+    private Bitmap createBlankFrame() {
+        int width = framePreprocessor.getFrameWidth();
+        int height = framePreprocessor.getFrameHeight();
+        return Bitmap.createBitmap(width > 0 ? width : DOCK_CAM_WIDTH,
+                height > 0 ? height : DOCK_CAM_HEIGHT, Bitmap.Config.ARGB_8888);
+    }
 
-        try {
-            objectDetector = ObjectDetector.createFromFileAndOptions(context, "efficiendet_dockcam_1_5_detection.tflite", optionsBuilder);
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Swaps in the model the ladder is on, before the next frame
+    private void switchDetectionModel() {
+        String file = modelLadder.getModel();
+        DetectorScheduler.Model model = file != null ? detectionModel.withFile(file) : detectionModel;
+        if (model.getFile().equals(detectorScheduler.getModel(MODEL_DETECTION).getFile())) {
+            return;
         }
+        detectorScheduler.setModel(MODEL_DETECTION, model);
+        visionStats.setDetectionModel(model.getFile());
+        Log.i(TAG, String.format(Locale.US, "Detection model %s, rung %d, after %.1f ms", model.getFile(),
+                modelLadder.getRung(), modelLadder.getStepMs()));
+    }
 
-/*
-        // Build the pose detection neural network!
-        BaseOptions baseOptionsBuilder_pose = BaseOptions.builder().setNumThreads(4).build();
-        ObjectDetector.ObjectDetectorOptions optionsBuilder_pose = ObjectDetector.ObjectDetectorOptions.builder()
-                .setScoreThreshold(0.5f)
-                .setMaxResults(8).setBaseOptions(baseOptionsBuilder).build();
+    // A loaded model failed on its first frame and the scheduler swapped back to the one before
+    // it; the usual model goes back to what it was, so that the ladder doesn't install the
+    // rejected one
+    private void restoreDetectionModel(DetectorScheduler.Model rejected) {
+        DetectorScheduler.Model running = detectorScheduler.getModel(MODEL_DETECTION);
+        synchronized (detectionModelLock) {
+            if (rejected.getFile().equals(detectionModel.getFile())) {
+                detectionModel = replacedModel != null ? replacedModel : running;
+            } else {
+                rejectedFile = rejected.getFile();
+            }
+            visionStats.setDetectionModel(running.getFile());
+        }
+        Log.e(TAG, "Back to " + running.getFile() + ", " + rejected.getFile() + " failed on a frame");
+    }
 
+    // Loads the enabled models and runs them once on a blank frame
+    private void prepareDetectors() {
+        visionStats.setModelState(DetectorScheduler.State.LOADING.name());
+        Bitmap blank = createBlankFrame();
         try {
-            poseDetector = ObjectDetector.createFromFileAndOptions(context, "dockcam_pose.tflite", optionsBuilder_pose);
-        } catch (IOException e) {
-            e.printStackTrace();
+            detectorScheduler.prepare(framePreprocessor.process(blank));
+        } catch (InterruptedException e) {
+            // Shutting down
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Inference goes on, the frames show whether the detectors run
+            Log.e(TAG, "Could not prepare the detectors", e);
+            visionStats.setModelState(DetectorScheduler.State.FAILED.name());
+            return;
+        } finally {
+            blank.recycle();
         }
-*/
-        imageProcessor = new ImageProcessor.Builder().build();
-
-
+        visionStats.setModelState(detectorScheduler.getState().name());
+    }
 
-        Subscriber<CompressedImage> dockCamSub = connectedNode.newSubscriber(
-                "/mgt/img_sampler/dock_cam/image_record/compressed", CompressedImage._TYPE);
-        dockCamSub.addMessageListener(new MessageListener<CompressedImage>() {
-            @Override
-            public void onNewMessage(CompressedImage image) {
-                // Images are mono8 compressed to JPEG
-                if (!processImages) {
-                    return;
-                }
-                //String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmssSSS",
-                //        Locale.getDefault()).format(new Date());
-                //Log.i(TAG, "Processing image at " + timestamp);
-                // Image to bitmap
-                ChannelBuffer buffer = image.getData();
-                byte[] data = buffer.array();
-                Bitmap bitmap = BitmapFactory.decodeByteArray(data, buffer.arrayOffset(),
-                        buffer.readableBytes());
-
-                // Bitmap to TensorFlow
-                TensorImage tensorImage = imageProcessor.process(TensorImage.fromBitmap(bitmap));
-
-                // Processing object
-                List<Detection> results = objectDetector.detect(tensorImage);
-                if(saveImages) {
-                    processResults(results, image.getHeader().getSeq(), bitmap);
-                } else {
-                    processResults(results, image.getHeader().getSeq());
-                }
+    private void processFrame(FrameMailbox.Frame frame) {
+        visionStats.beginFrame(frame.getReceivedNs());
+        //String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmssSSS",
+        //        Locale.getDefault()).format(new Date());
+        //Log.i(TAG, "Processing image at " + timestamp);
+        // Between detections the box is only predicted, without decoding the frame
+        if (!saveImages && !boxTracker.isDetectionDue(frame.getReceivedNs(),
+                framePreprocessor.getFrameWidth(), framePreprocessor.getFrameHeight())) {
+            publishBoxCentre(boxTracker.predict(frame.getReceivedNs(), predictedBox));
+            visionStats.predictFrame();
+            return;
+        }
 
-                // Processing pose
-                //List<Detection> pose_results = poseDetector.detect(tensorImage);
-                //processPoseResults(pose_results, image.getHeader().getSeq());
+        // Image to bitmap
+        Rect region = roiTracker.nextRegion(framePreprocessor.getFrameWidth(),
+                framePreprocessor.getFrameHeight(), framePreprocessor.getInputAspect(),
+                framePreprocessor.getMinCrop(RoiTracker.DEFAULT_MIN_CROP), roiRegion) ? roiRegion : null;
+        Bitmap bitmap = framePreprocessor.decode(frame.getData(), frame.getLength(), region);
+        visionStats.endStage(VisionStats.STAGE_DECODE);
+        if (bitmap == null) {
+            Log.e(TAG, "Could not decode image " + frame.getSeq());
+            visionStats.failFrame();
+            return;
+        }
 
+        try {
+            // Bitmap to TensorFlow
+            TensorImage tensorImage = framePreprocessor.process(bitmap);
+            visionStats.endStage(VisionStats.STAGE_CONVERT);
+
+            // Processing object, and pose on the same frame when enabled
+            try {
+                detectorScheduler.detect(frame.getSeq(), tensorImage, detections);
+            } catch (InterruptedException e) {
+                // Shutting down
+                Thread.currentThread().interrupt();
+                return;
+            }
+            visionStats.endStage(VisionStats.STAGE_DETECT);
+            visionStats.setModelState(detectorScheduler.getState().name());
+            DetectorScheduler.Model rejected = detectorScheduler.takeRejected(MODEL_DETECTION);
+            if (rejected != null) {
+                restoreDetectionModel(rejected);
+            }
+            List<Detection> results = detections.get(MODEL_DETECTION);
+            // Only the detection model's own time, the pose model runs beside it; a model that
+            // didn't load has no time, and is stepped over
+            if (results == null ? modelLadder.fail() : modelLadder.update(detections.getMs(MODEL_DETECTION))) {
+                switchDetectionModel();
+            }
+            if (results == null) {
+                results = Collections.emptyList();
+            }
+            RectF found = results.isEmpty() ? null
+                    : framePreprocessor.toFrame(results.get(0).getBoundingBox(), trackedBox);
+            roiTracker.update(found);
+            boxTracker.correct(found, frame.getReceivedNs());
+            processResults(results, (int) frame.getSeq());
+            visionStats.endStage(VisionStats.STAGE_PUBLISH);
+            if (saveImages) {
+                archiveImage(frame, results, bitmap);
+                visionStats.endStage(VisionStats.STAGE_SAVE);
             }
-        });
-
-        onStartCompleteFlag = true;
-    }
 
-    @Override
-    public void onShutdown(Node node) {
-        if (!objectDetector.isClosed()) {
-            objectDetector.close();
+            // Processing pose
+            List<Detection> pose_results = detections.get(MODEL_POSE);
+            if (pose_results != null) {
+                processPoseResults(pose_results, (int) frame.getSeq());
+                visionStats.endStage(VisionStats.STAGE_POSE);
+            }
+        } finally {
+            // The archiver copied what it keeps, so the next frame can be decoded into it
+            bitmapPool.release(bitmap);
+        }
+        visionStats.endFrame();
+
+        long now = SystemClock.elapsedRealtime();
+        if (now >= nextVisionLogMs) {
+            nextVisionLogMs = now + VISION_LOG_PERIOD_MS;
+            visionLogWindow.update();
+            Log.i(TAG, "Vision: " + visionLogWindow);
+            if (roiTracker.isEnabled()) {
+                Log.i(TAG, "Tracking: " + roiTracker.getCrops() + " crops, " + roiTracker.getLosses() + " losses");
+            }
+            if (saveImages) {
+                Log.i(TAG, "Archive: " + imageArchiver.getSaved() + " saved, " + imageArchiver.getDropped()
+                        + " dropped, " + imageArchiver.getBytes() / 1024 + " kB");
+            }
         }
     }
 
@@ -619,7 +1052,7 @@ public class AstroseeNode extends AbstractNodeMain {
         for (Detection detection : detections) {
             // Object detection results
             Category category = detection.getCategories().get(0);
-            RectF box = detection.getBoundingBox();
+            RectF box = framePreprocessor.toFrame(detection.getBoundingBox(), mappedBox);
             CV_Results = String.format("Detected: %s, Image Sequence: %s, Score: %s, CentreX: %s, CentreY: %s, Height: %s, Width: %s",
                     category.getLabel(), image_seq, category.getScore(), box.centerX(), box.centerY(), box.height(), box.width());
             Log.i(TAG, CV_Results);
@@ -629,189 +1062,125 @@ public class AstroseeNode extends AbstractNodeMain {
             cv_results_string.setData(CV_Results);
             cvResultsPub.publish(cv_results_string); // publish it
 
-            // Create Header
-            std_msgs.Header hdr = factory.newFromType(Header._TYPE);
-            hdr.setStamp(Time.fromMillis(System.currentTimeMillis()));
-
             // bounding box centre
-            Vector3Stamped bb_centre = cvBBcentrePub.newMessage();
-            Vector3 vector_2 = factory.newFromType(Vector3._TYPE);
-            vector_2.setX(box.centerX());
-            vector_2.setY(box.centerY());
-            vector_2.setZ(0.0);
-            bb_centre.setVector(vector_2);
-            bb_centre.setHeader(hdr);
-            cvBBcentrePub.publish(bb_centre); // publish it
+            Vector3Stamped bb_centre = publishBoxCentre(box);
             Log.i("AstroSee BB Centre", "[" + String.format("%.1f", bb_centre.getVector().getX()) + ", " + String.format("%.1f", bb_centre.getVector().getY()) + ", " + String.format("%.1f", bb_centre.getVector().getZ()) + "]");
 
 
         }
     }
 
-    public void processResults(List<Detection> detections, int image_seq, Bitmap bitmap) {
-        // Making bitmap mutable
-        bitmap = bitmap.copy(Bitmap.Config.ARGB_8888,true);
-        // Loading canvas
-        Canvas canvas = new Canvas(bitmap);
-
-        for (Detection detection : detections) {
-            Category category = detection.getCategories().get(0);
-            RectF box = detection.getBoundingBox();
-            Log.i(TAG, String.format("Detected: %s, Score: %s, CentreX: %s, CentreY: %s, Height: %s, Width: %s",
-                    category.getLabel(), category.getScore(), box.centerX(), box.centerY(), box.height(), box.width()));
-
-
-            canvas.drawRect(box.left, box.top, box.right, box.bottom, paint);
-        }
-
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmssSSS",
-                Locale.getDefault()).format(new Date());
-        String imageFileName = "IMG_" + timestamp + ".jpg";
-        File imageFile = new File(dockCamDataPath, imageFileName);
-        try {
-            FileOutputStream fos = new FileOutputStream(imageFile);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-            fos.flush();
-            fos.close();
-            Log.i(TAG, "Image saved to: " + imageFile.getAbsolutePath());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-/*
+    /**
+     * Solves the target's pose from the keypoints of the pose network, and publishes it to
+     * /cv/rel_position and /cv/rel_quaternion. Each keypoint class stands for one of the
+     * OBJECT_POINTS; only its best scoring detection is used.
+     */
     public void processPoseResults(List<Detection> detections, int image_seq) {
-
-        int numClasses = 8; // number of points in ObjectPoints
-
-        // Create a List to store image points directly (replace with ArrayList if needed)
-        List<MatOfPoint2f> imagePointsList = new LinkedList<>();
-
-
+        poseSolver.clear();
+        Arrays.fill(keypointSeen, false);
         for (Detection detection : detections) {
-            // Object detection results
-
-            //FIGURE OUT WHAT detections IS and how to access each class!
-
             Category category = detection.getCategories().get(0);
-
-            int classIndex = category.getIndex(); // Assuming category.getIndex() returns the class order
-            // Check if classIndex is within valid range (optional)
-            if (classIndex < 0 || classIndex >= numClasses) {
-                Log.e(TAG,"Pose detection class index out of range! Class: " + classIndex);
+            int classIndex = category.getIndex();
+            if (classIndex < 0 || classIndex >= OBJECT_POINTS.length) {
+                Log.e(TAG, "Pose detection class index out of range! Class: " + classIndex);
                 continue;
             }
-            RectF box = detection.getBoundingBox();
-            float centreX = box.centerX();
-            float centreY = box.centerY();
-            float score = category.getScore();
-            // Get the list of bounding box centers for the current class
-            // Access the corresponding MatOfPoint3f for the class
-            MatOfPoint2f imagePoints = imagePointsList.get(classIndex);
-            if (imagePoints == null) {
-                // If not created yet, create a new MatOfPoint3f for this class
-                imagePoints = new MatOfPoint2f();
-                imagePointsList.add(classIndex, imagePoints); // Add at specific class index
-            }
-
-            // Add the 2D point to the class-wise image points
-            imagePoints.push_back(new MatOfPoint2f(new Point(centreX, centreY)));
-
-            // Logging
-            Log.i(TAG, String.format("Pose Detection Classes: %s, Score: %s, CentreX: %s, CentreY: %s", classIndex, score, centreX, centreY));
-        }
-
-        // Combine all image points into a single MatOfPoint2f
-        MatOfPoint2f allImagePoints = new MatOfPoint2f();
-        for (MatOfPoint2f points : imagePointsList) {
-            allImagePoints.push_back(points);
-        }
-
-        // Hard-coding the imagePoints for now
-        Point[] pointsArray = new Point[]{
-                new Point(120, 120),
-                new Point(100, 130),
-                new Point(20, 120),
-                new Point(120, 250),
-                new Point(199, 120),
-                new Point(0, 0),
-                new Point(20, 10),
-                new Point(200, 0)};
-
-        // Convert the array to a MatOfPoint3f
-        MatOfPoint2f imagePoints = new MatOfPoint2f(pointsArray);
-
-        // Camera properties
-        // Define camera matrix values
-        double fx = 900; // focal length in x-direction
-        double fy = 900; // focal length in y-direction
-        double cx = 525; // optical center x-coordinate
-        double cy = 600; // optical center y-coordinate
-
-        // Define distortion coefficients (assuming a simple model with just k1 and k2)
-        double k1 = 0.0; // radial distortion coefficient 1
-        double k2 = 0.0; // radial distortion coefficient 2
-        double p1 = 0.0; // radial distortion coefficient 2
-        double p2 = 0.0; // radial distortion coefficient 2
-
-        // Create cameraMatrix
-        Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
-        cameraMatrix.put(0, 0, fx);
-        cameraMatrix.put(1, 1, fy);
-        cameraMatrix.put(0, 2, cx);
-        cameraMatrix.put(1, 2, cy);
-        cameraMatrix.put(2, 2, 1.0);
-
-        // Create distCoefficients
-        double[] myCoefficients = new double[] {k1, k2, p1, p2};
-        MatOfDouble distCoefficients = new MatOfDouble(myCoefficients); // Using k1, k2, p1, and p2; others are ignored.
-
-        Mat rvec = new Mat();
-        Mat tvec = new Mat();
-
-
-        if (imagePoints.rows() < 8) {
-            Log.i(TAG, String.format("Skipping EPNP due to too few imagePoints. Num points: %d and Object Points: %d", imagePoints.rows(), objectPoints.rows()));
+            RectF box = framePreprocessor.toFrame(detection.getBoundingBox(), mappedBox);
+            Log.i(TAG, String.format("Pose Detection Classes: %s, Image Sequence: %s, Score: %s, CentreX: %s, CentreY: %s",
+                    classIndex, image_seq, category.getScore(), box.centerX(), box.centerY()));
+            // Detections come best first
+            if (keypointSeen[classIndex]) {
+                continue;
+            }
+            keypointSeen[classIndex] = true;
+            double[] point = OBJECT_POINTS[classIndex];
+            poseSolver.add(point[0], point[1], point[2], box.centerX(), box.centerY());
+        }
+
+        if (poseSolver.getCount() < EpnpSolver.MIN_POINTS) {
+            Log.i(TAG, String.format("Skipping EPNP due to too few imagePoints. Num points: %d", poseSolver.getCount()));
+            return;
+        }
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        if (!poseSolver.solve(relRotation, relPosition)) {
+            Log.i(TAG, "EPNP found no pose for image " + image_seq);
+            return;
+        }
+        if (poseSolver.getError() > MAX_POSE_ERROR_PX) {
+            Log.i(TAG, String.format(Locale.US, "EPNP pose for image %d is off by %.1f px, not publishing it",
+                    image_seq, poseSolver.getError()));
             return;
         }
+        long solveUs = (SystemClock.elapsedRealtimeNanos() - startNs) / 1000;
+        EpnpSolver.rotationToQuaternion(relRotation, relQuaternion);
 
-        Log.i(TAG,String.format("Running EPNP with NumImagePoints: %d and ObjectPoints: %d", imagePoints.rows(), objectPoints.rows()));
-        Calib3d.solvePnP(objectPoints, imagePoints, cameraMatrix, distCoefficients, rvec, tvec, false, Calib3d.SOLVEPNP_EPNP); // default is SOLVEPNP_ITERATIVE (requires 3 image points) unless otherwise specified
+        // Create Header
+        std_msgs.Header hdr = factory.newFromType(Header._TYPE);
+        hdr.setStamp(Time.fromMillis(System.currentTimeMillis()));
 
-        // Now rvec and tvec contain the rotation and translation vectors, respectively
-        // Pose detection results
         // Relative position
         Vector3Stamped cv_rel_position = cvRelPositionPub.newMessage();
         Vector3 vector_1 = factory.newFromType(Vector3._TYPE);
-        vector_1.setX(tvec.get(0,0)[0]);
-        vector_1.setY(tvec.get(1,0)[0]);
-        vector_1.setZ(tvec.get(2,0)[0]);
+        vector_1.setX(relPosition[0]);
+        vector_1.setY(relPosition[1]);
+        vector_1.setZ(relPosition[2]);
         cv_rel_position.setVector(vector_1);
-        // Create Header
-        std_msgs.Header hdr = factory.newFromType(Header._TYPE);
-        hdr.setStamp(Time.fromMillis(System.currentTimeMillis()));
         cv_rel_position.setHeader(hdr);
-        // Publish to the topic
         cvRelPositionPub.publish(cv_rel_position);
-        Log.i("AstroSee relative position", "[" + String.format("%.4f", cv_rel_position.getVector().getX()) + ", " + String.format("%.4f", cv_rel_position.getVector().getY()) + ", " + String.format("%.4f", cv_rel_position.getVector().getZ()) + "]");
 
         // Relative orientation
-        Vector3Stamped cv_rel_rodriuges = cvRelRodriugesPub.newMessage();
-        Vector3 rodriuges_1 = factory.newFromType(Vector3._TYPE);
-        rodriuges_1.setX(rvec.get(0,0)[0]);
-        rodriuges_1.setY(rvec.get(1,0)[0]);
-        rodriuges_1.setZ(rvec.get(2,0)[0]);
-        cv_rel_rodriuges.setVector(rodriuges_1);
-        cv_rel_rodriuges.setHeader(hdr);
-        cvRelRodriugesPub.publish(cv_rel_rodriuges); // publish it
-        Log.i("AstroSee relative rodriuges rotation", "[" + String.format("%.4f", cv_rel_rodriuges.getVector().getX()) + ", " + String.format("%.4f", cv_rel_rodriuges.getVector().getY()) + ", " + String.format("%.4f", cv_rel_rodriuges.getVector().getZ()) + "]");
-
-        CV_pose_Results = String.format("Pose detection results. Relative position: [%s, %s, %s]; Relative attitude: [%s, %s, %s]",
-                tvec.get(0,0)[0], tvec.get(1,0)[0], tvec.get(2,0)[0], rvec.get(0,0)[0], rvec.get(1,0)[0], rvec.get(2,0)[0]);
+        QuaternionStamped cv_rel_quaternion = cvRelQuaternionPub.newMessage();
+        Quaternion quaternion_1 = factory.newFromType(Quaternion._TYPE);
+        quaternion_1.setW(relQuaternion[0]);
+        quaternion_1.setX(relQuaternion[1]);
+        quaternion_1.setY(relQuaternion[2]);
+        quaternion_1.setZ(relQuaternion[3]);
+        cv_rel_quaternion.setQuaternion(quaternion_1);
+        cv_rel_quaternion.setHeader(hdr);
+        cvRelQuaternionPub.publish(cv_rel_quaternion);
+
+        CV_pose_Results = String.format(Locale.US, "Pose detection results. Image Sequence: %d, Points: %d, Relative position: [%.4f, %.4f, %.4f]; Relative attitude: [%.4f, %.4f, %.4f, %.4f]; Error: %.2f px; Solved in %d us",
+                image_seq, poseSolver.getCount(), relPosition[0], relPosition[1], relPosition[2],
+                relQuaternion[0], relQuaternion[1], relQuaternion[2], relQuaternion[3], poseSolver.getError(), solveUs);
         Log.i(TAG, CV_pose_Results);
+    }
 
-        //TODO: Log each individual keypoint (as a string???)
+    // Publishes the centre of a box on the camera image to /cv/bb_centre
+    private Vector3Stamped publishBoxCentre(RectF box) {
+        // Create Header
+        std_msgs.Header hdr = factory.newFromType(Header._TYPE);
+        hdr.setStamp(Time.fromMillis(System.currentTimeMillis()));
 
+        Vector3Stamped bb_centre = cvBBcentrePub.newMessage();
+        Vector3 vector_2 = factory.newFromType(Vector3._TYPE);
+        vector_2.setX(box.centerX());
+        vector_2.setY(box.centerY());
+        vector_2.setZ(0.0);
+        bb_centre.setVector(vector_2);
+        bb_centre.setHeader(hdr);
+        cvBBcentrePub.publish(bb_centre); // publish it
+        return bb_centre;
+    }
 
+    // Hands the frame to the archiver, with what was found on it
+    private void archiveImage(FrameMailbox.Frame frame, List<Detection> detections, Bitmap bitmap) {
+        ImageArchiver.Entry entry = imageArchiver.begin(frame.getSeq(), frame.getStampNs());
+        if (entry == null) {
+            // Counted by the archiver
+            return;
+        }
+        boolean raw = rawImages;
+        if (raw) {
+            entry.setJpeg(frame.getData(), frame.getLength());
+        } else {
+            entry.setBitmap(bitmap);
+        }
+        for (Detection detection : detections) {
+            Category category = detection.getCategories().get(0);
+            RectF box = raw ? framePreprocessor.toFrame(detection.getBoundingBox(), mappedBox)
+                    : framePreprocessor.toBitmap(detection.getBoundingBox(), mappedBox);
+            entry.addDetection(category.getLabel(), category.getScore(), box);
+        }
+        imageArchiver.submit(entry);
     }
-    */
 }
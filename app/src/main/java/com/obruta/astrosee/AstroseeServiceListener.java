@@ -2,4 +2,23 @@ package com.obruta.astrosee;
 
 public interface AstroseeServiceListener {
     void onVisionEnable(boolean enable);
+    void onTelemetryFormatChange(TelemetryFormat format);
+    void onTelemetryDeltaChange(boolean enable, int keyframeInterval);
+    void onTelemetryEpsilonChange(TelemetryField field, double epsilon);
+    void onDownlinkBudgetChange(int bytesPerSecond, long activePeriodMs, long idlePeriodMs, int idlePhase);
+    void onFieldPriorityChange(TelemetryField field, int priority);
+    void onTelemetryStatsChange(long windowMs, boolean inPlace, long fieldMask);
+    void onRecordingEnable(boolean enable, int segmentSize);
+    void onTelemetryQuery(String[] topics, long fromMs, long toMs, int decimation);
+    void onTopicStatsRequest();
+    void onTopicSummaryChange(long periodMs);
+    void onVisionStatsRequest();
+    void onPreprocessingChange(FramePreprocessor.Settings settings);
+    void onRoiTrackingChange(boolean enable, float margin, int redetectEvery);
+    void onBoxTrackerChange(boolean enable, int detectEvery, float alpha, float beta, long maxPredictMs);
+    void onModelsChange(boolean pose, int threadBudget);
+    void onImageSavingChange(boolean enable, boolean raw);
+    void onInferenceCalibrate(int cpuCap);
+    void onModelLadderChange(String[] models, long targetMs);
+    void onModelLoad(int model, String file);
 }
@@ -0,0 +1,144 @@
+package com.obruta.astrosee;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reference reader for the frames written by {@link BinaryTelemetryEncoder}. Ground tools can use
+ * it as is, or as the specification of the format; feeding the decoded frame to a
+ * {@link TelemetryEncoder} gives back the JSON snapshot (at float32 precision).
+ */
+public class BinaryTelemetryDecoder {
+
+    /**
+     * Decodes one frame.
+     *
+     * @param data   The bytes received from the Guest Science data topic
+     * @param frame  Frame to fill. For a full frame, fields missing from it are left invalid;
+     *               for a delta frame the fields it doesn't carry keep their previous values.
+     * @return The flags byte of the frame header
+     * @throws IllegalArgumentException if the bytes are not a frame of a known version
+     */
+    public int decode(byte[] data, int offset, int length, TelemetryFrame frame) {
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        if (length < BinaryTelemetryEncoder.HEADER_SIZE
+                || in.get() != BinaryTelemetryEncoder.MAGIC_0
+                || in.get() != BinaryTelemetryEncoder.MAGIC_1) {
+            throw new IllegalArgumentException("Not a telemetry frame");
+        }
+        int version = in.get() & 0xFF;
+        if (version != BinaryTelemetryEncoder.VERSION) {
+            throw new IllegalArgumentException("Unsupported telemetry frame version " + version);
+        }
+        int flags = in.get() & 0xFF;
+        long seq = in.getInt() & 0xFFFFFFFFL;
+        long stamp = in.getLong();
+        int fieldCount = in.get() & 0xFF;
+
+        if ((flags & BinaryTelemetryEncoder.FLAG_DELTA) == 0) {
+            frame.clearAll();
+        }
+        frame.setHeader(seq, stamp);
+        // Summaries are only sent now and then, they don't carry over to the next frame
+        frame.clearTopicSummaries();
+        try {
+            for (int n = 0; n < fieldCount; n++) {
+                int id = in.get() & 0xFF;
+                int size = in.get() & 0xFF;
+                TelemetryField field = TelemetryField.fromId(id);
+                if (size == BinaryTelemetryEncoder.LENGTH_CLEARED) {
+                    if (field != null) {
+                        frame.clear(field);
+                    }
+                    continue;
+                }
+                if (field == null) {
+                    // Sent by a newer encoder
+                    skip(in, size);
+                    continue;
+                }
+                readValues(in, field, size, frame);
+            }
+            if ((flags & BinaryTelemetryEncoder.FLAG_STATS) != 0) {
+                frame.setStatsInPlace((flags & BinaryTelemetryEncoder.FLAG_STATS_IN_PLACE) != 0);
+                int statsCount = in.get() & 0xFF;
+                for (int n = 0; n < statsCount; n++) {
+                    int id = in.get() & 0xFF;
+                    int size = in.get() & 0xFF;
+                    TelemetryField field = TelemetryField.fromId(id);
+                    if (field == null || field.getKind() != TelemetryField.Kind.NUMERIC) {
+                        skip(in, size);
+                        continue;
+                    }
+                    checkSize(field, size, TelemetryHistory.STAT_COUNT * field.getWidth() * 4);
+                    for (int stat = 0; stat < TelemetryHistory.STAT_COUNT; stat++) {
+                        for (int i = 0; i < field.getWidth(); i++) {
+                            frame.setStat(field, stat, i, in.getFloat());
+                        }
+                    }
+                }
+            }
+            if ((flags & BinaryTelemetryEncoder.FLAG_TOPIC_SUMMARY) != 0) {
+                int topicCount = in.get() & 0xFF;
+                for (int n = 0; n < topicCount; n++) {
+                    int signal = in.get() & 0xFF;
+                    if (signal >= TelemetryStateStore.MAX_SIGNALS) {
+                        throw new IllegalArgumentException("Bad signal id " + signal);
+                    }
+                    for (int summary = 0; summary < TopicMonitor.SUMMARY_COUNT; summary++) {
+                        frame.setTopicSummary(signal, null, summary, in.getFloat());
+                    }
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated telemetry frame");
+        }
+        return flags;
+    }
+
+    public int decode(byte[] data, TelemetryFrame frame) {
+        return decode(data, 0, data.length, frame);
+    }
+
+    private static void readValues(ByteBuffer in, TelemetryField field, int size, TelemetryFrame frame) {
+        if (field.getEncoding() == TelemetryField.Encoding.UTF8) {
+            byte[] text = new byte[size];
+            in.get(text);
+            frame.setRobotName(new String(text, StandardCharsets.UTF_8));
+            return;
+        }
+        checkSize(field, size, field.getWidth() * BinaryTelemetryEncoder.valueSize(field.getEncoding()));
+        for (int i = 0; i < field.getWidth(); i++) {
+            switch (field.getEncoding()) {
+                case FLOAT64:
+                    frame.set(field, i, in.getDouble());
+                    break;
+                case FLOAT32:
+                    frame.set(field, i, in.getFloat());
+                    break;
+                case INT32:
+                    frame.set(field, i, in.getInt());
+                    break;
+                case UINT8:
+                    frame.set(field, i, in.get() & 0xFF);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Field " + field + " is not sent in binary frames");
+            }
+        }
+    }
+
+    private static void skip(ByteBuffer in, int size) {
+        if (in.remaining() < size) {
+            throw new BufferUnderflowException();
+        }
+        in.position(in.position() + size);
+    }
+
+    private static void checkSize(TelemetryField field, int size, int expected) {
+        if (size != expected) {
+            throw new IllegalArgumentException("Field " + field + " is " + size + " bytes, expected " + expected);
+        }
+    }
+}
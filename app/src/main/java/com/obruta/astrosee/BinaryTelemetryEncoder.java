@@ -0,0 +1,248 @@
+package com.obruta.astrosee;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a {@link TelemetryFrame} as a compact binary frame, an alternative to the JSON snapshot
+ * for the Ground Data System downlink. See {@link BinaryTelemetryDecoder} for the reference reader.
+ *
+ * Frame layout (big-endian):
+ * <pre>
+ *   u8[2]  magic 'A' 'S'
+ *   u8     format version
+ *   u8     flags, see FLAG_DELTA
+ *   u32    frame sequence number
+ *   i64    frame stamp, ms since the epoch
+ *   u8     number of fields that follow
+ *   then, for every field: u8 field id, u8 length of what follows, then its values as given
+ *   by {@link TelemetryField#getEncoding()}; text is its UTF-8 bytes. In a delta frame a
+ *   field that no longer has a value is sent as its id and the length LENGTH_CLEARED alone
+ *   with FLAG_STATS, then:
+ *   u8     number of fields with statistics
+ *   then, for each: u8 field id, u8 length of what follows, then its min, max, mean and RMS
+ *          values as float32
+ *   with FLAG_TOPIC_SUMMARY, then:
+ *   u8     number of topic summaries
+ *   then, for each: u8 signal id, followed by the topic's rate (Hz), jitter, latency p50 and
+ *          latency p99 (ms) as float32, see {@link TopicMonitor}
+ * </pre>
+ * Fields with no value and dividers are left out. The lengths let readers skip fields they don't
+ * know, and readers that don't know about statistics can stop after the fields.
+ *
+ * The signal ids of the topic summaries are listed with their topic names by get_topic_stats.
+ */
+public class BinaryTelemetryEncoder {
+    public static final byte MAGIC_0 = 'A';
+    public static final byte MAGIC_1 = 'S';
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 17;
+    public static final int FIELD_COUNT_OFFSET = HEADER_SIZE - 1;
+    private static final int FLAGS_OFFSET = 3;
+    public static final int MAX_TEXT_LENGTH = 254;
+    // Length of a field that has been cleared since it was last sent
+    public static final int LENGTH_CLEARED = 0xFF;
+
+    // Set on frames that only carry some of the fields, those that changed since the previous
+    // frame or fitted in the downlink budget; a reader keeps its last values for the missing ones
+    public static final int FLAG_DELTA = 0x01;
+    // Set when the statistics section follows the fields
+    public static final int FLAG_STATS = 0x02;
+    // Set when fields with statistics are sent as their statistics only
+    public static final int FLAG_STATS_IN_PLACE = 0x04;
+    // Set when the topic summary section follows
+    public static final int FLAG_TOPIC_SUMMARY = 0x08;
+
+    private static final TelemetryField[] FIELDS = TelemetryField.values();
+
+    private final byte[] buffer = new byte[maxFrameSize()];
+    private final ByteBuffer out = ByteBuffer.wrap(buffer);
+
+    // The robot name rarely changes, so only re-encode it when it does
+    private String cachedText;
+    private byte[] cachedTextBytes = new byte[0];
+
+    /**
+     * Encodes the frame into the internal buffer.
+     *
+     * @return Number of bytes written to {@link #getBuffer()}
+     */
+    public int encode(TelemetryFrame frame) {
+        return encode(frame, TelemetryField.ALL_FIELDS, 0);
+    }
+
+    /**
+     * Encodes the fields of the frame selected by the mask into the internal buffer.
+     *
+     * @param fieldMask Fields to write, see {@link TelemetryField#mask()}
+     * @param flags     Value of the flags byte in the header; the statistics flags are added
+     *                  when the frame has statistics
+     * @return Number of bytes written to {@link #getBuffer()}
+     */
+    public int encode(TelemetryFrame frame, long fieldMask, int flags) {
+        out.clear();
+        out.put(MAGIC_0).put(MAGIC_1).put((byte) VERSION).put((byte) 0);
+        out.putInt((int) frame.getSeq());
+        out.putLong(frame.getStamp());
+        out.put((byte) 0);
+
+        int fieldCount = 0;
+        int statsCount = 0;
+        for (TelemetryField field : FIELDS) {
+            if (field.getEncoding() == TelemetryField.Encoding.NONE || (fieldMask & field.mask()) == 0) {
+                continue;
+            }
+            if (frame.hasStats(field)) {
+                statsCount++;
+            }
+            if (!frame.isValid(field)) {
+                // A full frame leaves it out, but after a delta the reader would keep the old value
+                if ((flags & FLAG_DELTA) != 0) {
+                    out.put((byte) field.getId()).put((byte) LENGTH_CLEARED);
+                    fieldCount++;
+                }
+                continue;
+            }
+            if (!frame.isValueSent(field)) {
+                continue;
+            }
+            out.put((byte) field.getId());
+            int lengthOffset = out.position();
+            out.put((byte) 0);
+            putValues(frame, field);
+            buffer[lengthOffset] = (byte) (out.position() - lengthOffset - 1);
+            fieldCount++;
+        }
+        buffer[FIELD_COUNT_OFFSET] = (byte) fieldCount;
+
+        if (statsCount > 0) {
+            flags |= FLAG_STATS | (frame.isStatsInPlace() ? FLAG_STATS_IN_PLACE : 0);
+            out.put((byte) statsCount);
+            for (TelemetryField field : FIELDS) {
+                if (field.getEncoding() == TelemetryField.Encoding.NONE || (fieldMask & field.mask()) == 0
+                        || !frame.hasStats(field)) {
+                    continue;
+                }
+                out.put((byte) field.getId());
+                out.put((byte) (TelemetryHistory.STAT_COUNT * field.getWidth() * 4));
+                for (int stat = 0; stat < TelemetryHistory.STAT_COUNT; stat++) {
+                    for (int i = 0; i < field.getWidth(); i++) {
+                        out.putFloat((float) frame.getStat(field, stat, i));
+                    }
+                }
+            }
+        }
+
+        if (frame.hasTopicSummaries()) {
+            flags |= FLAG_TOPIC_SUMMARY;
+            int countOffset = out.position();
+            out.put((byte) 0);
+            int topicCount = 0;
+            for (int signal = 0; signal < TelemetryStateStore.MAX_SIGNALS; signal++) {
+                if (!frame.hasTopicSummary(signal)) {
+                    continue;
+                }
+                out.put((byte) signal);
+                for (int summary = 0; summary < TopicMonitor.SUMMARY_COUNT; summary++) {
+                    out.putFloat((float) frame.getTopicSummary(signal, summary));
+                }
+                topicCount++;
+            }
+            buffer[countOffset] = (byte) topicCount;
+        }
+        buffer[FLAGS_OFFSET] = (byte) flags;
+        return out.position();
+    }
+
+    /** Backing array of the last encoded frame, reused by the next call to encode. */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    private void putValues(TelemetryFrame frame, TelemetryField field) {
+        if (field.getEncoding() == TelemetryField.Encoding.UTF8) {
+            out.put(textBytes(frame.getRobotName()));
+            return;
+        }
+        for (int i = 0; i < field.getWidth(); i++) {
+            double value = frame.get(field, i);
+            switch (field.getEncoding()) {
+                case FLOAT64:
+                    out.putDouble(value);
+                    break;
+                case FLOAT32:
+                    out.putFloat((float) value);
+                    break;
+                case INT32:
+                    out.putInt((int) value);
+                    break;
+                case UINT8:
+                    out.put((byte) value);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private byte[] textBytes(String text) {
+        if (text != cachedText) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_TEXT_LENGTH) {
+                // Cut before the character that doesn't fit, not through it
+                int length = MAX_TEXT_LENGTH;
+                while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+                    length--;
+                }
+                byte[] truncated = new byte[length];
+                System.arraycopy(bytes, 0, truncated, 0, length);
+                bytes = truncated;
+            }
+            cachedText = text;
+            cachedTextBytes = bytes;
+        }
+        return cachedTextBytes;
+    }
+
+    /** Bytes taken by one value of the given encoding. */
+    public static int valueSize(TelemetryField.Encoding encoding) {
+        switch (encoding) {
+            case FLOAT64:
+                return 8;
+            case FLOAT32:
+            case INT32:
+                return 4;
+            case UINT8:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /** Bytes taken by a field (id and length included) when it is present in a frame. */
+    public static int fieldSize(TelemetryField field) {
+        if (field.getEncoding() == TelemetryField.Encoding.NONE) {
+            return 0;
+        }
+        if (field.getEncoding() == TelemetryField.Encoding.UTF8) {
+            return 2 + MAX_TEXT_LENGTH;
+        }
+        return 2 + field.getWidth() * valueSize(field.getEncoding());
+    }
+
+    /** Bytes taken by a field's entry (id and length included) in the statistics section. */
+    public static int statsSize(TelemetryField field) {
+        if (field.getKind() != TelemetryField.Kind.NUMERIC) {
+            return 0;
+        }
+        return 2 + TelemetryHistory.STAT_COUNT * field.getWidth() * 4;
+    }
+
+    private static int maxFrameSize() {
+        int size = HEADER_SIZE + 1;
+        for (TelemetryField field : FIELDS) {
+            size += fieldSize(field) + statsSize(field);
+        }
+        return size + 1 + 1 + TelemetryStateStore.MAX_SIGNALS * (1 + TopicMonitor.SUMMARY_COUNT * 4);
+    }
+}
@@ -0,0 +1,208 @@
+package com.obruta.astrosee;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A few mutable ARGB_8888 bitmaps that camera frames are decoded into with
+ * {@link BitmapFactory.Options#inBitmap}, so decoding a frame doesn't allocate several megabytes
+ * and the bitmap can be drawn on as is.
+ *
+ * Bitmaps are handed out with {@link #acquire} and must be given back with {@link #release} once
+ * nothing reads them any more. Safe to use from any thread.
+ */
+public class BitmapPool {
+    public static final int DEFAULT_CAPACITY = 3;
+
+    private final int capacity;
+    private final ArrayDeque<Bitmap> free = new ArrayDeque<>();
+    // Bitmaps handed out or free, at most capacity
+    private final Set<Bitmap> owned = new HashSet<>();
+
+    public BitmapPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BitmapPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * A bitmap big enough to decode a width x height image into.
+     *
+     * @return The bitmap, or null if all of them are in use
+     */
+    public synchronized Bitmap acquire(int width, int height) {
+        int bytes = width * height * 4;
+        Bitmap bitmap;
+        while ((bitmap = free.poll()) != null) {
+            if (bitmap.getAllocationByteCount() >= bytes) {
+                return bitmap;
+            }
+            // Too small for the frames we now get
+            owned.remove(bitmap);
+            bitmap.recycle();
+        }
+        if (owned.size() >= capacity) {
+            return null;
+        }
+        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        owned.add(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap back. Bitmaps that didn't come from the pool are adopted while it has room,
+     * if they can be decoded into.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || free.contains(bitmap)) {
+            return;
+        }
+        if (!owned.contains(bitmap)) {
+            if (owned.size() >= capacity || !bitmap.isMutable()
+                    || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                return;
+            }
+            owned.add(bitmap);
+        }
+        free.push(bitmap);
+    }
+
+    /**
+     * Decodes a JPEG into a pooled bitmap when one fits, otherwise into a new mutable bitmap.
+     *
+     * @param options Reused by the caller's thread from call to call
+     * @return The bitmap, to release once done with it, or null if the data isn't an image
+     */
+    public Bitmap decode(byte[] data, int offset, int length, BitmapFactory.Options options) {
+        return decode(data, offset, length, options, 0, 0);
+    }
+
+    /**
+     * Decodes a JPEG scaled down by the largest power of two that keeps it at least minWidth x
+     * minHeight, into a pooled bitmap when one fits, otherwise into a new mutable bitmap. The
+     * decoder does the scaling, so the full size image is never held in memory.
+     *
+     * Afterwards, options.outWidth and outHeight are the full size of the image and
+     * options.inSampleSize the factor it was scaled down by.
+     *
+     * @param options Reused by the caller's thread from call to call
+     * @param minWidth Smallest width wanted, 0 for the full size
+     * @return The bitmap, to release once done with it, or null if the data isn't an image
+     */
+    public Bitmap decode(byte[] data, int offset, int length, BitmapFactory.Options options,
+                         int minWidth, int minHeight) {
+        options.inSampleSize = 1;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        options.inJustDecodeBounds = false;
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        prepare(options, width, height, minWidth, minHeight);
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // The decoder couldn't reuse the bitmap for this image
+            discard(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        } finally {
+            unused(options.inBitmap, bitmap);
+            options.inBitmap = null;
+            options.outWidth = width;
+            options.outHeight = height;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Like {@link #decode(byte[], int, int, BitmapFactory.Options, int, int)}, for a region of
+     * the JPEG only: the rest of the image is mostly skipped rather than decoded.
+     *
+     * @param region Part of the image to decode, clipped to the image in place; the whole image
+     *               if nothing of it is inside
+     */
+    public Bitmap decodeRegion(byte[] data, int offset, int length, Rect region,
+                               BitmapFactory.Options options, int minWidth, int minHeight) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(data, offset, length, false);
+        } catch (IOException e) {
+            return null;
+        }
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        try {
+            region.set(Math.max(0, region.left), Math.max(0, region.top),
+                    Math.min(width, region.right), Math.min(height, region.bottom));
+            if (region.width() <= 0 || region.height() <= 0) {
+                region.set(0, 0, width, height);
+            }
+            prepare(options, region.width(), region.height(), minWidth, minHeight);
+            Bitmap bitmap = null;
+            try {
+                bitmap = decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                discard(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = decoder.decodeRegion(region, options);
+            } finally {
+                unused(options.inBitmap, bitmap);
+            }
+            return bitmap;
+        } finally {
+            decoder.recycle();
+            options.inBitmap = null;
+            options.outWidth = width;
+            options.outHeight = height;
+        }
+    }
+
+    // Sets the options up to decode width x height pixels into a pooled bitmap
+    private void prepare(BitmapFactory.Options options, int width, int height,
+                         int minWidth, int minHeight) {
+        int sampleSize = 1;
+        if (minWidth > 0 && minHeight > 0) {
+            while (width / (sampleSize * 2) >= minWidth && height / (sampleSize * 2) >= minHeight) {
+                sampleSize *= 2;
+            }
+        }
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // The decoder rounds the scaled size up
+        options.inBitmap = acquire((width + sampleSize - 1) / sampleSize,
+                (height + sampleSize - 1) / sampleSize);
+    }
+
+    // Gives the pooled bitmap back if the decode didn't end up in it: a corrupt image decodes to
+    // null, or the decoder threw
+    private void unused(Bitmap pooled, Bitmap decoded) {
+        if (pooled != null && decoded != pooled) {
+            release(pooled);
+        }
+    }
+
+    private synchronized void discard(Bitmap bitmap) {
+        owned.remove(bitmap);
+        bitmap.recycle();
+    }
+}
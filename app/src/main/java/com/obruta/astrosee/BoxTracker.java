@@ -0,0 +1,143 @@
+package com.obruta.astrosee;
+
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/**
+ * Follows the target's bounding box between detections with an alpha-beta filter: the centre
+ * and the size are each assumed to change at a constant rate, corrected by every detection. In
+ * between, the box is predicted from the frame's arrival time, so a position can be published for
+ * every camera frame while the detector only runs on some of them.
+ *
+ * The detector is due every detectEvery frames, and sooner when the prediction is in doubt: the
+ * last detection was far from where the target was predicted, it is older than maxPredictMs, or
+ * the predicted box left the frame.
+ *
+ * Configured from any thread, otherwise only used by the inference thread.
+ */
+public class BoxTracker {
+    public static final int DEFAULT_DETECT_EVERY = 3;
+    public static final float DEFAULT_ALPHA = 0.6f;
+    public static final float DEFAULT_BETA = 0.2f;
+    // A detection further than this from the prediction, as a fraction of the box's larger side,
+    // has the detector run on the next frame too
+    public static final float MAX_RESIDUAL = 0.25f;
+    public static final long DEFAULT_MAX_PREDICT_MS = 1000;
+
+    // Centre x, centre y, width and height
+    private static final int STATES = 4;
+
+    private volatile boolean enabled = false;
+    private volatile int detectEvery = DEFAULT_DETECT_EVERY;
+    private volatile float alpha = DEFAULT_ALPHA;
+    private volatile float beta = DEFAULT_BETA;
+    private volatile long maxPredictMs = DEFAULT_MAX_PREDICT_MS;
+
+    // Only touched by the inference thread
+    private final float[] state = new float[STATES];
+    // Per second
+    private final float[] rate = new float[STATES];
+    private final float[] measured = new float[STATES];
+    private boolean tracking = false;
+    private long lastDetectionNs;
+    private int framesSinceDetection;
+    private float lastResidual;
+
+    /**
+     * @param detectEvery  Run the detector on one frame in this many, 1 for every frame
+     * @param alpha        Share of a detection's residual taken into the box, 0 to 1
+     * @param beta         Share of it taken into the rate of change, 0 to 1
+     * @param maxPredictMs Longest the box is predicted without a detection
+     */
+    public void configure(boolean enabled, int detectEvery, float alpha, float beta, long maxPredictMs) {
+        this.detectEvery = Math.max(1, detectEvery);
+        this.alpha = Math.max(0, Math.min(1, alpha));
+        this.beta = Math.max(0, Math.min(1, beta));
+        this.maxPredictMs = Math.max(0, maxPredictMs);
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether the detector should run on a frame, or the box only be predicted.
+     *
+     * @param timeNs     Arrival of the frame, SystemClock.elapsedRealtimeNanos()
+     * @param frameWidth Size of the camera image
+     */
+    public boolean isDetectionDue(long timeNs, int frameWidth, int frameHeight) {
+        if (!enabled || !tracking || framesSinceDetection + 1 >= detectEvery
+                || lastResidual > MAX_RESIDUAL
+                || timeNs - lastDetectionNs > maxPredictMs * 1000000) {
+            return true;
+        }
+        float dt = (timeNs - lastDetectionNs) / 1e9f;
+        float x = state[0] + rate[0] * dt;
+        float y = state[1] + rate[1] * dt;
+        return x < 0 || y < 0 || x > frameWidth || y > frameHeight;
+    }
+
+    /**
+     * The box at a frame's arrival, extrapolated from the last detection, and counts the frame as
+     * one without detection.
+     */
+    public RectF predict(long timeNs, RectF out) {
+        framesSinceDetection++;
+        return boxAt(timeNs, out);
+    }
+
+    /**
+     * Corrects the track with a detection.
+     *
+     * @param box    Detected box on the camera image, null if the target wasn't found
+     * @param timeNs Arrival of the frame it was found in
+     */
+    public void correct(RectF box, long timeNs) {
+        framesSinceDetection = 0;
+        if (box == null) {
+            tracking = false;
+            return;
+        }
+        measured[0] = (box.left + box.right) / 2;
+        measured[1] = (box.top + box.bottom) / 2;
+        measured[2] = box.right - box.left;
+        measured[3] = box.bottom - box.top;
+        if (!tracking) {
+            System.arraycopy(measured, 0, state, 0, STATES);
+            Arrays.fill(rate, 0);
+            tracking = true;
+            lastResidual = 0;
+            lastDetectionNs = timeNs;
+            return;
+        }
+
+        float dt = Math.max(1e-3f, (timeNs - lastDetectionNs) / 1e9f);
+        float a = alpha;
+        float b = beta;
+        float centreResidual = 0;
+        for (int i = 0; i < STATES; i++) {
+            float predicted = state[i] + rate[i] * dt;
+            float residual = measured[i] - predicted;
+            state[i] = predicted + a * residual;
+            rate[i] += b * residual / dt;
+            if (i < 2) {
+                centreResidual = Math.max(centreResidual, Math.abs(residual));
+            }
+        }
+        lastResidual = centreResidual / Math.max(1, Math.max(measured[2], measured[3]));
+        lastDetectionNs = timeNs;
+    }
+
+    private RectF boxAt(long timeNs, RectF out) {
+        float dt = (timeNs - lastDetectionNs) / 1e9f;
+        float x = state[0] + rate[0] * dt;
+        float y = state[1] + rate[1] * dt;
+        float width = Math.max(1, state[2] + rate[2] * dt);
+        float height = Math.max(1, state[3] + rate[3] * dt);
+        out.set(x - width / 2, y - height / 2, x + width / 2, y + height / 2);
+        return out;
+    }
+}
@@ -0,0 +1,668 @@
+package com.obruta.astrosee;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.task.core.BaseOptions;
+import org.tensorflow.lite.task.vision.detector.Detection;
+import org.tensorflow.lite.task.vision.detector.ObjectDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs several detectors on the same frame at once, and joins what they found by the frame's
+ * sequence number. The first enabled model runs on the calling thread, the others each on a
+ * worker of their own, so a frame takes about as long as its slowest model rather than the sum.
+ *
+ * The models share a budget of interpreter threads, split by their weights, so that running
+ * them side by side doesn't oversubscribe the cores; a model can instead be given a number of
+ * threads of its own, as the autotuner does for the detection model. Models are enabled and
+ * the budget changed from any thread; the detectors are rebuilt on the inference thread, by
+ * {@link #prepare} while it waits for frames, or otherwise before its next frame.
+ *
+ * A model can also be replaced without stopping the frames: {@link #stage} loads the new model
+ * and tests it on the caller's thread, and the detector is swapped in before the next frame. The
+ * previous one is kept until the new one has got through a real frame, and swapped back if it
+ * doesn't; the model swapped back from is then reported by {@link #takeRejected}.
+ */
+public class DetectorScheduler {
+    private static final String TAG = "DetectorScheduler";
+    public static final int DEFAULT_THREAD_BUDGET = 4;
+
+    /** Whether the detectors can take frames. */
+    public enum State {
+        LOADING, WARMING_UP, READY, FAILED
+    }
+
+    /** A model and how its detector is built. */
+    public static class Model {
+        private final String name;
+        private final String file;
+        private final float scoreThreshold;
+        private final int maxResults;
+        private final int weight;
+
+        /**
+         * @param file   Model in the app's assets, or an absolute path to one on the HLP
+         * @param weight Share of the thread budget, relative to the other models
+         */
+        public Model(String name, String file, float scoreThreshold, int maxResults, int weight) {
+            this.name = name;
+            this.file = file;
+            this.scoreThreshold = scoreThreshold;
+            this.maxResults = maxResults;
+            this.weight = Math.max(1, weight);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        /** The same model settings, with another model file. */
+        public Model withFile(String file) {
+            return new Model(name, file, scoreThreshold, maxResults, weight);
+        }
+    }
+
+    /** What every model found on one frame. */
+    public static class Results {
+        private long seq = -1;
+        private final List<List<Detection>> detections = new ArrayList<>();
+        private double[] times = new double[0];
+
+        public long getSeq() {
+            return seq;
+        }
+
+        /** Detections of a model, by its index; null if it didn't run on the frame. */
+        public List<Detection> get(int model) {
+            return model < detections.size() ? detections.get(model) : null;
+        }
+
+        /** Time a model took on the frame, ms; NaN if it didn't run on it. */
+        public double getMs(int model) {
+            return model < times.length ? times[model] : Double.NaN;
+        }
+    }
+
+    private final Context context;
+    private final List<Model> models = new ArrayList<>();
+    private final boolean[] enabled;
+    private volatile int threadBudget;
+    // Threads of each model in place of its share of the budget, 0 for the share
+    private final int[] threads;
+    private volatile boolean nnapi = false;
+    private volatile boolean changed = true;
+    // Whether the enabled models or the budget changed, rather than only some model files
+    private boolean rebuildAll = true;
+    private final boolean[] reload;
+    private volatile State state = State.LOADING;
+    private volatile long loadMs;
+    private volatile long warmUpMs;
+    // Detectors loaded and tested by stage, to be swapped in before the next frame
+    private final Model[] stagedModels;
+    private final ObjectDetector[] staged;
+    private volatile boolean hasStaged = false;
+    // Models that failed on their first frame and were swapped back from, until taken
+    private final Model[] rejected;
+    // Set once the detectors are closed, after which nothing more is staged
+    private boolean closed = false;
+
+    // Only touched by the inference thread
+    private final ObjectDetector[] detectors;
+    private final DetectTask[] tasks;
+    // Detectors and models replaced by staged ones, until those have run on a frame
+    private final ObjectDetector[] retired;
+    private final Model[] retiredModels;
+    // Time each model took on the frame, written by the thread that ran it
+    private final double[] times;
+    private final List<Future<List<Detection>>> pending = new ArrayList<>();
+    private final List<Future<ObjectDetector>> loading = new ArrayList<>();
+    private final Results warmUpResults = new Results();
+    private ExecutorService workers;
+
+    // One model on one frame
+    private class DetectTask implements Callable<List<Detection>> {
+        private final int index;
+        private TensorImage image;
+
+        DetectTask(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public List<Detection> call() {
+            return run(index, image);
+        }
+    }
+
+    /** @param models In the order of the indices results are looked up with */
+    public DetectorScheduler(Context context, List<Model> models, int threadBudget) {
+        this.context = context;
+        this.models.addAll(models);
+        this.enabled = new boolean[models.size()];
+        this.reload = new boolean[models.size()];
+        this.detectors = new ObjectDetector[models.size()];
+        this.tasks = new DetectTask[models.size()];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new DetectTask(i);
+        }
+        this.stagedModels = new Model[models.size()];
+        this.staged = new ObjectDetector[models.size()];
+        this.rejected = new Model[models.size()];
+        this.retired = new ObjectDetector[models.size()];
+        this.retiredModels = new Model[models.size()];
+        this.times = new double[models.size()];
+        this.threads = new int[models.size()];
+        this.threadBudget = Math.max(1, threadBudget);
+    }
+
+    public synchronized void setEnabled(int model, boolean enable) {
+        enabled[model] = enable;
+        rebuildAll = true;
+        changed = true;
+    }
+
+    public synchronized boolean isEnabled(int model) {
+        return enabled[model];
+    }
+
+    /** Interpreter threads shared by the enabled models, at least one each. */
+    public synchronized void setThreadBudget(int threads) {
+        threadBudget = Math.max(1, threads);
+        rebuildAll = true;
+        changed = true;
+    }
+
+    public int getThreadBudget() {
+        return threadBudget;
+    }
+
+    /** Interpreter threads of one model in place of its share of the budget, 0 for the share. */
+    public synchronized void setThreads(int model, int threads) {
+        this.threads[model] = Math.max(0, threads);
+        rebuildAll = true;
+        changed = true;
+    }
+
+    /** Runs the models through NNAPI rather than on the CPU, where the device supports it. */
+    public synchronized void setNnapi(boolean enable) {
+        nnapi = enable;
+        rebuildAll = true;
+        changed = true;
+    }
+
+    public boolean isNnapi() {
+        return nnapi;
+    }
+
+    public synchronized Model getModel(int model) {
+        return models.get(model);
+    }
+
+    /**
+     * Swaps a model for another, on the inference thread before its next frame. Only its own
+     * detector is rebuilt, with the threads the previous one had.
+     */
+    public synchronized void setModel(int index, Model model) {
+        models.set(index, model);
+        reload[index] = true;
+        changed = true;
+    }
+
+    /**
+     * Loads another file for a model and tests it on an image, on the calling thread. If it
+     * runs, it replaces the model's detector before the next frame; otherwise it is closed, and
+     * the model keeps running as it was.
+     *
+     * @param file Model in the app's assets, or an absolute path to one on the HLP
+     * @param image Any image the size of the frames to come
+     * @return Whether the model loaded and ran
+     */
+    public boolean stage(int index, String file, TensorImage image) {
+        Model model;
+        int threads;
+        synchronized (this) {
+            model = models.get(index).withFile(file);
+            int totalWeight = 0;
+            for (int i = 0; i < enabled.length; i++) {
+                if (enabled[i] || i == index) {
+                    totalWeight += models.get(i).weight;
+                }
+            }
+            threads = threads(model, this.threads[index], threadBudget, totalWeight);
+        }
+        ObjectDetector detector = load(model, threads);
+        if (detector == null) {
+            return false;
+        }
+        try {
+            detector.detect(image);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Test of " + file + " failed", e);
+            detector.close();
+            return false;
+        }
+        synchronized (this) {
+            if (closed) {
+                // Tested past the shutdown, there is nothing to swap it into
+                detector.close();
+                return false;
+            }
+            if (staged[index] != null) {
+                // Superseded before it was swapped in
+                staged[index].close();
+            }
+            staged[index] = detector;
+            stagedModels[index] = model;
+            hasStaged = true;
+        }
+        return true;
+    }
+
+    /**
+     * The model that was swapped back from since the last call, because it failed on its first
+     * frame; {@link #getModel} is then the one running again.
+     *
+     * @return The rejected model, or null if there was none
+     */
+    public synchronized Model takeRejected(int index) {
+        Model model = rejected[index];
+        rejected[index] = null;
+        return model;
+    }
+
+    /** Whether the detectors are to be rebuilt, for a change of models or budget. */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /** Time the last rebuild took to load the models, ms. */
+    public long getLoadMs() {
+        return loadMs;
+    }
+
+    /** Time the warm-up after it took, ms. */
+    public long getWarmUpMs() {
+        return warmUpMs;
+    }
+
+    /**
+     * Rebuilds the detectors if they changed, and runs them once on a frame of no interest, so
+     * that the first real frame doesn't pay for loading the models or for their first run.
+     *
+     * @param image Any image the size of the frames to come
+     */
+    public void prepare(TensorImage image) throws InterruptedException {
+        if (changed) {
+            rebuild();
+        }
+        if (state != State.WARMING_UP) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            detect(-1, image, warmUpResults);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Warm-up failed", e);
+            state = State.FAILED;
+            return;
+        }
+        warmUpMs = (System.nanoTime() - start) / 1000000;
+        state = State.READY;
+        Log.i(TAG, "Ready after " + loadMs + " ms loading and " + warmUpMs + " ms warming up");
+    }
+
+    /**
+     * Runs every enabled model on the image, and waits for all of them.
+     *
+     * @param seq Sequence number of the frame, kept with the results
+     * @param out Filled with the detections of each model
+     */
+    public void detect(long seq, TensorImage image, Results out) throws InterruptedException {
+        if (changed) {
+            rebuild();
+        }
+        if (state == State.WARMING_UP) {
+            // Not prepared, this frame warms up the detectors
+            state = State.READY;
+        }
+        if (hasStaged) {
+            swapStaged();
+        }
+        out.seq = seq;
+        out.detections.clear();
+        if (out.times.length != times.length) {
+            out.times = new double[times.length];
+        }
+        Arrays.fill(times, Double.NaN);
+        int first = -1;
+        for (int i = 0; i < detectors.length; i++) {
+            out.detections.add(null);
+            if (detectors[i] == null) {
+                continue;
+            }
+            if (first < 0) {
+                first = i;
+                continue;
+            }
+            tasks[i].image = image;
+            pending.add(workers.submit(tasks[i]));
+        }
+        try {
+            if (first >= 0) {
+                out.detections.set(first, run(first, image));
+            }
+            int next = 0;
+            for (int i = first + 1; i < detectors.length; i++) {
+                if (detectors[i] != null) {
+                    out.detections.set(i, get(pending.get(next++), i));
+                }
+            }
+        } finally {
+            // Nothing may still be reading the image once it is reused
+            for (Future<List<Detection>> future : pending) {
+                if (!future.isDone()) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        // Already reported
+                    }
+                }
+            }
+            pending.clear();
+            // The futures were waited for, so the workers' times are seen
+            System.arraycopy(times, 0, out.times, 0, times.length);
+        }
+    }
+
+    // Runs a detector, and settles a swap: the detector it replaced is closed once it gets
+    // through a frame, and swapped back in if it doesn't
+    private List<Detection> run(int index, TensorImage image) {
+        long start = System.nanoTime();
+        try {
+            List<Detection> found = detectors[index].detect(image);
+            times[index] = (System.nanoTime() - start) / 1e6;
+            if (retired[index] != null) {
+                retired[index].close();
+                retired[index] = null;
+                retiredModels[index] = null;
+            }
+            return found;
+        } catch (RuntimeException e) {
+            if (retired[index] == null) {
+                throw e;
+            }
+            Log.e(TAG, "Rolling back " + getModel(index).getFile() + " to " + retiredModels[index].getFile(), e);
+            detectors[index].close();
+            detectors[index] = retired[index];
+            retired[index] = null;
+            synchronized (this) {
+                rejected[index] = models.get(index);
+                models.set(index, retiredModels[index]);
+            }
+            retiredModels[index] = null;
+            start = System.nanoTime();
+            List<Detection> found = detectors[index].detect(image);
+            times[index] = (System.nanoTime() - start) / 1e6;
+            return found;
+        }
+    }
+
+    // Puts the staged detectors in place of the running ones
+    private void swapStaged() {
+        synchronized (this) {
+            hasStaged = false;
+            for (int i = 0; i < staged.length; i++) {
+                if (staged[i] == null) {
+                    continue;
+                }
+                if (detectors[i] == null && enabled[i]) {
+                    // Its model didn't load, the tested one takes its place with nothing to fall
+                    // back to
+                    detectors[i] = staged[i];
+                } else if (detectors[i] == null) {
+                    // Not running, the model is loaded from its new file when it is enabled
+                    staged[i].close();
+                } else {
+                    if (retired[i] == null) {
+                        retired[i] = detectors[i];
+                        retiredModels[i] = models.get(i);
+                    } else {
+                        // Never got through a frame, the one before it is still the fallback
+                        detectors[i].close();
+                    }
+                    detectors[i] = staged[i];
+                }
+                models.set(i, stagedModels[i]);
+                Log.i(TAG, "Swapped in " + stagedModels[i].getFile());
+                staged[i] = null;
+                stagedModels[i] = null;
+            }
+            if (state == State.FAILED && !isMissing()) {
+                state = State.READY;
+            }
+        }
+    }
+
+    // Whether an enabled model has no detector
+    private boolean isMissing() {
+        for (int i = 0; i < detectors.length; i++) {
+            if (enabled[i] && detectors[i] == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Detection> get(Future<List<Detection>> future, int model) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, getModel(model).getName() + " failed", e.getCause());
+            return Collections.emptyList();
+        }
+    }
+
+    // Builds the detectors of the enabled models with their share of the budget, the first on
+    // the calling thread and the others at the same time on the workers
+    private void rebuild() throws InterruptedException {
+        state = State.LOADING;
+        long start = System.nanoTime();
+        boolean[] wanted;
+        boolean all;
+        boolean[] swapped;
+        Model[] models;
+        int[] fixed;
+        synchronized (this) {
+            changed = false;
+            wanted = enabled.clone();
+            all = rebuildAll;
+            swapped = reload.clone();
+            rebuildAll = false;
+            Arrays.fill(reload, false);
+            models = this.models.toArray(new Model[0]);
+            fixed = threads.clone();
+        }
+        int budget = threadBudget;
+        int totalWeight = 0;
+        int count = 0;
+        for (int i = 0; i < wanted.length; i++) {
+            if (wanted[i]) {
+                totalWeight += models[i].weight;
+                count++;
+            }
+        }
+        if (!all) {
+            reload(wanted, swapped, models, fixed, budget, totalWeight, start);
+            return;
+        }
+        closeDetectors();
+        if (count > 1) {
+            workers = Executors.newFixedThreadPool(count - 1);
+        }
+        int first = -1;
+        for (int i = 0; i < wanted.length; i++) {
+            if (!wanted[i]) {
+                continue;
+            }
+            if (first < 0) {
+                first = i;
+                continue;
+            }
+            final Model model = models[i];
+            final int threads = threads(model, fixed[i], budget, totalWeight);
+            loading.add(workers.submit(new Callable<ObjectDetector>() {
+                @Override
+                public ObjectDetector call() {
+                    return load(model, threads);
+                }
+            }));
+        }
+        boolean failed = false;
+        try {
+            if (first >= 0) {
+                Model model = models[first];
+                detectors[first] = load(model, threads(model, fixed[first], budget, totalWeight));
+                failed = detectors[first] == null;
+            }
+            int next = 0;
+            for (int i = first + 1; i < wanted.length; i++) {
+                if (!wanted[i]) {
+                    continue;
+                }
+                try {
+                    detectors[i] = loading.get(next++).get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Could not load " + models[i].file, e.getCause());
+                }
+                failed |= detectors[i] == null;
+            }
+        } finally {
+            loading.clear();
+        }
+        loadMs = (System.nanoTime() - start) / 1000000;
+        state = failed ? State.FAILED : State.WARMING_UP;
+    }
+
+    // Rebuilds only the detectors whose model was swapped, leaving the others running
+    private void reload(boolean[] wanted, boolean[] swapped, Model[] models, int[] fixed, int budget,
+                        int totalWeight, long start) {
+        boolean failed = false;
+        for (int i = 0; i < wanted.length; i++) {
+            if (!wanted[i]) {
+                continue;
+            }
+            if (swapped[i]) {
+                closeDetector(i);
+                detectors[i] = load(models[i], threads(models[i], fixed[i], budget, totalWeight));
+            }
+            failed |= detectors[i] == null;
+        }
+        loadMs = (System.nanoTime() - start) / 1000000;
+        state = failed ? State.FAILED : State.WARMING_UP;
+    }
+
+    // The model's own threads if it has them, otherwise its share of the budget
+    private static int threads(Model model, int fixed, int budget, int totalWeight) {
+        return fixed > 0 ? fixed : Math.max(1, budget * model.weight / totalWeight);
+    }
+
+    /** Options of a model's detector, on the CPU with that many threads or through NNAPI. */
+    static ObjectDetector.ObjectDetectorOptions options(Model model, int threads, boolean nnapi) {
+        BaseOptions.Builder baseOptions = BaseOptions.builder().setNumThreads(threads);
+        if (nnapi) {
+            baseOptions.useNnapi();
+        }
+        return ObjectDetector.ObjectDetectorOptions.builder()
+                .setScoreThreshold(model.scoreThreshold)
+                .setMaxResults(model.maxResults).setBaseOptions(baseOptions.build()).build();
+    }
+
+    /** A model's detector, from the app's assets or from an absolute path on the HLP. */
+    static ObjectDetector create(Context context, Model model, ObjectDetector.ObjectDetectorOptions options)
+            throws IOException {
+        return model.file.startsWith("/")
+                ? ObjectDetector.createFromFileAndOptions(new File(model.file), options)
+                : ObjectDetector.createFromFileAndOptions(context, model.file, options);
+    }
+
+    // Null if the model couldn't be loaded
+    private ObjectDetector load(Model model, int threads) {
+        boolean useNnapi = nnapi;
+        try {
+            ObjectDetector detector = create(context, model, options(model, threads, useNnapi));
+            Log.i(TAG, "Running " + model.name + (useNnapi ? " through NNAPI" : " on " + threads + " threads"));
+            return detector;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load " + model.file, e);
+            return null;
+        }
+    }
+
+    /** Closes every detector; call from the inference thread, or once it has stopped. */
+    public void close() {
+        closeDetectors();
+        synchronized (this) {
+            closed = true;
+            for (int i = 0; i < staged.length; i++) {
+                if (staged[i] != null) {
+                    staged[i].close();
+                    staged[i] = null;
+                    stagedModels[i] = null;
+                }
+            }
+            hasStaged = false;
+        }
+    }
+
+    private void closeDetectors() {
+        if (workers != null) {
+            workers.shutdownNow();
+            try {
+                // A model may still be running on a frame the caller gave up on
+                workers.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            workers = null;
+        }
+        for (int i = 0; i < detectors.length; i++) {
+            closeDetector(i);
+            tasks[i].image = null;
+        }
+    }
+
+    // Along with the one it replaced, if it was kept
+    private void closeDetector(int index) {
+        if (detectors[index] != null && !detectors[index].isClosed()) {
+            detectors[index].close();
+        }
+        detectors[index] = null;
+        if (retired[index] != null) {
+            retired[index].close();
+            retired[index] = null;
+            retiredModels[index] = null;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.obruta.astrosee;
+
+import android.graphics.Bitmap;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.support.image.ColorSpaceType;
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A model input tensor in a direct buffer, filled straight from a decoded frame: one pass
+ * resizes the frame bilinearly to the tensor, converts it to RGB or gray and normalises it
+ * through a lookup table, so filling the tensor allocates nothing.
+ *
+ * The {@link TensorImage} is bound to the buffer once; every {@link #fill} rewrites the buffer
+ * under it. Only for one thread.
+ */
+public class DirectTensorInput {
+    // Fixed point weights of the bilinear interpolation
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+    private final int width;
+    private final int height;
+    private final int channels;
+    private final DataType dataType;
+    private final ByteBuffer buffer;
+    private final TensorImage image;
+    // Pixel value to tensor value, by data type
+    private final byte[] byteTable = new byte[256];
+    private final float[] floatTable = new float[256];
+
+    // Source pixels and interpolation tables, reallocated only when the source size changes
+    private int[] pixels = new int[0];
+    private int sourceWidth;
+    private int sourceHeight;
+    private final int[] columns;
+    private final int[] columnWeights;
+    private final int[] rows;
+    private final int[] rowWeights;
+
+    /**
+     * @param grayscale Whether the tensor has one channel rather than three
+     * @param dataType  UINT8 or FLOAT32; pixel values v are stored as (v - mean) / std
+     */
+    public DirectTensorInput(int width, int height, boolean grayscale, DataType dataType,
+                             float mean, float std) {
+        if (dataType != DataType.UINT8 && dataType != DataType.FLOAT32) {
+            throw new IllegalArgumentException("Unsupported tensor type " + dataType);
+        }
+        this.width = width;
+        this.height = height;
+        this.channels = grayscale ? 1 : 3;
+        this.dataType = dataType;
+        for (int v = 0; v < 256; v++) {
+            float value = (v - mean) / std;
+            floatTable[v] = value;
+            byteTable[v] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+        }
+
+        int bytesPerValue = dataType == DataType.FLOAT32 ? 4 : 1;
+        buffer = ByteBuffer.allocateDirect(width * height * channels * bytesPerValue)
+                .order(ByteOrder.nativeOrder());
+        int[] shape = grayscale ? new int[]{1, height, width} : new int[]{1, height, width, 3};
+        TensorBuffer tensorBuffer = TensorBuffer.createFixedSize(shape, dataType);
+        tensorBuffer.loadBuffer(buffer, shape);
+        image = new TensorImage(dataType);
+        image.load(tensorBuffer, grayscale ? ColorSpaceType.GRAYSCALE : ColorSpaceType.RGB);
+
+        columns = new int[width];
+        columnWeights = new int[width];
+        rows = new int[height];
+        rowWeights = new int[height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isGrayscale() {
+        return channels == 1;
+    }
+
+    /** Fills the tensor from the bitmap, whatever its size, and returns the image over it. */
+    public TensorImage fill(Bitmap bitmap) {
+        int bw = bitmap.getWidth();
+        int bh = bitmap.getHeight();
+        if (bw != sourceWidth || bh != sourceHeight) {
+            resize(bw, bh);
+        }
+        bitmap.getPixels(pixels, 0, bw, 0, 0, bw, bh);
+
+        buffer.clear();
+        for (int y = 0; y < height; y++) {
+            int top = rows[y] * bw;
+            int bottom = top + (rows[y] + 1 < bh ? bw : 0);
+            int wy = rowWeights[y];
+            for (int x = 0; x < width; x++) {
+                int left = columns[x];
+                int right = left + 1 < bw ? left + 1 : left;
+                int wx = columnWeights[x];
+                int p00 = pixels[top + left];
+                int p01 = pixels[top + right];
+                int p10 = pixels[bottom + left];
+                int p11 = pixels[bottom + right];
+                if (channels == 1) {
+                    put(interpolate(luma(p00), luma(p01), luma(p10), luma(p11), wx, wy));
+                } else {
+                    for (int shift = 16; shift >= 0; shift -= 8) {
+                        put(interpolate((p00 >> shift) & 0xFF, (p01 >> shift) & 0xFF,
+                                (p10 >> shift) & 0xFF, (p11 >> shift) & 0xFF, wx, wy));
+                    }
+                }
+            }
+        }
+        buffer.rewind();
+        return image;
+    }
+
+    private void put(int value) {
+        if (dataType == DataType.FLOAT32) {
+            buffer.putFloat(floatTable[value]);
+        } else {
+            buffer.put(byteTable[value]);
+        }
+    }
+
+    // Maps the tensor's pixel centres onto the source
+    private void resize(int bw, int bh) {
+        sourceWidth = bw;
+        sourceHeight = bh;
+        if (pixels.length < bw * bh) {
+            pixels = new int[bw * bh];
+        }
+        sample(bw, width, columns, columnWeights);
+        sample(bh, height, rows, rowWeights);
+    }
+
+    private static void sample(int sourceSize, int size, int[] index, int[] weight) {
+        float scale = (float) sourceSize / size;
+        for (int i = 0; i < size; i++) {
+            float source = Math.max(0, (i + 0.5f) * scale - 0.5f);
+            int lower = Math.min((int) source, sourceSize - 1);
+            index[i] = lower;
+            weight[i] = Math.round((source - lower) * WEIGHT_ONE);
+        }
+    }
+
+    private static int interpolate(int p00, int p01, int p10, int p11, int wx, int wy) {
+        int top = p00 * (WEIGHT_ONE - wx) + p01 * wx;
+        int bottom = p10 * (WEIGHT_ONE - wx) + p11 * wx;
+        return (top * (WEIGHT_ONE - wy) + bottom * wy + (1 << (2 * WEIGHT_BITS - 1))) >> (2 * WEIGHT_BITS);
+    }
+
+    // The dock cam is mono, so its channels are equal anyway
+    private static int luma(int argb) {
+        return (77 * ((argb >> 16) & 0xFF) + 150 * ((argb >> 8) & 0xFF) + 29 * (argb & 0xFF)) >> 8;
+    }
+}
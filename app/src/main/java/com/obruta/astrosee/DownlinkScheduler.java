@@ -0,0 +1,221 @@
+package com.obruta.astrosee;
+
+/**
+ * Decides how often telemetry goes down and which fields it carries, so the downlink stays under
+ * a bytes-per-second budget.
+ *
+ * Telemetry is sent every activePeriodMs while a Simulink phase is running, that is while
+ * /simulinkphase reports anything but the idle phase, and every idlePeriodMs otherwise.
+ *
+ * The budget is a token bucket holding up to two seconds' worth of bytes: each tick the fields
+ * are taken in priority order for as long as they fit in the bucket, except that high priority
+ * fields always go. When even those don't fit, the bucket goes into debt and the next tick is
+ * pushed back until it has been paid off. A budget of 0 turns all of this off and goes back to
+ * sending every field once a second.
+ *
+ * A tick that leaves fields out must be sent as a delta frame, see {@link #isPartial}, so the
+ * ground keeps its last values for them instead of blanking them.
+ */
+public class DownlinkScheduler {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_MEDIUM = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    public static final long DEFAULT_ACTIVE_PERIOD_MS = 250;
+    public static final long DEFAULT_IDLE_PERIOD_MS = 1000;
+    private static final long BUCKET_SECONDS = 2;
+
+    private static final TelemetryField[] FIELDS = TelemetryField.values();
+
+    private final int[] priorities = new int[FIELDS.length];
+    private final int[] jsonSizes = new int[FIELDS.length];
+    private final int[] binarySizes = new int[FIELDS.length];
+    private final int[] jsonStatsSizes = new int[FIELDS.length];
+    private final int[] binaryStatsSizes = new int[FIELDS.length];
+
+    // Until the ground sets a budget, keep the fixed 1 Hz downlink
+    private volatile int bytesPerSecond = 0;
+    private volatile long activePeriodMs = DEFAULT_IDLE_PERIOD_MS;
+    private volatile long idlePeriodMs = DEFAULT_IDLE_PERIOD_MS;
+    private volatile int idlePhase = 0;
+    private volatile long statsMask = 0;
+    private volatile boolean statsInPlace = false;
+
+    private double tokens = 0;
+    private long lastRefillMs = -1;
+    private boolean active = false;
+
+    public DownlinkScheduler() {
+        for (TelemetryField field : FIELDS) {
+            priorities[field.ordinal()] = defaultPriority(field);
+            jsonSizes[field.ordinal()] = estimateJsonSize(field);
+            binarySizes[field.ordinal()] = field.getEncoding() == TelemetryField.Encoding.UTF8
+                    ? 18 : BinaryTelemetryEncoder.fieldSize(field);
+            jsonStatsSizes[field.ordinal()] = estimateJsonStatsSize(field);
+            binaryStatsSizes[field.ordinal()] = BinaryTelemetryEncoder.statsSize(field);
+        }
+    }
+
+    /** Control errors and the clock matter most on the ground, CV and actuator detail least. */
+    public static int defaultPriority(TelemetryField field) {
+        switch (field) {
+            case TIME:
+            case PHASE:
+            case CLIENT_POSITION_ERROR:
+            case CLIENT_QUATERNION_ERROR:
+            case SERVICER_XM_POSITION_ERROR:
+            case SERVICER_XM_VELOCITY_ERROR:
+            case SERVICER_QUATERNION_ERROR:
+                return PRIORITY_HIGH;
+            case ROBOT_NAME:
+            case NOZZLES_SIDE_1:
+            case NOZZLES_SIDE_2:
+            case CLIENT_DIVIDER:
+            case SERVICER_DIVIDER:
+            case CV_BB_CENTRE:
+                return PRIORITY_LOW;
+            default:
+                return PRIORITY_MEDIUM;
+        }
+    }
+
+    /**
+     * @param bytesPerSecond Downlink budget, 0 for no limit
+     * @param activePeriodMs Period while a Simulink phase is running
+     * @param idlePeriodMs   Period otherwise
+     */
+    public void setBudget(int bytesPerSecond, long activePeriodMs, long idlePeriodMs) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.activePeriodMs = Math.max(1, activePeriodMs);
+        this.idlePeriodMs = Math.max(1, idlePeriodMs);
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /** The Simulink phase reported when no segment is running, 0 by default. */
+    public void setIdlePhase(int idlePhase) {
+        this.idlePhase = idlePhase;
+    }
+
+    public void setPriority(TelemetryField field, int priority) {
+        priorities[field.ordinal()] = Math.max(PRIORITY_LOW, Math.min(PRIORITY_HIGH, priority));
+    }
+
+    public int getPriority(TelemetryField field) {
+        return priorities[field.ordinal()];
+    }
+
+    /** Fields sent with their windowed statistics, which then cost more to send. */
+    public void setStats(long fieldMask, boolean inPlace) {
+        this.statsMask = fieldMask;
+        this.statsInPlace = inPlace;
+    }
+
+    /**
+     * Picks the fields to send this tick.
+     *
+     * @return Mask of the fields to send, see {@link TelemetryField#mask()}
+     */
+    public long selectFields(TelemetryFrame frame, TelemetryFormat format, long nowMs) {
+        int budget = bytesPerSecond;
+        if (budget == 0) {
+            active = false;
+            return TelemetryField.ALL_FIELDS;
+        }
+        active = frame.isValid(TelemetryField.PHASE)
+                && (int) frame.get(TelemetryField.PHASE, 0) != idlePhase;
+        refill(budget, nowMs);
+
+        boolean binary = format == TelemetryFormat.BINARY;
+        int[] sizes = binary ? binarySizes : jsonSizes;
+        int[] statsSizes = binary ? binaryStatsSizes : jsonStatsSizes;
+        long withStats = statsMask;
+        boolean inPlace = statsInPlace;
+        double allowance = tokens;
+        long mask = 0;
+        for (int priority = PRIORITY_HIGH; priority >= PRIORITY_LOW; priority--) {
+            for (TelemetryField field : FIELDS) {
+                if (priorities[field.ordinal()] != priority) {
+                    continue;
+                }
+                int size = sizes[field.ordinal()];
+                if ((withStats & field.mask()) != 0 && statsSizes[field.ordinal()] > 0) {
+                    size = (inPlace ? 0 : size) + statsSizes[field.ordinal()];
+                }
+                if (priority == PRIORITY_HIGH || size <= allowance) {
+                    mask |= field.mask();
+                    allowance -= size;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Charges the bytes actually sent against the budget.
+     *
+     * @return Delay before the next telemetry tick, in ms
+     */
+    public long onSent(int bytes, long nowMs) {
+        int budget = bytesPerSecond;
+        if (budget == 0) {
+            return DEFAULT_IDLE_PERIOD_MS;
+        }
+        long period = active ? activePeriodMs : idlePeriodMs;
+        refill(budget, nowMs);
+        tokens -= bytes;
+        if (tokens >= 0) {
+            return period;
+        }
+        // Wait for the debt to be paid off before sending again
+        long repayMs = (long) Math.ceil(-tokens * 1000.0 / budget);
+        return Math.max(period, repayMs);
+    }
+
+    /**
+     * Whether a field mask leaves out some of the fields, which a full frame would make the
+     * ground forget.
+     */
+    public static boolean isPartial(long fieldMask) {
+        return fieldMask != TelemetryField.ALL_FIELDS;
+    }
+
+    /** Whether the last selected tick was during an active Simulink phase. */
+    public boolean isActive() {
+        return active;
+    }
+
+    private void refill(int budget, long nowMs) {
+        if (lastRefillMs < 0) {
+            tokens = budget;
+        } else {
+            tokens += budget * (nowMs - lastRefillMs) / 1000.0;
+        }
+        tokens = Math.min(tokens, (double) budget * BUCKET_SECONDS);
+        lastRefillMs = nowMs;
+    }
+
+    // "key":"[-0.1234, ...]", plus the comma
+    private static int estimateJsonSize(TelemetryField field) {
+        int size = field.getKey().length() + 6;
+        switch (field.getKind()) {
+            case TEXT:
+                return size + 16;
+            case DIVIDER:
+                return size + field.getConstant().length();
+            default:
+                int valueSize = field.getDecimals() == 0 ? 3 : field.getDecimals() + 3;
+                return size + field.getWidth() * (valueSize + 2);
+        }
+    }
+
+    // Four keys like the field's, with the same values
+    private static int estimateJsonStatsSize(TelemetryField field) {
+        if (field.getKind() != TelemetryField.Kind.NUMERIC) {
+            return 0;
+        }
+        return TelemetryHistory.STAT_COUNT * (estimateJsonSize(field) + 6);
+    }
+}
@@ -0,0 +1,819 @@
+package com.obruta.astrosee;
+
+import java.util.Arrays;
+
+/**
+ * Pose of a known object from its points seen by a pinhole camera: EPnP (Lepetit, Moreno-Noguer
+ * and Fua, 2009) gives a closed form estimate, which a few Gauss-Newton steps on the reprojection
+ * error then refine.
+ *
+ * The object's points are written as weighted sums of four control points, whose coordinates in
+ * the camera frame are a combination of the null space vectors of a 12x12 system. The weights of
+ * the combination are estimated for one to four null space vectors, and the pose with the
+ * smallest reprojection error kept. The rotation between the object and the camera is fitted with
+ * Horn's quaternion method, so it is always a proper rotation.
+ *
+ * Everything works on primitive arrays allocated with the solver, so a solve allocates nothing.
+ * It takes at least MIN_POINTS distinct points, not all in a plane. Only for one thread.
+ */
+public class EpnpSolver {
+    // Four points leave a four dimensional null space, which the approximations below don't pin
+    // down reliably
+    public static final int MIN_POINTS = 5;
+    public static final int DEFAULT_REFINE_ITERATIONS = 10;
+    private static final int JACOBI_SWEEPS = 50;
+    private static final int BETA_ITERATIONS = 5;
+
+    private final double fx;
+    private final double fy;
+    private final double cx;
+    private final double cy;
+    private final int maxPoints;
+    private int refineIterations = DEFAULT_REFINE_ITERATIONS;
+
+    // Correspondences of the next solve
+    private int count;
+    private final double[] objectPoints;
+    private final double[] imagePoints;
+
+    // Workspaces
+    private final double[] alphas;
+    private final double[] cameraPoints;
+    private final double[] controlWorld = new double[12];
+    private final double[] controlCamera = new double[12];
+    private final double[] mtm = new double[144];
+    private final double[] row = new double[12];
+    private final double[] values12 = new double[12];
+    private final double[] vectors12 = new double[144];
+    // The 4 null space vectors, smallest singular value first
+    private final double[] nullSpace = new double[48];
+    private final double[] l6x10 = new double[60];
+    private final double[] rho = new double[6];
+    private final double[] betas = new double[4];
+    private final double[] lsA = new double[30];
+    private final double[] lsB = new double[6];
+    private final double[] lsX = new double[6];
+    private final double[] normal = new double[36];
+    private final double[] normalB = new double[6];
+    private final double[] m3 = new double[9];
+    private final double[] inverse3 = new double[9];
+    private final double[] values3 = new double[3];
+    private final double[] vectors3 = new double[9];
+    private final double[] m4 = new double[16];
+    private final double[] values4 = new double[4];
+    private final double[] vectors4 = new double[16];
+    private final double[] candidateR = new double[9];
+    private final double[] candidateT = new double[3];
+    private final double[] quaternion = new double[4];
+    private final double[] jtj = new double[36];
+    private final double[] jtr = new double[6];
+    private final double[] ju = new double[6];
+    private final double[] jv = new double[6];
+    private final double[] delta = new double[6];
+    private final double[] update = new double[9];
+    private final double[] rotated = new double[9];
+    private final double[] stepped = new double[3];
+    private double error = Double.NaN;
+
+    /**
+     * @param fx        Focal length along x, px
+     * @param cx        Principal point x, px
+     * @param maxPoints Most correspondences a solve takes
+     */
+    public EpnpSolver(double fx, double fy, double cx, double cy, int maxPoints) {
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+        this.maxPoints = maxPoints;
+        objectPoints = new double[3 * maxPoints];
+        imagePoints = new double[2 * maxPoints];
+        alphas = new double[4 * maxPoints];
+        cameraPoints = new double[3 * maxPoints];
+    }
+
+    /** Gauss-Newton steps after EPnP, 0 for none. */
+    public void setRefineIterations(int iterations) {
+        refineIterations = Math.max(0, iterations);
+    }
+
+    /** Forgets the correspondences of the previous solve. */
+    public void clear() {
+        count = 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Adds a point of the object, in its frame, and where the camera sees it, px. Points past
+     * maxPoints are ignored, and so is a point of the object already added: it says nothing new
+     * about the pose, and would count towards MIN_POINTS.
+     *
+     * @return Whether the point was added
+     */
+    public boolean add(double x, double y, double z, double u, double v) {
+        if (count == maxPoints) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (objectPoints[3 * i] == x && objectPoints[3 * i + 1] == y && objectPoints[3 * i + 2] == z) {
+                return false;
+            }
+        }
+        objectPoints[3 * count] = x;
+        objectPoints[3 * count + 1] = y;
+        objectPoints[3 * count + 2] = z;
+        imagePoints[2 * count] = u;
+        imagePoints[2 * count + 1] = v;
+        count++;
+        return true;
+    }
+
+    /** Mean reprojection error of the last pose solved, px. */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * Solves for the pose of the object in the camera frame: a point p of the object is at
+     * R p + t.
+     *
+     * @param rotation    Set to R, row major
+     * @param translation Set to t
+     * @return Whether there was a pose, false with too few points or points in a plane
+     */
+    public boolean solve(double[] rotation, double[] translation) {
+        error = Double.NaN;
+        if (count < MIN_POINTS || !chooseControlPoints()) {
+            return false;
+        }
+        fillMtm();
+        jacobi(mtm, 12, values12, vectors12);
+        // Null space, smallest eigenvalues first
+        for (int k = 0; k < 4; k++) {
+            int smallest = -1;
+            for (int i = 0; i < 12; i++) {
+                if (values12[i] != Double.POSITIVE_INFINITY
+                        && (smallest < 0 || values12[i] < values12[smallest])) {
+                    smallest = i;
+                }
+            }
+            for (int i = 0; i < 12; i++) {
+                nullSpace[12 * k + i] = vectors12[12 * i + smallest];
+            }
+            values12[smallest] = Double.POSITIVE_INFINITY;
+        }
+        computeL6x10();
+        computeRho();
+
+        double best = Double.POSITIVE_INFINITY;
+        for (int n = 1; n <= 3; n++) {
+            if (!findBetas(n)) {
+                continue;
+            }
+            refineBetas();
+            double candidate = computeRt(candidateR, candidateT);
+            if (candidate < best) {
+                best = candidate;
+                System.arraycopy(candidateR, 0, rotation, 0, 9);
+                System.arraycopy(candidateT, 0, translation, 0, 3);
+            }
+        }
+        if (best == Double.POSITIVE_INFINITY) {
+            return false;
+        }
+        error = refinePose(rotation, translation);
+        return true;
+    }
+
+    // Centroid and principal axes of the points; false if they lie in a plane
+    private boolean chooseControlPoints() {
+        for (int j = 0; j < 3; j++) {
+            double sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += objectPoints[3 * i + j];
+            }
+            controlWorld[j] = sum / count;
+        }
+        Arrays.fill(m3, 0);
+        for (int i = 0; i < count; i++) {
+            for (int a = 0; a < 3; a++) {
+                double da = objectPoints[3 * i + a] - controlWorld[a];
+                for (int b = 0; b < 3; b++) {
+                    m3[3 * a + b] += da * (objectPoints[3 * i + b] - controlWorld[b]);
+                }
+            }
+        }
+        jacobi(m3, 3, values3, vectors3);
+        double largest = Math.max(values3[0], Math.max(values3[1], values3[2]));
+        for (int k = 0; k < 3; k++) {
+            if (!(values3[k] > largest * 1e-9)) {
+                return false;
+            }
+            double scale = Math.sqrt(values3[k] / count);
+            for (int j = 0; j < 3; j++) {
+                controlWorld[3 * (k + 1) + j] = controlWorld[j] + scale * vectors3[3 * j + k];
+            }
+        }
+
+        // Weights of the control points for every point
+        for (int a = 0; a < 3; a++) {
+            for (int k = 0; k < 3; k++) {
+                m3[3 * a + k] = controlWorld[3 * (k + 1) + a] - controlWorld[a];
+            }
+        }
+        if (!invert3(m3, inverse3)) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            double sum = 0;
+            for (int k = 0; k < 3; k++) {
+                double alpha = 0;
+                for (int j = 0; j < 3; j++) {
+                    alpha += inverse3[3 * k + j] * (objectPoints[3 * i + j] - controlWorld[j]);
+                }
+                alphas[4 * i + k + 1] = alpha;
+                sum += alpha;
+            }
+            alphas[4 * i] = 1 - sum;
+        }
+        return true;
+    }
+
+    // M'M, where M has two rows per point and the camera coordinates of the control points as
+    // unknowns
+    private void fillMtm() {
+        Arrays.fill(mtm, 0);
+        for (int i = 0; i < count; i++) {
+            for (int axis = 0; axis < 2; axis++) {
+                double f = axis == 0 ? fx : fy;
+                double c = axis == 0 ? cx : cy;
+                double p = imagePoints[2 * i + axis];
+                for (int j = 0; j < 4; j++) {
+                    double alpha = alphas[4 * i + j];
+                    row[3 * j] = axis == 0 ? alpha * f : 0;
+                    row[3 * j + 1] = axis == 0 ? 0 : alpha * f;
+                    row[3 * j + 2] = alpha * (c - p);
+                }
+                for (int a = 0; a < 12; a++) {
+                    if (row[a] == 0) {
+                        continue;
+                    }
+                    for (int b = a; b < 12; b++) {
+                        mtm[12 * a + b] += row[a] * row[b];
+                    }
+                }
+            }
+        }
+        for (int a = 0; a < 12; a++) {
+            for (int b = 0; b < a; b++) {
+                mtm[12 * a + b] = mtm[12 * b + a];
+            }
+        }
+    }
+
+    // Squared distances between control points, as a quadratic form of the betas, for every pair
+    private void computeL6x10() {
+        int pair = 0;
+        for (int a = 0; a < 3; a++) {
+            for (int b = a + 1; b < 4; b++) {
+                // dv[k] is the difference of the pair's points in null space vector k
+                double d00 = 0, d01 = 0, d11 = 0, d02 = 0, d12 = 0, d22 = 0, d03 = 0, d13 = 0, d23 = 0, d33 = 0;
+                for (int j = 0; j < 3; j++) {
+                    double v0 = nullSpace[3 * a + j] - nullSpace[3 * b + j];
+                    double v1 = nullSpace[12 + 3 * a + j] - nullSpace[12 + 3 * b + j];
+                    double v2 = nullSpace[24 + 3 * a + j] - nullSpace[24 + 3 * b + j];
+                    double v3 = nullSpace[36 + 3 * a + j] - nullSpace[36 + 3 * b + j];
+                    d00 += v0 * v0;
+                    d01 += v0 * v1;
+                    d11 += v1 * v1;
+                    d02 += v0 * v2;
+                    d12 += v1 * v2;
+                    d22 += v2 * v2;
+                    d03 += v0 * v3;
+                    d13 += v1 * v3;
+                    d23 += v2 * v3;
+                    d33 += v3 * v3;
+                }
+                int r = 10 * pair;
+                l6x10[r] = d00;
+                l6x10[r + 1] = 2 * d01;
+                l6x10[r + 2] = d11;
+                l6x10[r + 3] = 2 * d02;
+                l6x10[r + 4] = 2 * d12;
+                l6x10[r + 5] = d22;
+                l6x10[r + 6] = 2 * d03;
+                l6x10[r + 7] = 2 * d13;
+                l6x10[r + 8] = 2 * d23;
+                l6x10[r + 9] = d33;
+                pair++;
+            }
+        }
+    }
+
+    // Squared distances between the control points in the object frame, in the same pair order
+    private void computeRho() {
+        int pair = 0;
+        for (int a = 0; a < 3; a++) {
+            for (int b = a + 1; b < 4; b++) {
+                double sum = 0;
+                for (int j = 0; j < 3; j++) {
+                    double d = controlWorld[3 * a + j] - controlWorld[3 * b + j];
+                    sum += d * d;
+                }
+                rho[pair++] = sum;
+            }
+        }
+    }
+
+    // First estimate of the betas, with the approximations of the EPnP paper
+    private boolean findBetas(int approximation) {
+        switch (approximation) {
+            case 1: {
+                // [B11 B12 B13 B14]
+                if (!leastSquares(4, 0, 1, 3, 6, -1)) {
+                    return false;
+                }
+                double b0 = Math.sqrt(Math.abs(lsX[0]));
+                double sign = lsX[0] < 0 ? -1 : 1;
+                betas[0] = b0;
+                betas[1] = sign * lsX[1] / b0;
+                betas[2] = sign * lsX[2] / b0;
+                betas[3] = sign * lsX[3] / b0;
+                break;
+            }
+            case 2: {
+                // [B11 B12 B22]
+                if (!leastSquares(3, 0, 1, 2, -1, -1)) {
+                    return false;
+                }
+                firstTwoBetas();
+                betas[2] = 0;
+                betas[3] = 0;
+                break;
+            }
+            default: {
+                // [B11 B12 B22 B13 B23]
+                if (!leastSquares(5, 0, 1, 2, 3, 4)) {
+                    return false;
+                }
+                firstTwoBetas();
+                betas[2] = lsX[3] / betas[0];
+                betas[3] = 0;
+                break;
+            }
+        }
+        for (int k = 0; k < 4; k++) {
+            if (Double.isNaN(betas[k]) || Double.isInfinite(betas[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void firstTwoBetas() {
+        if (lsX[0] < 0) {
+            betas[0] = Math.sqrt(-lsX[0]);
+            betas[1] = lsX[2] < 0 ? Math.sqrt(-lsX[2]) : 0;
+        } else {
+            betas[0] = Math.sqrt(lsX[0]);
+            betas[1] = lsX[2] > 0 ? Math.sqrt(lsX[2]) : 0;
+        }
+        if (lsX[1] < 0) {
+            betas[0] = -betas[0];
+        }
+    }
+
+    // Least squares fit of rho by the given columns of L; -1 ends the list
+    private boolean leastSquares(int columns, int c0, int c1, int c2, int c3, int c4) {
+        for (int i = 0; i < 6; i++) {
+            for (int k = 0; k < columns; k++) {
+                int column = k == 0 ? c0 : k == 1 ? c1 : k == 2 ? c2 : k == 3 ? c3 : c4;
+                lsA[columns * i + k] = l6x10[10 * i + column];
+            }
+            lsB[i] = rho[i];
+        }
+        return solveNormal(lsA, lsB, 6, columns, lsX);
+    }
+
+    // Gauss-Newton on the four betas, fitting the control point distances
+    private void refineBetas() {
+        for (int iteration = 0; iteration < BETA_ITERATIONS; iteration++) {
+            double b0 = betas[0], b1 = betas[1], b2 = betas[2], b3 = betas[3];
+            for (int i = 0; i < 6; i++) {
+                int r = 10 * i;
+                lsA[4 * i] = 2 * l6x10[r] * b0 + l6x10[r + 1] * b1 + l6x10[r + 3] * b2 + l6x10[r + 6] * b3;
+                lsA[4 * i + 1] = l6x10[r + 1] * b0 + 2 * l6x10[r + 2] * b1 + l6x10[r + 4] * b2 + l6x10[r + 7] * b3;
+                lsA[4 * i + 2] = l6x10[r + 3] * b0 + l6x10[r + 4] * b1 + 2 * l6x10[r + 5] * b2 + l6x10[r + 8] * b3;
+                lsA[4 * i + 3] = l6x10[r + 6] * b0 + l6x10[r + 7] * b1 + l6x10[r + 8] * b2 + 2 * l6x10[r + 9] * b3;
+                lsB[i] = rho[i] - (l6x10[r] * b0 * b0 + l6x10[r + 1] * b0 * b1 + l6x10[r + 2] * b1 * b1
+                        + l6x10[r + 3] * b0 * b2 + l6x10[r + 4] * b1 * b2 + l6x10[r + 5] * b2 * b2
+                        + l6x10[r + 6] * b0 * b3 + l6x10[r + 7] * b1 * b3 + l6x10[r + 8] * b2 * b3
+                        + l6x10[r + 9] * b3 * b3);
+            }
+            if (!solveNormal(lsA, lsB, 6, 4, lsX)) {
+                return;
+            }
+            for (int k = 0; k < 4; k++) {
+                betas[k] += lsX[k];
+            }
+        }
+    }
+
+    // Pose from the betas; returns its mean reprojection error
+    private double computeRt(double[] rotation, double[] translation) {
+        for (int i = 0; i < 12; i++) {
+            controlCamera[i] = betas[0] * nullSpace[i] + betas[1] * nullSpace[12 + i]
+                    + betas[2] * nullSpace[24 + i] + betas[3] * nullSpace[36 + i];
+        }
+        for (int p = 0; p < count; p++) {
+            for (int j = 0; j < 3; j++) {
+                cameraPoints[3 * p + j] = alphas[4 * p] * controlCamera[j] + alphas[4 * p + 1] * controlCamera[3 + j]
+                        + alphas[4 * p + 2] * controlCamera[6 + j] + alphas[4 * p + 3] * controlCamera[9 + j];
+            }
+        }
+        // The object is in front of the camera
+        if (cameraPoints[2] < 0) {
+            for (int i = 0; i < 3 * count; i++) {
+                cameraPoints[i] = -cameraPoints[i];
+            }
+        }
+        fitRigid(rotation, translation);
+        return reprojectionError(rotation, translation);
+    }
+
+    // Rotation and translation taking objectPoints to cameraPoints, by Horn's method
+    private void fitRigid(double[] rotation, double[] translation) {
+        double ox = 0, oy = 0, oz = 0, px = 0, py = 0, pz = 0;
+        for (int i = 0; i < count; i++) {
+            ox += objectPoints[3 * i];
+            oy += objectPoints[3 * i + 1];
+            oz += objectPoints[3 * i + 2];
+            px += cameraPoints[3 * i];
+            py += cameraPoints[3 * i + 1];
+            pz += cameraPoints[3 * i + 2];
+        }
+        ox /= count;
+        oy /= count;
+        oz /= count;
+        px /= count;
+        py /= count;
+        pz /= count;
+        double sxx = 0, sxy = 0, sxz = 0, syx = 0, syy = 0, syz = 0, szx = 0, szy = 0, szz = 0;
+        for (int i = 0; i < count; i++) {
+            double ax = objectPoints[3 * i] - ox;
+            double ay = objectPoints[3 * i + 1] - oy;
+            double az = objectPoints[3 * i + 2] - oz;
+            double bx = cameraPoints[3 * i] - px;
+            double by = cameraPoints[3 * i + 1] - py;
+            double bz = cameraPoints[3 * i + 2] - pz;
+            sxx += ax * bx;
+            sxy += ax * by;
+            sxz += ax * bz;
+            syx += ay * bx;
+            syy += ay * by;
+            syz += ay * bz;
+            szx += az * bx;
+            szy += az * by;
+            szz += az * bz;
+        }
+        m4[0] = sxx + syy + szz;
+        m4[1] = syz - szy;
+        m4[2] = szx - sxz;
+        m4[3] = sxy - syx;
+        m4[5] = sxx - syy - szz;
+        m4[6] = sxy + syx;
+        m4[7] = szx + sxz;
+        m4[10] = -sxx + syy - szz;
+        m4[11] = syz + szy;
+        m4[15] = -sxx - syy + szz;
+        m4[4] = m4[1];
+        m4[8] = m4[2];
+        m4[9] = m4[6];
+        m4[12] = m4[3];
+        m4[13] = m4[7];
+        m4[14] = m4[11];
+        jacobi(m4, 4, values4, vectors4);
+        int largest = 0;
+        for (int k = 1; k < 4; k++) {
+            if (values4[k] > values4[largest]) {
+                largest = k;
+            }
+        }
+        for (int j = 0; j < 4; j++) {
+            quaternion[j] = vectors4[4 * j + largest];
+        }
+        quaternionToRotation(quaternion, rotation);
+        translation[0] = px - (rotation[0] * ox + rotation[1] * oy + rotation[2] * oz);
+        translation[1] = py - (rotation[3] * ox + rotation[4] * oy + rotation[5] * oz);
+        translation[2] = pz - (rotation[6] * ox + rotation[7] * oy + rotation[8] * oz);
+    }
+
+    private double reprojectionError(double[] r, double[] t) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            double x = objectPoints[3 * i], y = objectPoints[3 * i + 1], z = objectPoints[3 * i + 2];
+            double xc = r[0] * x + r[1] * y + r[2] * z + t[0];
+            double yc = r[3] * x + r[4] * y + r[5] * z + t[1];
+            double zc = r[6] * x + r[7] * y + r[8] * z + t[2];
+            double du = imagePoints[2 * i] - (fx * xc / zc + cx);
+            double dv = imagePoints[2 * i + 1] - (fy * yc / zc + cy);
+            sum += Math.sqrt(du * du + dv * dv);
+        }
+        double mean = sum / count;
+        return Double.isNaN(mean) ? Double.POSITIVE_INFINITY : mean;
+    }
+
+    // Gauss-Newton on the reprojection error, over a rotation vector applied on the left of R
+    // and t, keeping only the steps that lower it; returns the final mean error
+    private double refinePose(double[] r, double[] t) {
+        double current = reprojectionError(r, t);
+        for (int iteration = 0; iteration < refineIterations; iteration++) {
+            Arrays.fill(jtj, 0);
+            Arrays.fill(jtr, 0);
+            for (int i = 0; i < count; i++) {
+                double x = objectPoints[3 * i], y = objectPoints[3 * i + 1], z = objectPoints[3 * i + 2];
+                double rx = r[0] * x + r[1] * y + r[2] * z;
+                double ry = r[3] * x + r[4] * y + r[5] * z;
+                double rz = r[6] * x + r[7] * y + r[8] * z;
+                double xc = rx + t[0], yc = ry + t[1], zc = rz + t[2];
+                if (zc <= 0) {
+                    return current;
+                }
+                double iz = 1 / zc;
+                double ru = imagePoints[2 * i] - (fx * xc * iz + cx);
+                double rv = imagePoints[2 * i + 1] - (fy * yc * iz + cy);
+                // d(u, v)/d(camera point)
+                double ux = fx * iz, uz = -fx * xc * iz * iz;
+                double vy = fy * iz, vz = -fy * yc * iz * iz;
+                // The camera point moves by w x (R p) for a rotation w
+                ju[0] = uz * ry;
+                ju[1] = ux * rz - uz * rx;
+                ju[2] = -ux * ry;
+                ju[3] = ux;
+                ju[4] = 0;
+                ju[5] = uz;
+                jv[0] = -vy * rz + vz * ry;
+                jv[1] = -vz * rx;
+                jv[2] = vy * rx;
+                jv[3] = 0;
+                jv[4] = vy;
+                jv[5] = vz;
+                for (int a = 0; a < 6; a++) {
+                    jtr[a] += ju[a] * ru + jv[a] * rv;
+                    for (int b = a; b < 6; b++) {
+                        jtj[6 * a + b] += ju[a] * ju[b] + jv[a] * jv[b];
+                    }
+                }
+            }
+            for (int a = 0; a < 6; a++) {
+                for (int b = 0; b < a; b++) {
+                    jtj[6 * a + b] = jtj[6 * b + a];
+                }
+            }
+            if (!solve(jtj, jtr, 6, delta)) {
+                break;
+            }
+            rotationVector(delta[0], delta[1], delta[2], update);
+            multiply3(update, r, rotated);
+            stepped[0] = t[0] + delta[3];
+            stepped[1] = t[1] + delta[4];
+            stepped[2] = t[2] + delta[5];
+            double next = reprojectionError(rotated, stepped);
+            if (!(next < current)) {
+                break;
+            }
+            current = next;
+            System.arraycopy(rotated, 0, r, 0, 9);
+            System.arraycopy(stepped, 0, t, 0, 3);
+            double step = 0;
+            for (int a = 0; a < 6; a++) {
+                step += delta[a] * delta[a];
+            }
+            if (step < 1e-20) {
+                break;
+            }
+        }
+        return current;
+    }
+
+    /** Unit quaternion (w, x, y, z) of a rotation matrix, row major, with w >= 0. */
+    public static void rotationToQuaternion(double[] r, double[] q) {
+        double trace = r[0] + r[4] + r[8];
+        if (trace > 0) {
+            double s = 2 * Math.sqrt(trace + 1);
+            q[0] = s / 4;
+            q[1] = (r[7] - r[5]) / s;
+            q[2] = (r[2] - r[6]) / s;
+            q[3] = (r[3] - r[1]) / s;
+        } else if (r[0] > r[4] && r[0] > r[8]) {
+            double s = 2 * Math.sqrt(1 + r[0] - r[4] - r[8]);
+            q[0] = (r[7] - r[5]) / s;
+            q[1] = s / 4;
+            q[2] = (r[1] + r[3]) / s;
+            q[3] = (r[2] + r[6]) / s;
+        } else if (r[4] > r[8]) {
+            double s = 2 * Math.sqrt(1 + r[4] - r[0] - r[8]);
+            q[0] = (r[2] - r[6]) / s;
+            q[1] = (r[1] + r[3]) / s;
+            q[2] = s / 4;
+            q[3] = (r[5] + r[7]) / s;
+        } else {
+            double s = 2 * Math.sqrt(1 + r[8] - r[0] - r[4]);
+            q[0] = (r[3] - r[1]) / s;
+            q[1] = (r[2] + r[6]) / s;
+            q[2] = (r[5] + r[7]) / s;
+            q[3] = s / 4;
+        }
+        if (q[0] < 0) {
+            for (int i = 0; i < 4; i++) {
+                q[i] = -q[i];
+            }
+        }
+    }
+
+    private static void quaternionToRotation(double[] q, double[] r) {
+        double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        double w = q[0] / norm, x = q[1] / norm, y = q[2] / norm, z = q[3] / norm;
+        r[0] = 1 - 2 * (y * y + z * z);
+        r[1] = 2 * (x * y - w * z);
+        r[2] = 2 * (x * z + w * y);
+        r[3] = 2 * (x * y + w * z);
+        r[4] = 1 - 2 * (x * x + z * z);
+        r[5] = 2 * (y * z - w * x);
+        r[6] = 2 * (x * z - w * y);
+        r[7] = 2 * (y * z + w * x);
+        r[8] = 1 - 2 * (x * x + y * y);
+    }
+
+    // Rotation of angle |w| about w
+    private static void rotationVector(double wx, double wy, double wz, double[] r) {
+        double angle = Math.sqrt(wx * wx + wy * wy + wz * wz);
+        double s, c;
+        if (angle < 1e-12) {
+            s = 1;
+            c = 0.5;
+        } else {
+            s = Math.sin(angle) / angle;
+            c = (1 - Math.cos(angle)) / (angle * angle);
+        }
+        r[0] = 1 - c * (wy * wy + wz * wz);
+        r[1] = -s * wz + c * wx * wy;
+        r[2] = s * wy + c * wx * wz;
+        r[3] = s * wz + c * wx * wy;
+        r[4] = 1 - c * (wx * wx + wz * wz);
+        r[5] = -s * wx + c * wy * wz;
+        r[6] = -s * wy + c * wx * wz;
+        r[7] = s * wx + c * wy * wz;
+        r[8] = 1 - c * (wx * wx + wy * wy);
+    }
+
+    private static void multiply3(double[] a, double[] b, double[] out) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                out[3 * i + j] = a[3 * i] * b[j] + a[3 * i + 1] * b[3 + j] + a[3 * i + 2] * b[6 + j];
+            }
+        }
+    }
+
+    private static boolean invert3(double[] m, double[] out) {
+        double c00 = m[4] * m[8] - m[5] * m[7];
+        double c01 = m[5] * m[6] - m[3] * m[8];
+        double c02 = m[3] * m[7] - m[4] * m[6];
+        double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+        if (Math.abs(det) < 1e-300) {
+            return false;
+        }
+        double inv = 1 / det;
+        out[0] = c00 * inv;
+        out[1] = (m[2] * m[7] - m[1] * m[8]) * inv;
+        out[2] = (m[1] * m[5] - m[2] * m[4]) * inv;
+        out[3] = c01 * inv;
+        out[4] = (m[0] * m[8] - m[2] * m[6]) * inv;
+        out[5] = (m[2] * m[3] - m[0] * m[5]) * inv;
+        out[6] = c02 * inv;
+        out[7] = (m[1] * m[6] - m[0] * m[7]) * inv;
+        out[8] = (m[0] * m[4] - m[1] * m[3]) * inv;
+        return true;
+    }
+
+    // Least squares solution of the rows x columns system A x = b, through its normal equations
+    private boolean solveNormal(double[] a, double[] b, int rows, int columns, double[] x) {
+        for (int i = 0; i < columns; i++) {
+            double sum = 0;
+            for (int k = 0; k < rows; k++) {
+                sum += a[columns * k + i] * b[k];
+            }
+            normalB[i] = sum;
+            for (int j = 0; j < columns; j++) {
+                sum = 0;
+                for (int k = 0; k < rows; k++) {
+                    sum += a[columns * k + i] * a[columns * k + j];
+                }
+                normal[columns * i + j] = sum;
+            }
+        }
+        return solve(normal, normalB, columns, x);
+    }
+
+    // Solves the n x n system a x = b in place, by Gaussian elimination with partial pivoting
+    private static boolean solve(double[] a, double[] b, int n, double[] x) {
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int i = col + 1; i < n; i++) {
+                if (Math.abs(a[n * i + col]) > Math.abs(a[n * pivot + col])) {
+                    pivot = i;
+                }
+            }
+            if (Math.abs(a[n * pivot + col]) < 1e-300) {
+                return false;
+            }
+            if (pivot != col) {
+                for (int j = 0; j < n; j++) {
+                    double tmp = a[n * col + j];
+                    a[n * col + j] = a[n * pivot + j];
+                    a[n * pivot + j] = tmp;
+                }
+                double tmp = b[col];
+                b[col] = b[pivot];
+                b[pivot] = tmp;
+            }
+            for (int i = col + 1; i < n; i++) {
+                double factor = a[n * i + col] / a[n * col + col];
+                if (factor == 0) {
+                    continue;
+                }
+                for (int j = col; j < n; j++) {
+                    a[n * i + j] -= factor * a[n * col + j];
+                }
+                b[i] -= factor * b[col];
+            }
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = b[i];
+            for (int j = i + 1; j < n; j++) {
+                sum -= a[n * i + j] * x[j];
+            }
+            x[i] = sum / a[n * i + i];
+        }
+        return true;
+    }
+
+    // Eigenvalues and eigenvectors of the symmetric n x n matrix a, by cyclic Jacobi rotations;
+    // destroys a. Eigenvector k is column k of vectors
+    private static void jacobi(double[] a, int n, double[] values, double[] vectors) {
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                vectors[n * i + j] = i == j ? 1 : 0;
+            }
+        }
+        for (int sweep = 0; sweep < JACOBI_SWEEPS; sweep++) {
+            double off = 0;
+            double diagonal = 0;
+            for (int p = 0; p < n; p++) {
+                diagonal += a[n * p + p] * a[n * p + p];
+                for (int q = p + 1; q < n; q++) {
+                    off += a[n * p + q] * a[n * p + q];
+                }
+            }
+            if (off <= 1e-30 * diagonal || off == 0) {
+                break;
+            }
+            for (int p = 0; p < n - 1; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    double apq = a[n * p + q];
+                    if (apq == 0) {
+                        continue;
+                    }
+                    double theta = (a[n * q + q] - a[n * p + p]) / (2 * apq);
+                    double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < n; k++) {
+                        double akp = a[n * k + p];
+                        double akq = a[n * k + q];
+                        a[n * k + p] = c * akp - s * akq;
+                        a[n * k + q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double apk = a[n * p + k];
+                        double aqk = a[n * q + k];
+                        a[n * p + k] = c * apk - s * aqk;
+                        a[n * q + k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double vkp = vectors[n * k + p];
+                        double vkq = vectors[n * k + q];
+                        vectors[n * k + p] = c * vkp - s * vkq;
+                        vectors[n * k + q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            values[i] = a[n * i + i];
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.obruta.astrosee;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the latest camera frame from the rosjava listener to the inference thread. A frame the
+ * inference thread hasn't taken yet is replaced by the next one, so it always works on the
+ * freshest image and the listener never waits for it.
+ *
+ * Three frame buffers rotate between the producer, the consumer and the slot between them, so
+ * publishing and taking never copy or allocate, apart from a buffer growing to fit a larger
+ * image. There must be a single producer thread and a single consumer thread.
+ */
+public class FrameMailbox {
+
+    /** A compressed image and where it came from. */
+    public static class Frame {
+        private byte[] data = new byte[0];
+        private int length;
+        private long seq;
+        private long stampNs;
+        private long receivedNs;
+
+        /**
+         * Copies the image into the frame; only call on a frame from {@link #acquire()}.
+         *
+         * @param stampNs Stamp of the image's header
+         */
+        public void set(ChannelBuffer image, long seq, long stampNs, long receivedNs) {
+            length = image.readableBytes();
+            if (data.length < length) {
+                data = new byte[length + length / 4];
+            }
+            image.getBytes(image.readerIndex(), data, 0, length);
+            this.seq = seq;
+            this.stampNs = stampNs;
+            this.receivedNs = receivedNs;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getStampNs() {
+            return stampNs;
+        }
+
+        /** SystemClock.elapsedRealtimeNanos() when the listener got the image. */
+        public long getReceivedNs() {
+            return receivedNs;
+        }
+    }
+
+    // Set in the slot's value while its frame hasn't been taken
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final Frame[] frames = {new Frame(), new Frame(), new Frame()};
+    // Index of the frame between the threads, with FRESH
+    private final AtomicInteger slot = new AtomicInteger(2);
+    // Only touched by the producer
+    private int back = 0;
+    // Only touched by the consumer
+    private int front = 1;
+    private volatile Thread consumer;
+
+    /** The frame for the producer to fill before publishing it. */
+    public Frame acquire() {
+        return frames[back];
+    }
+
+    /**
+     * Makes the acquired frame the latest one.
+     *
+     * @return Whether it replaced a frame the consumer never took
+     */
+    public boolean publish() {
+        int previous = slot.getAndSet(back | FRESH);
+        back = previous & INDEX_MASK;
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        return (previous & FRESH) != 0;
+    }
+
+    /**
+     * Takes the latest frame, waiting for one if there is none. The frame stays valid until the
+     * next call.
+     *
+     * @return The frame, or null if none came within the timeout
+     * @throws InterruptedException if the consumer is interrupted while it waits
+     */
+    public Frame take(long timeoutMs) throws InterruptedException {
+        consumer = Thread.currentThread();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while ((slot.get() & FRESH) == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        int previous = slot.getAndSet(front);
+        front = previous & INDEX_MASK;
+        return frames[front];
+    }
+}
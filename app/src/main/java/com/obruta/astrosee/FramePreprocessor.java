@@ -0,0 +1,223 @@
+package com.obruta.astrosee;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.support.image.ImageProcessor;
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.image.ops.ResizeOp;
+import org.tensorflow.lite.support.image.ops.TransformToGrayscaleOp;
+
+/**
+ * Turns a dock cam JPEG into the detector's input. At full resolution, which is the default, the
+ * image is decoded as is and the detector scales it. Given the model's input size, the JPEG is
+ * instead decoded at the nearest power of two scale above it and resized to it, so the full size
+ * image never exists; grayscale models can be fed a single channel image. The resize either
+ * writes straight into a reused direct tensor, see {@link DirectTensorInput}, or goes through
+ * the support library's image ops, which allocate a bitmap for every frame.
+ *
+ * Only a region of the frame may be decoded, to look for the target where it last was.
+ * Detections come back in the coordinates of the detector's input, {@link #toFrame} and
+ * {@link #toBitmap} map them to those of the camera image and of the decoded bitmap.
+ *
+ * The settings may be changed from any thread, everything else is only for the inference thread.
+ */
+public class FramePreprocessor {
+
+    /** What the frames are turned into. */
+    public static class Settings {
+        public static final Settings FULL = new Settings(0, 0, false, false);
+
+        private final int width;
+        private final int height;
+        private final boolean grayscale;
+        private final boolean direct;
+
+        /**
+         * @param width     Width of the model input, 0 to give the detector the full image
+         * @param grayscale Whether to give the detector a single channel
+         * @param direct    Whether to fill a direct tensor rather than use image ops
+         */
+        public Settings(int width, int height, boolean grayscale, boolean direct) {
+            this.width = Math.max(0, width);
+            this.height = Math.max(0, height);
+            this.grayscale = grayscale;
+            this.direct = direct;
+        }
+
+        public boolean isFullResolution() {
+            return width == 0 || height == 0;
+        }
+
+        @Override
+        public String toString() {
+            if (isFullResolution()) {
+                return "full resolution";
+            }
+            return width + "x" + height + (grayscale ? " grayscale" : "") + (direct ? " direct" : "");
+        }
+    }
+
+    private final BitmapPool bitmapPool;
+    private volatile Settings settings = Settings.FULL;
+
+    // Only touched by the inference thread
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    private final TensorImage tensorImage = new TensorImage();
+    // Built for appliedSettings and the size of the bitmap, rebuilt when either changes
+    private ImageProcessor imageProcessor;
+    // Built for appliedSettings when they are direct
+    private DirectTensorInput directInput;
+    private Settings appliedSettings;
+    private int processorWidth;
+    private int processorHeight;
+    // Size of the last frame, the part of it decoded, the size of that as decoded and as the
+    // detector's input
+    private int frameWidth;
+    private int frameHeight;
+    private final Rect source = new Rect();
+    private int bitmapWidth;
+    private int bitmapHeight;
+    private int inputWidth;
+    private int inputHeight;
+
+    public FramePreprocessor(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /** Applies from the next frame on. */
+    public void setSettings(Settings settings) {
+        this.settings = settings;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    public int getFrameWidth() {
+        return frameWidth;
+    }
+
+    public int getFrameHeight() {
+        return frameHeight;
+    }
+
+    /**
+     * Decodes a JPEG, or a region of it, at the scale the settings call for.
+     *
+     * @param region Part of the camera image to decode, null for all of it
+     * @return A bitmap from the pool, to release once done with it, or null if the data isn't an
+     * image
+     */
+    public Bitmap decode(byte[] data, int length, Rect region) {
+        Settings current = applySettings();
+        Bitmap bitmap;
+        if (region != null) {
+            bitmap = bitmapPool.decodeRegion(data, 0, length, region, decodeOptions, current.width, current.height);
+        } else {
+            bitmap = bitmapPool.decode(data, 0, length, decodeOptions, current.width, current.height);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        frameWidth = decodeOptions.outWidth;
+        frameHeight = decodeOptions.outHeight;
+        if (region != null) {
+            source.set(region.left, region.top, region.right, region.bottom);
+        } else {
+            source.set(0, 0, frameWidth, frameHeight);
+        }
+        bitmapWidth = bitmap.getWidth();
+        bitmapHeight = bitmap.getHeight();
+        return bitmap;
+    }
+
+    /**
+     * The detector's input for a bitmap from {@link #decode}, or for any other bitmap, such as
+     * the blank frame the detectors are warmed up on.
+     */
+    public TensorImage process(Bitmap bitmap) {
+        Settings current = applySettings();
+        if (directInput != null) {
+            inputWidth = directInput.getWidth();
+            inputHeight = directInput.getHeight();
+            return directInput.fill(bitmap);
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (imageProcessor == null || processorWidth != width || processorHeight != height) {
+            imageProcessor = buildProcessor(current, width, height);
+            processorWidth = width;
+            processorHeight = height;
+        }
+        tensorImage.load(bitmap);
+        TensorImage input = imageProcessor.process(tensorImage);
+        inputWidth = input.getWidth();
+        inputHeight = input.getHeight();
+        return input;
+    }
+
+    // The settings last set, with the direct tensor built for them
+    private Settings applySettings() {
+        Settings current = settings;
+        if (current != appliedSettings) {
+            appliedSettings = current;
+            imageProcessor = null;
+            // The detector takes uint8 and normalises it itself
+            directInput = current.direct && !current.isFullResolution()
+                    ? new DirectTensorInput(current.width, current.height, current.grayscale,
+                    DataType.UINT8, 0, 1)
+                    : null;
+        }
+        return current;
+    }
+
+    private static ImageProcessor buildProcessor(Settings settings, int width, int height) {
+        ImageProcessor.Builder builder = new ImageProcessor.Builder();
+        // The decoder already scaled down most of the way, and may have landed on the size
+        if (!settings.isFullResolution() && (width != settings.width || height != settings.height)) {
+            builder.add(new ResizeOp(settings.height, settings.width, ResizeOp.ResizeMethod.BILINEAR));
+        }
+        // Normalisation is left to the detector, which takes it from the model's metadata
+        if (settings.grayscale) {
+            builder.add(new TransformToGrayscaleOp());
+        }
+        return builder.build();
+    }
+
+    /** Maps a box on the detector's input to the camera image. */
+    public RectF toFrame(RectF box, RectF out) {
+        scale(box, (float) (source.right - source.left) / inputWidth,
+                (float) (source.bottom - source.top) / inputHeight, out);
+        out.offset(source.left, source.top);
+        return out;
+    }
+
+    /** Width over height of the detector's input, or of the frame at full resolution. */
+    public float getInputAspect() {
+        Settings current = settings;
+        if (!current.isFullResolution()) {
+            return (float) current.width / current.height;
+        }
+        return frameHeight > 0 ? (float) frameWidth / frameHeight : 4f / 3;
+    }
+
+    /** Smallest crop worth decoding: the detector's input, if it is known. */
+    public int getMinCrop(int fallback) {
+        Settings current = settings;
+        return current.isFullResolution() ? fallback : Math.max(current.width, current.height);
+    }
+
+    /** Maps a box on the detector's input to the decoded bitmap. */
+    public RectF toBitmap(RectF box, RectF out) {
+        return scale(box, (float) bitmapWidth / inputWidth, (float) bitmapHeight / inputHeight, out);
+    }
+
+    private static RectF scale(RectF box, float sx, float sy, RectF out) {
+        out.set(box.left * sx, box.top * sy, box.right * sx, box.bottom * sy);
+        return out;
+    }
+}
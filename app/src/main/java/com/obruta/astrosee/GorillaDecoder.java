@@ -0,0 +1,182 @@
+package com.obruta.astrosee;
+
+/**
+ * Reads back the blocks written by {@link GorillaEncoder}, one sample at a time and without
+ * allocating.
+ */
+public class GorillaDecoder {
+    private byte[] buffer;
+    private int bytePosition;
+    private int bitPosition;
+    private int end;
+
+    private int width;
+    private int remaining;
+    private int decoded;
+    private final long[] times = new long[GorillaEncoder.TIMESTAMPS];
+    private final long[] deltas = new long[GorillaEncoder.TIMESTAMPS];
+    private final long[] previousBits = new long[GorillaEncoder.MAX_WIDTH];
+    private final int[] previousLeading = new int[GorillaEncoder.MAX_WIDTH];
+    private final int[] previousTrailing = new int[GorillaEncoder.MAX_WIDTH];
+    private final boolean[] narrow = new boolean[GorillaEncoder.MAX_WIDTH];
+
+    /**
+     * Starts reading a block.
+     *
+     * @param width Number of values per sample
+     * @param count Number of samples in the block
+     */
+    public void reset(byte[] buffer, int offset, int length, int width, int count) {
+        this.buffer = buffer;
+        this.bytePosition = offset;
+        this.bitPosition = 0;
+        this.end = offset + length;
+        this.width = width;
+        this.remaining = count;
+        this.decoded = 0;
+    }
+
+    public boolean hasNext() {
+        return remaining > 0;
+    }
+
+    /**
+     * Decodes the next sample.
+     *
+     * @param values Receives the sample's values from offset
+     * @throws IllegalArgumentException if the block is shorter than its sample count says
+     */
+    public void next(double[] values, int offset) {
+        if (remaining == 0) {
+            throw new IllegalStateException("No more samples in this block");
+        }
+        readTimestamp(0);
+        readTimestamp(1);
+        for (int i = 0; i < width; i++) {
+            values[offset + i] = Double.longBitsToDouble(readValue(i));
+        }
+        decoded++;
+        remaining--;
+    }
+
+    /** Receive time of the last decoded sample, ms. */
+    public long getReceiveTime() {
+        return times[0];
+    }
+
+    /** Header stamp of the last decoded sample, ns. */
+    public long getStamp() {
+        return times[1];
+    }
+
+    private void readTimestamp(int index) {
+        if (decoded == 0) {
+            times[index] = readBits(64);
+            deltas[index] = 0;
+            return;
+        }
+        long deltaOfDeltas;
+        if (readBits(1) == 0) {
+            deltaOfDeltas = 0;
+        } else if (readBits(1) == 0) {
+            deltaOfDeltas = signed(readBits(7), 7);
+        } else if (readBits(1) == 0) {
+            deltaOfDeltas = signed(readBits(12), 12);
+        } else if (readBits(1) == 0) {
+            deltaOfDeltas = signed(readBits(20), 20);
+        } else if (readBits(1) == 0) {
+            deltaOfDeltas = signed(readBits(32), 32);
+        } else {
+            deltaOfDeltas = readBits(64);
+        }
+        deltas[index] += deltaOfDeltas;
+        times[index] += deltas[index];
+    }
+
+    private long readValue(int index) {
+        if (decoded == 0) {
+            narrow[index] = readBits(1) == 1;
+            previousBits[index] = readBits(narrow[index] ? 32 : 64);
+            previousLeading[index] = -1;
+            return bits(index);
+        }
+        if (narrow[index]) {
+            return readNarrow(index);
+        }
+        if (readBits(1) == 0) {
+            return previousBits[index];
+        }
+        if (readBits(1) == 0) {
+            if (previousLeading[index] < 0) {
+                throw new IllegalArgumentException("Corrupt block");
+            }
+            int meaningful = 64 - previousLeading[index] - previousTrailing[index];
+            previousBits[index] ^= readBits(meaningful) << previousTrailing[index];
+        } else {
+            int leading = (int) readBits(5);
+            int meaningful = (int) readBits(6) + 1;
+            int trailing = 64 - leading - meaningful;
+            if (trailing < 0) {
+                throw new IllegalArgumentException("Corrupt block");
+            }
+            previousBits[index] ^= readBits(meaningful) << trailing;
+            previousLeading[index] = leading;
+            previousTrailing[index] = trailing;
+        }
+        return previousBits[index];
+    }
+
+    private long readNarrow(int index) {
+        if (readBits(1) == 0) {
+            return bits(index);
+        }
+        if (readBits(1) == 0) {
+            if (previousLeading[index] < 0) {
+                throw new IllegalArgumentException("Corrupt block");
+            }
+            previousBits[index] ^= readBits(32 - GorillaEncoder.NARROW_LEADING[previousLeading[index]]);
+        } else if (readBits(1) == 0) {
+            int leadingClass = (int) readBits(3);
+            previousBits[index] ^= readBits(32 - GorillaEncoder.NARROW_LEADING[leadingClass]);
+            previousLeading[index] = leadingClass;
+        } else {
+            // Wide from here on
+            narrow[index] = false;
+            previousBits[index] = readBits(64);
+            previousLeading[index] = -1;
+        }
+        return bits(index);
+    }
+
+    // The double bits of a value, widened from its float bits if it is narrow
+    private long bits(int index) {
+        if (!narrow[index]) {
+            return previousBits[index];
+        }
+        return Double.doubleToRawLongBits(Float.intBitsToFloat((int) previousBits[index]));
+    }
+
+    private static long signed(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    private long readBits(int n) {
+        long value = 0;
+        while (n > 0) {
+            if (bytePosition >= end) {
+                throw new IllegalArgumentException("Truncated block");
+            }
+            int available = 8 - bitPosition;
+            int take = Math.min(available, n);
+            int bits = ((buffer[bytePosition] & 0xFF) >>> (available - take)) & ((1 << take) - 1);
+            value = (value << take) | bits;
+            bitPosition += take;
+            n -= take;
+            if (bitPosition == 8) {
+                bytePosition++;
+                bitPosition = 0;
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,281 @@
+package com.obruta.astrosee;
+
+import java.util.Arrays;
+
+/**
+ * Compresses one topic's samples the way Facebook's Gorilla does: each of the two timestamps as
+ * a delta of deltas, each value XORed with the previous value of the same field, so that regular
+ * rates and slowly changing values take only a few bits. See {@link GorillaDecoder}.
+ *
+ * Most signals come from float32 message fields, or were computed in single precision, so a
+ * value that converts to a float and back unchanged is XORed as its 32 float bits. A value is
+ * narrow from the first sample of the block on if that sample's value is, and goes wide, as
+ * 64 double bits, for the rest of the block from the first sample whose value isn't. Decoding
+ * gives back the exact bits either way.
+ *
+ * An encoder is reused block after block; adding a sample doesn't allocate except for the rare
+ * growth of its buffer.
+ *
+ * Bit stream, per sample:
+ * <pre>
+ *   first sample: both timestamps as raw 64 bit words, then per value
+ *     '1' and 32 float bits, narrow; '0' and 64 double bits, wide
+ *   then, per timestamp, the delta of deltas d:
+ *     '0' d = 0; '10' 7 bits; '110' 12 bits; '1110' 20 bits; '11110' 32 bits; '11111' 64 bits
+ *   then, per wide value, x = bits XOR previous bits:
+ *     '0' x = 0
+ *     '10' meaningful bits of x, within the previous leading/trailing zero window
+ *     '11' 5 bits leading zeros, 6 bits meaningful bit count - 1, meaningful bits of x
+ *   and per narrow value, x = float bits XOR previous float bits:
+ *     '0' x = 0
+ *     '10' x less as many leading zeros as the previous class has
+ *     '110' 3 bits leading zero class, x less the class's leading zeros
+ *     '111' 64 double bits, the value is wide from here on
+ *   where the classes are NARROW_LEADING leading zeros of the 32
+ * </pre>
+ */
+public class GorillaEncoder {
+    public static final int MAX_WIDTH = TelemetryRecorder.MAX_RECORD_VALUES;
+    static final int TIMESTAMPS = 2;
+    // Leading zeros of a narrow value's XOR, by 3 bit class
+    static final int[] NARROW_LEADING = {0, 8, 12, 16, 18, 20, 22, 24};
+
+    private byte[] buffer = new byte[4096];
+    private int bytePosition;
+    private int bitPosition;
+    private int current;
+
+    private int width;
+    private int count;
+    private final long[] previousTimes = new long[TIMESTAMPS];
+    private final long[] previousDeltas = new long[TIMESTAMPS];
+    private final long[] previousBits = new long[MAX_WIDTH];
+    private final int[] previousLeading = new int[MAX_WIDTH];
+    private final int[] previousTrailing = new int[MAX_WIDTH];
+    // Whether each value is XORed as float bits, see narrowBits
+    private final boolean[] narrow = new boolean[MAX_WIDTH];
+    private long firstReceiveTime;
+    private long lastReceiveTime;
+
+    /** Starts a new block of samples with the given number of values. */
+    public void reset(int width) {
+        this.width = Math.min(width, MAX_WIDTH);
+        count = 0;
+        bytePosition = 0;
+        bitPosition = 0;
+        current = 0;
+        Arrays.fill(previousLeading, -1);
+    }
+
+    /**
+     * Adds one sample to the block.
+     *
+     * @param receiveTime Receive time, ms
+     * @param stamp       Header stamp, ns
+     * @param values      getWidth() values starting at offset
+     */
+    public void add(long receiveTime, long stamp, double[] values, int offset) {
+        if (count == 0) {
+            firstReceiveTime = receiveTime;
+        }
+        lastReceiveTime = receiveTime;
+        writeTimestamp(0, receiveTime);
+        writeTimestamp(1, stamp);
+        for (int i = 0; i < width; i++) {
+            writeValue(i, Double.doubleToRawLongBits(values[offset + i]));
+        }
+        count++;
+    }
+
+    /**
+     * Pads the last byte of the block.
+     *
+     * @return Length of the block in {@link #getBuffer()}
+     */
+    public int finish() {
+        if (bitPosition > 0) {
+            flushByte();
+        }
+        return bytePosition;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getFirstReceiveTime() {
+        return firstReceiveTime;
+    }
+
+    public long getLastReceiveTime() {
+        return lastReceiveTime;
+    }
+
+    /** Bytes taken by the block so far. */
+    public int size() {
+        return bytePosition + (bitPosition > 0 ? 1 : 0);
+    }
+
+    private void writeTimestamp(int index, long time) {
+        if (count == 0) {
+            writeBits(time, 64);
+            previousTimes[index] = time;
+            previousDeltas[index] = 0;
+            return;
+        }
+        long delta = time - previousTimes[index];
+        long deltaOfDeltas = delta - previousDeltas[index];
+        previousTimes[index] = time;
+        previousDeltas[index] = delta;
+        if (deltaOfDeltas == 0) {
+            writeBits(0, 1);
+        } else if (fits(deltaOfDeltas, 7)) {
+            writeBits(0b10, 2);
+            writeBits(deltaOfDeltas, 7);
+        } else if (fits(deltaOfDeltas, 12)) {
+            writeBits(0b110, 3);
+            writeBits(deltaOfDeltas, 12);
+        } else if (fits(deltaOfDeltas, 20)) {
+            // Header stamps are in ns, and jitter by tens of microseconds
+            writeBits(0b1110, 4);
+            writeBits(deltaOfDeltas, 20);
+        } else if (fits(deltaOfDeltas, 32)) {
+            writeBits(0b11110, 5);
+            writeBits(deltaOfDeltas, 32);
+        } else {
+            writeBits(0b11111, 5);
+            writeBits(deltaOfDeltas, 64);
+        }
+    }
+
+    private void writeValue(int index, long bits) {
+        if (count == 0) {
+            long floatBits = narrowBits(bits);
+            narrow[index] = floatBits >= 0;
+            if (narrow[index]) {
+                writeBits(1, 1);
+                writeBits(floatBits, 32);
+                previousBits[index] = floatBits;
+            } else {
+                writeBits(0, 1);
+                writeBits(bits, 64);
+                previousBits[index] = bits;
+            }
+            return;
+        }
+        if (narrow[index]) {
+            long floatBits = narrowBits(bits);
+            if (floatBits >= 0) {
+                writeNarrow(index, floatBits);
+                return;
+            }
+            writeBits(0b111, 3);
+            writeBits(bits, 64);
+            narrow[index] = false;
+            previousBits[index] = bits;
+            previousLeading[index] = -1;
+            return;
+        }
+        long xor = bits ^ previousBits[index];
+        previousBits[index] = bits;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        // Leading zeros are sent in 5 bits
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (previousLeading[index] >= 0 && leading >= previousLeading[index]
+                && trailing >= previousTrailing[index]) {
+            writeBits(0b10, 2);
+            writeBits(xor >>> previousTrailing[index], 64 - previousLeading[index] - previousTrailing[index]);
+        } else {
+            int meaningful = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(meaningful - 1, 6);
+            writeBits(xor >>> trailing, meaningful);
+            previousLeading[index] = leading;
+            previousTrailing[index] = trailing;
+        }
+    }
+
+    // Float bits change in their low mantissa bits rather than in a narrow window, so only the
+    // leading zeros are sent, rounded down to a class, as Chimp does
+    private void writeNarrow(int index, long floatBits) {
+        long xor = floatBits ^ previousBits[index];
+        previousBits[index] = floatBits;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int zeros = Long.numberOfLeadingZeros(xor) - 32;
+        int leadingClass = 0;
+        while (leadingClass + 1 < NARROW_LEADING.length && NARROW_LEADING[leadingClass + 1] <= zeros) {
+            leadingClass++;
+        }
+        int previous = previousLeading[index];
+        // The previous class, unless a new one saves more than its 4 bits of description
+        if (previous >= 0 && zeros >= NARROW_LEADING[previous]
+                && NARROW_LEADING[leadingClass] - NARROW_LEADING[previous] <= 4) {
+            writeBits(0b10, 2);
+            writeBits(xor, 32 - NARROW_LEADING[previous]);
+        } else {
+            writeBits(0b110, 3);
+            writeBits(leadingClass, 3);
+            writeBits(xor, 32 - NARROW_LEADING[leadingClass]);
+            previousLeading[index] = leadingClass;
+        }
+    }
+
+    /**
+     * The float bits of a double that converts to a float and back unchanged, as an unsigned
+     * 32 bit number; -1 if it doesn't. NaNs stay wide, their payload needn't survive the trip.
+     */
+    static long narrowBits(long bits) {
+        double wide = Double.longBitsToDouble(bits);
+        float value = (float) wide;
+        if (Double.isNaN(wide) || Double.doubleToRawLongBits(value) != bits) {
+            return -1;
+        }
+        return Float.floatToRawIntBits(value) & 0xFFFFFFFFL;
+    }
+
+    // Whether value fits in a two's complement number of the given bits
+    private static boolean fits(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    // Writes the low n bits of value, most significant first
+    private void writeBits(long value, int n) {
+        while (n > 0) {
+            int free = 8 - bitPosition;
+            int take = Math.min(free, n);
+            int bits = (int) (value >>> (n - take)) & ((1 << take) - 1);
+            current |= bits << (free - take);
+            bitPosition += take;
+            n -= take;
+            if (bitPosition == 8) {
+                flushByte();
+            }
+        }
+    }
+
+    private void flushByte() {
+        if (bytePosition == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[bytePosition++] = (byte) current;
+        current = 0;
+        bitPosition = 0;
+    }
+}
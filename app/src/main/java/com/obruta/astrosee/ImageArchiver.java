@@ -0,0 +1,265 @@
+package com.obruta.astrosee;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves dock cam images, and what was found on them, off the inference thread.
+ *
+ * An image is either raw, the frame's JPEG exactly as it was received, or annotated, the decoded
+ * frame with the detections drawn on it and encoded again. Each is written as IMG_time_seq.jpg
+ * next to a one line IMG_time_seq.json sidecar with the frame's sequence number, stamp and
+ * detections, whose boxes are in the saved image's pixels.
+ *
+ * The images wait in a fixed number of slots for a writer thread; when they are all taken the
+ * image is dropped and counted, the inference thread never waits for the disk. Slots are reused,
+ * so archiving allocates nothing once their buffers have grown to the frame size. There must be
+ * a single producer thread.
+ */
+public class ImageArchiver {
+    private static final String TAG = ImageArchiver.class.getSimpleName();
+    public static final int DEFAULT_CAPACITY = 4;
+    private static final long IDLE_MS = 500;
+
+    /** An image waiting to be written, filled by the producer between begin and submit. */
+    public static class Entry {
+        private long seq;
+        private long stampNs;
+        private long receivedMs;
+        private boolean raw;
+        private byte[] jpeg = new byte[0];
+        private int length;
+        private Bitmap bitmap;
+        private final Canvas canvas = new Canvas();
+        private int count;
+        private String[] labels = new String[4];
+        private float[] scores = new float[4];
+        private float[] boxes = new float[16];
+
+        /** Saves the frame's JPEG as it is; the data is copied. */
+        public void setJpeg(byte[] data, int length) {
+            if (jpeg.length < length) {
+                jpeg = new byte[length + length / 4];
+            }
+            System.arraycopy(data, 0, jpeg, 0, length);
+            this.length = length;
+            raw = true;
+        }
+
+        /** Saves the decoded frame, annotated with the detections; the pixels are copied. */
+        public void setBitmap(Bitmap frame) {
+            if (bitmap == null || bitmap.getWidth() != frame.getWidth()
+                    || bitmap.getHeight() != frame.getHeight()) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+                bitmap = Bitmap.createBitmap(frame.getWidth(), frame.getHeight(), Bitmap.Config.ARGB_8888);
+            }
+            canvas.setBitmap(bitmap);
+            canvas.drawBitmap(frame, 0, 0, null);
+            raw = false;
+        }
+
+        /** @param box In the pixels of the image being saved */
+        public void addDetection(String label, float score, RectF box) {
+            if (count == labels.length) {
+                labels = Arrays.copyOf(labels, count * 2);
+                scores = Arrays.copyOf(scores, count * 2);
+                boxes = Arrays.copyOf(boxes, count * 8);
+            }
+            labels[count] = label != null ? label : "";
+            scores[count] = score;
+            boxes[4 * count] = box.left;
+            boxes[4 * count + 1] = box.top;
+            boxes[4 * count + 2] = box.right;
+            boxes[4 * count + 3] = box.bottom;
+            count++;
+        }
+    }
+
+    private final File directory;
+    private final ArrayBlockingQueue<Entry> free;
+    private final ArrayBlockingQueue<Entry> filled;
+    private final AtomicLong saved = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean running = false;
+    private Thread writer;
+
+    // Only touched by the writer thread
+    private final Paint paint = new Paint();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmssSSS", Locale.US);
+    private final StringBuilder sidecar = new StringBuilder(256);
+
+    /** @param capacity Images that may wait for the disk at once */
+    public ImageArchiver(String directory, int capacity) {
+        this.directory = new File(directory);
+        free = new ArrayBlockingQueue<>(capacity);
+        filled = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new Entry());
+        }
+        paint.setColor(Color.RED);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(3);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        writer.start();
+    }
+
+    /** Stops once the images already submitted are written. */
+    public synchronized void stop() {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * A slot for the next image, to fill and then {@link #submit}.
+     *
+     * @param stampNs Stamp of the frame's header
+     * @return The slot, or null if they are all waiting for the disk; the image is then dropped
+     */
+    public Entry begin(long seq, long stampNs) {
+        Entry entry = free.poll();
+        if (entry == null) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        entry.seq = seq;
+        entry.stampNs = stampNs;
+        entry.receivedMs = System.currentTimeMillis();
+        entry.count = 0;
+        return entry;
+    }
+
+    public void submit(Entry entry) {
+        filled.offer(entry);
+    }
+
+    /** Images written. */
+    public long getSaved() {
+        return saved.get();
+    }
+
+    /** Images dropped because every slot was waiting for the disk. */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Bytes written, images and sidecars. */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private void writeLoop() {
+        while (running || !filled.isEmpty()) {
+            Entry entry;
+            try {
+                entry = filled.poll(IDLE_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (entry == null) {
+                continue;
+            }
+            try {
+                write(entry);
+                saved.incrementAndGet();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save image " + entry.seq, e);
+            } finally {
+                for (int i = 0; i < entry.count; i++) {
+                    entry.labels[i] = null;
+                }
+                free.offer(entry);
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        String name = "IMG_" + dateFormat.format(new Date(entry.receivedMs)) + "_" + entry.seq;
+        File imageFile = new File(directory, name + ".jpg");
+        FileOutputStream image = new FileOutputStream(imageFile);
+        try {
+            if (entry.raw) {
+                image.write(entry.jpeg, 0, entry.length);
+            } else {
+                for (int i = 0; i < entry.count; i++) {
+                    entry.canvas.drawRect(entry.boxes[4 * i], entry.boxes[4 * i + 1],
+                            entry.boxes[4 * i + 2], entry.boxes[4 * i + 3], paint);
+                }
+                entry.bitmap.compress(Bitmap.CompressFormat.JPEG, 100, image);
+            }
+        } finally {
+            image.close();
+        }
+        bytes.addAndGet(imageFile.length());
+
+        byte[] json = toSidecar(entry).getBytes(StandardCharsets.UTF_8);
+        FileOutputStream out = new FileOutputStream(new File(directory, name + ".json"));
+        try {
+            out.write(json);
+        } finally {
+            out.close();
+        }
+        bytes.addAndGet(json.length);
+    }
+
+    private String toSidecar(Entry entry) {
+        StringBuilder sb = sidecar;
+        sb.setLength(0);
+        sb.append("{\"seq\": ").append(entry.seq)
+                .append(", \"stamp_ns\": ").append(entry.stampNs)
+                .append(", \"received_ms\": ").append(entry.receivedMs)
+                .append(", \"raw\": ").append(entry.raw)
+                .append(", \"detections\": [");
+        for (int i = 0; i < entry.count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("{\"label\": \"").append(entry.labels[i].replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append(String.format(Locale.US, "\", \"score\": %.3f, \"box\": [%.1f, %.1f, %.1f, %.1f]}",
+                            entry.scores[i], entry.boxes[4 * i], entry.boxes[4 * i + 1],
+                            entry.boxes[4 * i + 2], entry.boxes[4 * i + 3]));
+        }
+        sb.append("]}\n");
+        return sb.toString();
+    }
+}
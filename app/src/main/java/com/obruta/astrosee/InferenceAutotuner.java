@@ -0,0 +1,203 @@
+package com.obruta.astrosee;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.task.vision.detector.ObjectDetector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Finds how the detector runs fastest on this HLP: times it on a sample frame on 1 up to every
+ * core, and through NNAPI, then keeps the quickest. A choice within TOLERANCE of the quickest
+ * that takes fewer threads is preferred, since the other threads are then left to the rest of
+ * the HLP; a CPU cap bounds the threads tried.
+ *
+ * The choice is saved to dataPath/inference_tuning.json, and reused by later starts for as long
+ * as the model and the number of cores are the same. Only for the inference thread.
+ */
+public class InferenceAutotuner {
+    private static final String TAG = InferenceAutotuner.class.getSimpleName();
+    public static final String FILE_NAME = "inference_tuning.json";
+    // Timed runs of each configuration, after the untimed ones
+    private static final int RUNS = 10;
+    private static final int WARM_UP_RUNS = 2;
+    private static final double TOLERANCE = 0.05;
+
+    /** How to run the detector, and how fast it ran. */
+    public static class Choice {
+        private final int threads;
+        private final boolean nnapi;
+        private final double latencyMs;
+        private final int cores;
+        private final String model;
+
+        Choice(int threads, boolean nnapi, double latencyMs, int cores, String model) {
+            this.threads = threads;
+            this.nnapi = nnapi;
+            this.latencyMs = latencyMs;
+            this.cores = cores;
+            this.model = model;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public boolean isNnapi() {
+            return nnapi;
+        }
+
+        /** Median time of a detection when it was chosen. */
+        public double getLatencyMs() {
+            return latencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return (nnapi ? "NNAPI" : threads + " threads") + String.format(Locale.US, " at %.1f ms", latencyMs);
+        }
+    }
+
+    private final File file;
+    private final double[] times = new double[RUNS];
+
+    public InferenceAutotuner(String dataPath) {
+        this.file = new File(dataPath, FILE_NAME);
+    }
+
+    /** The saved choice for the model, or null if there is none for it on this many cores. */
+    public Choice load(String model) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(read(file));
+            Choice choice = new Choice(json.getInt("threads"), json.getBoolean("nnapi"),
+                    json.getDouble("latency_ms"), json.getInt("cores"), json.getString("model"));
+            if (choice.cores != cores() || !model.equals(choice.model)) {
+                Log.i(TAG, "Saved tuning is for " + choice.model + " on " + choice.cores + " cores");
+                return null;
+            }
+            return choice;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Ignoring " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Times the model on every configuration and saves the quickest.
+     *
+     * @param image  Sample frame, as the detector takes it
+     * @param cpuCap Most threads to try, 0 for every core
+     * @return The choice, or null if the model couldn't be run at all
+     */
+    public Choice calibrate(Context context, DetectorScheduler.Model model, TensorImage image, int cpuCap)
+            throws InterruptedException {
+        int cores = cores();
+        int maxThreads = cpuCap > 0 ? Math.min(cpuCap, cores) : cores;
+        Choice best = null;
+        // NNAPI first, so that CPU configurations only win by being quicker
+        for (int threads = 0; threads <= maxThreads; threads++) {
+            boolean nnapi = threads == 0;
+            double latencyMs = time(context, model, image, nnapi ? 1 : threads, nnapi);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (Double.isNaN(latencyMs)) {
+                continue;
+            }
+            Log.i(TAG, model.getName() + (nnapi ? " through NNAPI" : " on " + threads + " threads")
+                    + String.format(Locale.US, ": %.1f ms", latencyMs));
+            // More threads have to be clearly quicker
+            if (best == null || latencyMs < best.latencyMs * (1 - TOLERANCE)) {
+                best = new Choice(nnapi ? 1 : threads, nnapi, latencyMs, cores, model.getFile());
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        Log.i(TAG, "Running " + model.getName() + " with " + best);
+        save(best);
+        return best;
+    }
+
+    // Median time of a detection, NaN if the configuration can't be built or run
+    private double time(Context context, DetectorScheduler.Model model, TensorImage image, int threads,
+                        boolean nnapi) {
+        ObjectDetector detector = null;
+        try {
+            detector = DetectorScheduler.create(context, model, DetectorScheduler.options(model, threads, nnapi));
+            for (int i = 0; i < WARM_UP_RUNS; i++) {
+                detector.detect(image);
+            }
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                detector.detect(image);
+                times[i] = (System.nanoTime() - start) / 1e6;
+            }
+            Arrays.sort(times);
+            return times[RUNS / 2];
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not run " + model.getName() + (nnapi ? " through NNAPI" : " on " + threads
+                    + " threads") + ": " + e.getMessage());
+            return Double.NaN;
+        } finally {
+            if (detector != null) {
+                detector.close();
+            }
+        }
+    }
+
+    private void save(Choice choice) {
+        try {
+            String json = new JSONObject()
+                    .put("threads", choice.threads)
+                    .put("nnapi", choice.nnapi)
+                    .put("latency_ms", choice.latencyMs)
+                    .put("cores", choice.cores)
+                    .put("model", choice.model)
+                    .toString();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.close();
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not save " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return new String(data, 0, read, StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int cores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,93 @@
+package com.obruta.astrosee;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values in logarithmic buckets: values below SUB_BUCKETS have a bucket
+ * each, above that every power of two is split into SUB_BUCKETS buckets, so any value is known
+ * to within about 6%. Values past MAX_VALUE are counted in the last bucket.
+ *
+ * The buckets are fixed when the histogram is created, so recording never allocates. There must
+ * be a single writer; readers on other threads see every count it published, without locking.
+ */
+public class LogHistogram {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_EXPONENT = 31;
+    public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    public static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** Adds one value; only call from the writer thread. */
+    public void record(long value) {
+        int bucket = bucketOf(value);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+    }
+
+    /**
+     * Copies what was counted since base was last moved, then moves base up to now, so that a
+     * reader can follow the histogram window by window.
+     *
+     * @param base Counts at the previous call, BUCKETS long and zero at first
+     * @param dst  At least BUCKETS long
+     * @return Total of the counts copied
+     */
+    public long copySince(long[] base, long[] dst) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            dst[i] = count - base[i];
+            base[i] = count;
+            total += dst[i];
+        }
+        return total;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return value <= 0 ? 0 : (int) value;
+        }
+        if (value > MAX_VALUE) {
+            return BUCKETS - 1;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Largest value counted in a bucket. */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+
+    /**
+     * The value below which the given fraction of the counted values fall, as the upper bound of
+     * its bucket.
+     *
+     * @param counts   Counts as copied by {@link #copySince}
+     * @param total    Total of the counts
+     * @param quantile From 0 to 1; 1 gives the largest value
+     * @return The value, 0 if nothing was counted
+     */
+    public static long valueAt(long[] counts, long total, double quantile) {
+        if (total <= 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
@@ -35,6 +35,7 @@ public class MainActivity extends RosActivity implements AstroseeServiceListener
     private boolean isBound = false;
     private Handler handler;
     private AstroseeNode node;
+    private volatile TelemetryFormat telemetryFormat = TelemetryFormat.JSON;
 
     private ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
@@ -120,10 +121,19 @@ public class MainActivity extends RosActivity implements AstroseeServiceListener
         handler = new Handler(getMainLooper(), new Handler.Callback() {
             @Override
             public boolean handleMessage(@NonNull Message message) {
-                gsService.sendData(MessageType.JSON, "data", node.getData().toString());
-
-                // Schedule the next execution
-                handler.sendEmptyMessageDelayed(0, 1000); // Choose how frequently to send the data
+                int bytesSent;
+                if (telemetryFormat == TelemetryFormat.BINARY) {
+                    byte[] data = node.getBinaryData();
+                    gsService.sendData(MessageType.BINARY, "data", data);
+                    bytesSent = data.length;
+                } else {
+                    String data = node.getData().toString();
+                    gsService.sendData(MessageType.JSON, "data", data);
+                    bytesSent = TelemetryEncoder.utf8Length(data);
+                }
+
+                // Schedule the next execution, the node decides how often to send within its budget
+                handler.sendEmptyMessageDelayed(0, node.nextTelemetryDelay(bytesSent));
                 return true;
             }
         });
@@ -136,4 +146,109 @@ public class MainActivity extends RosActivity implements AstroseeServiceListener
     public void onVisionEnable(boolean enable) {
         node.enableImageProcessing(enable);
     }
+
+    @Override
+    public void onTelemetryFormatChange(TelemetryFormat format) {
+        telemetryFormat = format;
+    }
+
+    @Override
+    public void onTelemetryDeltaChange(boolean enable, int keyframeInterval) {
+        node.enableDeltaTelemetry(enable, keyframeInterval);
+    }
+
+    @Override
+    public void onTelemetryEpsilonChange(TelemetryField field, double epsilon) {
+        node.setDeltaEpsilon(field, epsilon);
+    }
+
+    @Override
+    public void onDownlinkBudgetChange(int bytesPerSecond, long activePeriodMs, long idlePeriodMs, int idlePhase) {
+        node.setDownlinkBudget(bytesPerSecond, activePeriodMs, idlePeriodMs, idlePhase);
+    }
+
+    @Override
+    public void onFieldPriorityChange(TelemetryField field, int priority) {
+        node.setFieldPriority(field, priority);
+    }
+
+    @Override
+    public void onTelemetryStatsChange(long windowMs, boolean inPlace, long fieldMask) {
+        node.setTelemetryStats(windowMs, inPlace, fieldMask);
+    }
+
+    @Override
+    public void onRecordingEnable(boolean enable, int segmentSize) {
+        node.enableRecording(enable, segmentSize);
+    }
+
+    @Override
+    public void onTelemetryQuery(String[] topics, long fromMs, long toMs, int decimation) {
+        node.queryTelemetry(topics, fromMs, toMs, decimation, new TelemetryArchive.Sink() {
+            @Override
+            public void send(String chunk) {
+                gsService.sendData(MessageType.JSON, "data", chunk);
+            }
+        });
+    }
+
+    @Override
+    public void onTopicStatsRequest() {
+        node.reportTopicStats(new TelemetryArchive.Sink() {
+            @Override
+            public void send(String chunk) {
+                gsService.sendData(MessageType.JSON, "data", chunk);
+            }
+        });
+    }
+
+    @Override
+    public void onTopicSummaryChange(long periodMs) {
+        node.setTopicSummaryPeriod(periodMs);
+    }
+
+    @Override
+    public void onVisionStatsRequest() {
+        gsService.sendData(MessageType.JSON, "data", node.getVisionStats());
+    }
+
+    @Override
+    public void onPreprocessingChange(FramePreprocessor.Settings settings) {
+        node.setPreprocessing(settings);
+    }
+
+    @Override
+    public void onRoiTrackingChange(boolean enable, float margin, int redetectEvery) {
+        node.setRoiTracking(enable, margin, redetectEvery);
+    }
+
+    @Override
+    public void onBoxTrackerChange(boolean enable, int detectEvery, float alpha, float beta, long maxPredictMs) {
+        node.setBoxTracker(enable, detectEvery, alpha, beta, maxPredictMs);
+    }
+
+    @Override
+    public void onModelsChange(boolean pose, int threadBudget) {
+        node.setModels(pose, threadBudget);
+    }
+
+    @Override
+    public void onImageSavingChange(boolean enable, boolean raw) {
+        node.enableImageSaving(enable, raw);
+    }
+
+    @Override
+    public void onInferenceCalibrate(int cpuCap) {
+        node.calibrateInference(cpuCap);
+    }
+
+    @Override
+    public void onModelLadderChange(String[] models, long targetMs) {
+        node.setModelLadder(models, targetMs);
+    }
+
+    @Override
+    public void onModelLoad(int model, String file) {
+        node.loadModel(model, file);
+    }
 }
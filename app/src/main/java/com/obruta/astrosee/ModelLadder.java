@@ -0,0 +1,167 @@
+package com.obruta.astrosee;
+
+/**
+ * Picks the detection model from a ladder of variants, best first and quickest last, for
+ * example float and int8 quantized models at smaller and smaller input sizes, to keep the
+ * detector's time within a frame budget as the load on the HLP changes.
+ *
+ * The detector's time is smoothed over a few frames. The ladder steps down to a quicker model
+ * after DOWN_FRAMES frames in a row over the target, and back up after upFrames frames in a row
+ * under UP_FRACTION of it. Each step up that has to be undone straight away doubles upFrames, so
+ * that a model that doesn't fit isn't retried every second; a step up that holds resets it.
+ * A model that doesn't load is skipped until the ladder is configured again.
+ *
+ * Configured from any thread, otherwise only used by the inference thread.
+ */
+public class ModelLadder {
+    public static final long DEFAULT_TARGET_MS = 200;
+    // Weight of the latest frame in the smoothed time
+    private static final double SMOOTHING = 0.2;
+    private static final int DOWN_FRAMES = 5;
+    private static final double UP_FRACTION = 0.7;
+    private static final int UP_FRAMES = 30;
+    private static final int MAX_UP_FRAMES = 960;
+
+    private volatile String[] rungs = new String[0];
+    private volatile long targetMs = DEFAULT_TARGET_MS;
+
+    // Only touched by the inference thread
+    private String[] active = rungs;
+    // Rungs whose model didn't load
+    private boolean[] failed = new boolean[0];
+    private int rung = 0;
+    private double smoothedMs = Double.NaN;
+    private double stepMs = Double.NaN;
+    private int over = 0;
+    private int under = 0;
+    private int upFrames = UP_FRAMES;
+    // Frames since the last step up, -1 once it held
+    private int sinceStepUp = -1;
+
+    /**
+     * @param models   Model files, best first; none to go back to the model the node started with
+     * @param targetMs Time the detector should take on a frame
+     */
+    public void configure(String[] models, long targetMs) {
+        this.targetMs = Math.max(1, targetMs);
+        this.rungs = models.clone();
+    }
+
+    public boolean isEnabled() {
+        return rungs.length > 0;
+    }
+
+    /** The model file to run, or null for the node's own. */
+    public String getModel() {
+        return active.length > 0 ? active[rung] : null;
+    }
+
+    /** Where the running model is on the ladder, 0 for the best. */
+    public int getRung() {
+        return rung;
+    }
+
+    /** Smoothed time of the detector that made the last step, ms, NaN if there was none. */
+    public double getStepMs() {
+        return stepMs;
+    }
+
+    /**
+     * Takes in the time the detector took on a frame.
+     *
+     * @return Whether the model changed, see {@link #getModel()}
+     */
+    public boolean update(double latencyMs) {
+        if (reconfigure()) {
+            return true;
+        }
+        if (active.length < 2) {
+            return false;
+        }
+
+        smoothedMs = Double.isNaN(smoothedMs) ? latencyMs : smoothedMs + SMOOTHING * (latencyMs - smoothedMs);
+        long target = targetMs;
+        over = smoothedMs > target ? over + 1 : 0;
+        under = smoothedMs < target * UP_FRACTION ? under + 1 : 0;
+        if (sinceStepUp >= 0 && ++sinceStepUp >= upFrames) {
+            // The step up held
+            sinceStepUp = -1;
+            upFrames = UP_FRAMES;
+        }
+
+        int down = next(rung, 1);
+        if (over >= DOWN_FRAMES && down >= 0) {
+            if (sinceStepUp >= 0) {
+                upFrames = Math.min(upFrames * 2, MAX_UP_FRAMES);
+            }
+            step(down);
+            sinceStepUp = -1;
+            return true;
+        }
+        int up = next(rung, -1);
+        if (under >= upFrames && up >= 0) {
+            step(up);
+            sinceStepUp = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes in that the running model didn't load, and moves to the next quicker model that
+     * did, or failing that the next better one.
+     *
+     * @return Whether the model changed, see {@link #getModel()}
+     */
+    public boolean fail() {
+        if (reconfigure()) {
+            return true;
+        }
+        if (active.length < 2) {
+            return false;
+        }
+        failed[rung] = true;
+        int to = next(rung, 1);
+        if (to < 0) {
+            to = next(rung, -1);
+        }
+        if (to < 0) {
+            return false;
+        }
+        step(to);
+        sinceStepUp = -1;
+        return true;
+    }
+
+    // Starts the ladder over from its best model when it was configured again
+    private boolean reconfigure() {
+        String[] configured = rungs;
+        if (configured == active) {
+            return false;
+        }
+        active = configured;
+        failed = new boolean[configured.length];
+        upFrames = UP_FRAMES;
+        step(0);
+        return true;
+    }
+
+    // The nearest rung in that direction whose model hasn't failed, -1 if there is none
+    private int next(int from, int direction) {
+        for (int i = from + direction; i >= 0 && i < active.length; i += direction) {
+            if (!failed[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The times of the previous model say nothing of the next, so the smoothing starts over
+    private void step(int to) {
+        rung = to;
+        stepMs = smoothedMs;
+        smoothedMs = Double.NaN;
+        over = 0;
+        under = 0;
+    }
+}
@@ -0,0 +1,101 @@
+package com.obruta.astrosee;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Picks the part of the next dock cam frame to run the detector on. Once the target has been
+ * found, it is looked for in a crop around its last box, grown by a margin on every side; the
+ * whole frame is searched again when the crop loses it, and every redetectEvery frames in case
+ * the crop settled on the wrong thing.
+ *
+ * Configured from any thread, otherwise only used by the inference thread.
+ */
+public class RoiTracker {
+    public static final float DEFAULT_MARGIN = 0.5f;
+    public static final int DEFAULT_REDETECT_EVERY = 30;
+    // Smallest side of a crop, px of the camera image
+    public static final int DEFAULT_MIN_CROP = 160;
+
+    private volatile boolean enabled = false;
+    private volatile float margin = DEFAULT_MARGIN;
+    private volatile int redetectEvery = DEFAULT_REDETECT_EVERY;
+
+    // Only touched by the inference thread
+    private final RectF lastBox = new RectF();
+    private boolean tracking = false;
+    private boolean cropped = false;
+    private int framesSinceFull = 0;
+    private long crops = 0;
+    private long losses = 0;
+
+    /**
+     * @param margin        Added on each side of the last box, as a fraction of its larger side
+     * @param redetectEvery Frames between searches of the whole frame, 0 for only on a loss
+     */
+    public void configure(boolean enabled, float margin, int redetectEvery) {
+        this.margin = Math.max(0, margin);
+        this.redetectEvery = Math.max(0, redetectEvery);
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The region of the next frame to search.
+     *
+     * @param frameWidth Size of the camera image, the crop is moved inside it where it fits
+     * @param aspect     Width over height of the crop, that of the detector's input
+     * @param minSize    Smallest side of the crop
+     * @param region     Set to the crop
+     * @return Whether to crop at all; if not, the whole frame is searched
+     */
+    public boolean nextRegion(int frameWidth, int frameHeight, float aspect, int minSize, Rect region) {
+        cropped = enabled && tracking && (redetectEvery == 0 || framesSinceFull < redetectEvery);
+        if (!cropped) {
+            return false;
+        }
+        float side = Math.max(lastBox.right - lastBox.left, lastBox.bottom - lastBox.top) * (1 + 2 * margin);
+        float width = Math.max(side, minSize);
+        float height = width / aspect;
+        if (height < side) {
+            height = side;
+            width = side * aspect;
+        }
+        float left = Math.max(0, Math.min(frameWidth - width, (lastBox.left + lastBox.right - width) / 2));
+        float top = Math.max(0, Math.min(frameHeight - height, (lastBox.top + lastBox.bottom - height) / 2));
+        region.set(Math.round(left), Math.round(top), Math.round(left + width), Math.round(top + height));
+        crops++;
+        return true;
+    }
+
+    /**
+     * Takes in what the detector found on the region given by the last {@link #nextRegion}.
+     *
+     * @param box Box of the target on the camera image, null if it wasn't found
+     */
+    public void update(RectF box) {
+        framesSinceFull = cropped ? framesSinceFull + 1 : 0;
+        if (box != null) {
+            lastBox.set(box);
+            tracking = true;
+        } else {
+            if (cropped) {
+                losses++;
+            }
+            tracking = false;
+        }
+    }
+
+    /** Frames searched in a crop rather than whole. */
+    public long getCrops() {
+        return crops;
+    }
+
+    /** Times the target was lost in a crop. */
+    public long getLosses() {
+        return losses;
+    }
+}
@@ -5,10 +5,13 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 // import org.opencv.android.OpenCVLoader;
 
+import java.util.Iterator;
+
 import gov.nasa.arc.astrobee.android.gs.MessageType;
 import gov.nasa.arc.astrobee.android.gs.StartGuestScienceService;
 
@@ -123,6 +126,246 @@ public class StartAstroseeService extends StartGuestScienceService {
                             .put("Message", "Vision Stopped"));
                     Log.i(TAG, "Executed stop_vision");
                     break;
+                case "set_telemetry_format":
+                    TelemetryFormat format = TelemetryFormat.fromName(jCommand.getString("format"));
+                    listener.onTelemetryFormatChange(format);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Telemetry format set to " + format));
+                    Log.i(TAG, "Executed set_telemetry_format");
+                    break;
+                case "set_telemetry_delta":
+                    boolean deltaEnable = jCommand.getBoolean("enable");
+                    int keyframeInterval = jCommand.optInt("keyframe_interval",
+                            TelemetryDeltaTracker.DEFAULT_KEYFRAME_INTERVAL);
+                    // Optional per-field thresholds, e.g. {"EKF_POSITION": 0.001}
+                    JSONObject epsilons = jCommand.optJSONObject("epsilon");
+                    if (epsilons != null) {
+                        Iterator<String> fields = epsilons.keys();
+                        while (fields.hasNext()) {
+                            String field = fields.next();
+                            listener.onTelemetryEpsilonChange(TelemetryField.valueOf(field),
+                                    epsilons.getDouble(field));
+                        }
+                    }
+                    listener.onTelemetryDeltaChange(deltaEnable, keyframeInterval);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", deltaEnable
+                                    ? "Delta telemetry on, keyframe every " + keyframeInterval + " ticks"
+                                    : "Delta telemetry off"));
+                    Log.i(TAG, "Executed set_telemetry_delta");
+                    break;
+                case "set_downlink_budget":
+                    int bytesPerSecond = jCommand.getInt("bytes_per_second");
+                    // Optional per-field priorities from 0 (low) to 2 (high), e.g. {"CV_BB_CENTRE": 0}
+                    JSONObject priorities = jCommand.optJSONObject("priority");
+                    if (priorities != null) {
+                        Iterator<String> fields = priorities.keys();
+                        while (fields.hasNext()) {
+                            String field = fields.next();
+                            listener.onFieldPriorityChange(TelemetryField.valueOf(field),
+                                    priorities.getInt(field));
+                        }
+                    }
+                    listener.onDownlinkBudgetChange(bytesPerSecond,
+                            jCommand.optLong("active_period_ms", DownlinkScheduler.DEFAULT_ACTIVE_PERIOD_MS),
+                            jCommand.optLong("idle_period_ms", DownlinkScheduler.DEFAULT_IDLE_PERIOD_MS),
+                            jCommand.optInt("idle_phase", 0));
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", bytesPerSecond > 0
+                                    ? "Downlink budget set to " + bytesPerSecond + " B/s"
+                                    : "Downlink budget removed"));
+                    Log.i(TAG, "Executed set_downlink_budget");
+                    break;
+                case "set_telemetry_stats":
+                    long windowMs = jCommand.getLong("window_ms");
+                    // Optional list of fields, e.g. ["CLIENT_POSITION_ERROR"]; all of them by default
+                    long statsMask = TelemetryField.ALL_FIELDS;
+                    JSONArray statsFields = jCommand.optJSONArray("fields");
+                    if (statsFields != null) {
+                        statsMask = 0;
+                        for (int i = 0; i < statsFields.length(); i++) {
+                            statsMask |= TelemetryField.valueOf(statsFields.getString(i)).mask();
+                        }
+                    }
+                    // The history only reaches back so far, a longer window is cut to it
+                    long usedMs = Math.min(windowMs, TelemetryHistory.MAX_WINDOW_MS);
+                    listener.onTelemetryStatsChange(usedMs, jCommand.optBoolean("in_place", false), statsMask);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", usedMs <= 0 ? "Telemetry statistics off"
+                                    : "Telemetry statistics over " + usedMs + " ms"
+                                    + (usedMs < windowMs ? ", the most the history holds" : "")));
+                    Log.i(TAG, "Executed set_telemetry_stats");
+                    break;
+                case "start_recording":
+                    // Megabytes, clamped by the recorder to what a segment can map
+                    long segmentMb = jCommand.optLong("segment_mb",
+                            TelemetryRecorder.DEFAULT_SEGMENT_SIZE / (1024 * 1024));
+                    int segmentSize = (int) Math.max(0, Math.min(segmentMb * 1024 * 1024,
+                            TelemetryRecorder.MAX_SEGMENT_SIZE));
+                    listener.onRecordingEnable(true, segmentSize);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Recording Started"));
+                    Log.i(TAG, "Executed start_recording");
+                    break;
+                case "stop_recording":
+                    listener.onRecordingEnable(false, 0);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Recording Stopped"));
+                    Log.i(TAG, "Executed stop_recording");
+                    break;
+                case "query_telemetry":
+                    // Either an absolute range or the last last_ms, in ms since the epoch
+                    long toMs = jCommand.optLong("to_ms", System.currentTimeMillis());
+                    long fromMs = jCommand.has("last_ms")
+                            ? toMs - jCommand.getLong("last_ms") : jCommand.getLong("from_ms");
+                    int decimation = jCommand.optInt("decimation", 1);
+                    if (fromMs > toMs || decimation < 1) {
+                        jResult.put("Summary", new JSONObject()
+                                .put("Status", "ERROR")
+                                .put("Message", "Bad time range or decimation"));
+                        break;
+                    }
+                    // Optional list of topics, e.g. ["/gnc/ekf"]; all recorded topics by default
+                    String[] queryTopics = null;
+                    JSONArray topicArray = jCommand.optJSONArray("topics");
+                    if (topicArray != null) {
+                        queryTopics = new String[topicArray.length()];
+                        for (int i = 0; i < queryTopics.length; i++) {
+                            queryTopics[i] = topicArray.getString(i);
+                        }
+                    }
+                    listener.onTelemetryQuery(queryTopics, fromMs, toMs, decimation);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Telemetry query from " + fromMs + " to " + toMs + " queued"));
+                    Log.i(TAG, "Executed query_telemetry");
+                    break;
+                case "get_topic_stats":
+                    // The statistics follow in their own messages
+                    listener.onTopicStatsRequest();
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Topic statistics sent"));
+                    Log.i(TAG, "Executed get_topic_stats");
+                    break;
+                case "set_topic_summary":
+                    long summaryPeriodMs = jCommand.getLong("period_ms");
+                    listener.onTopicSummaryChange(summaryPeriodMs);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", summaryPeriodMs > 0
+                                    ? "Topic summary every " + summaryPeriodMs + " ms"
+                                    : "Topic summary off"));
+                    Log.i(TAG, "Executed set_topic_summary");
+                    break;
+                case "get_vision_stats":
+                    // The statistics follow in their own message
+                    listener.onVisionStatsRequest();
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Vision statistics sent"));
+                    Log.i(TAG, "Executed get_vision_stats");
+                    break;
+                case "set_preprocessing":
+                    // The model's input size, or 0 for the full frame
+                    FramePreprocessor.Settings preprocessing = new FramePreprocessor.Settings(
+                            jCommand.optInt("width", 0), jCommand.optInt("height", 0),
+                            jCommand.optBoolean("grayscale", false),
+                            jCommand.optBoolean("direct", true));
+                    listener.onPreprocessingChange(preprocessing);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Preprocessing frames at " + preprocessing));
+                    Log.i(TAG, "Executed set_preprocessing");
+                    break;
+                case "set_tracking":
+                    boolean tracking = jCommand.getBoolean("enable");
+                    listener.onRoiTrackingChange(tracking,
+                            (float) jCommand.optDouble("margin", RoiTracker.DEFAULT_MARGIN),
+                            jCommand.optInt("redetect_every", RoiTracker.DEFAULT_REDETECT_EVERY));
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", tracking ? "Tracking On" : "Tracking Off"));
+                    Log.i(TAG, "Executed set_tracking");
+                    break;
+                case "set_box_tracker":
+                    boolean boxTracking = jCommand.getBoolean("enable");
+                    int detectEvery = jCommand.optInt("detect_every", BoxTracker.DEFAULT_DETECT_EVERY);
+                    listener.onBoxTrackerChange(boxTracking, detectEvery,
+                            (float) jCommand.optDouble("alpha", BoxTracker.DEFAULT_ALPHA),
+                            (float) jCommand.optDouble("beta", BoxTracker.DEFAULT_BETA),
+                            jCommand.optLong("max_predict_ms", BoxTracker.DEFAULT_MAX_PREDICT_MS));
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", boxTracking
+                                    ? "Detecting on one frame in " + detectEvery
+                                    : "Detecting on every frame"));
+                    Log.i(TAG, "Executed set_box_tracker");
+                    break;
+                case "set_models":
+                    boolean pose = jCommand.optBoolean("pose", false);
+                    // Without a budget, the current threads are kept
+                    int threadBudget = jCommand.optInt("thread_budget", 0);
+                    listener.onModelsChange(pose, threadBudget);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", (pose ? "Detection and pose" : "Detection")
+                                    + (threadBudget > 0 ? " on " + threadBudget + " threads" : "")));
+                    Log.i(TAG, "Executed set_models");
+                    break;
+                case "set_image_saving":
+                    boolean saving = jCommand.getBoolean("enable");
+                    boolean raw = jCommand.optBoolean("raw", true);
+                    listener.onImageSavingChange(saving, raw);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", !saving ? "Image Saving Off"
+                                    : raw ? "Saving Raw Images" : "Saving Annotated Images"));
+                    Log.i(TAG, "Executed set_image_saving");
+                    break;
+                case "set_model_ladder":
+                    // Best model first, none to go back to the usual one
+                    JSONArray ladder = jCommand.optJSONArray("models");
+                    String[] ladderModels = new String[ladder != null ? ladder.length() : 0];
+                    for (int i = 0; i < ladderModels.length; i++) {
+                        ladderModels[i] = ladder.getString(i);
+                    }
+                    long targetMs = jCommand.optLong("target_ms", ModelLadder.DEFAULT_TARGET_MS);
+                    listener.onModelLadderChange(ladderModels, targetMs);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", ladderModels.length > 0
+                                    ? "Model ladder of " + ladderModels.length + " models, to " + targetMs + " ms"
+                                    : "Model ladder off"));
+                    Log.i(TAG, "Executed set_model_ladder");
+                    break;
+                case "load_model":
+                    // Loaded and tested in the background, the outcome follows in the log
+                    String modelFile = jCommand.getString("file");
+                    boolean poseModel = "pose".equals(jCommand.optString("model", "detection"));
+                    listener.onModelLoad(poseModel ? AstroseeNode.MODEL_POSE : AstroseeNode.MODEL_DETECTION,
+                            modelFile);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Loading " + modelFile + (poseModel ? " for pose" : " for detection")));
+                    Log.i(TAG, "Executed load_model");
+                    break;
+                case "calibrate_inference":
+                    // Runs before the next frame, the choice follows in the log
+                    int cpuCap = jCommand.optInt("cpu_cap", 0);
+                    listener.onInferenceCalibrate(cpuCap);
+                    jResult.put("Summary", new JSONObject()
+                            .put("Status", "OK")
+                            .put("Message", "Calibrating inference"
+                                    + (cpuCap > 0 ? " on up to " + cpuCap + " threads" : "")));
+                    Log.i(TAG, "Executed calibrate_inference");
+                    break;
                 default:
                     // Inform GS Manager and GDS, then stop execution.
                     jResult.put("Summary", new JSONObject()
@@ -0,0 +1,515 @@
+package com.obruta.astrosee;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads back a time range of what {@link TelemetryRecorder} recorded, from the compressed segments
+ * of {@link TelemetryCompactor}, the segments still waiting to be compressed and the one being
+ * written, and sends it as a series of JSON chunks small enough for one sendData each.
+ *
+ * Each segment is indexed the first time it is queried: the blocks of a compressed segment by
+ * their receive times, a raw segment every INDEX_STRIDE records. A query binary searches these
+ * indexes and only decodes the blocks and records around its range. The index of the segment
+ * being written grows with it.
+ *
+ * Chunks sent for a query:
+ * <pre>
+ *   {"Telemetry Query": id, "Topics": [names], "From": ms, "To": ms, "Decimation": n}
+ *   {"Telemetry Query": id, "Chunk": k, "Samples": [[topic, receive ms, stamp ns, values...], ...]}
+ *   {"Telemetry Query": id, "Done": true, "Chunks": k, "Samples": count, "Truncated": false}
+ * </pre>
+ * where topic is the index of the sample's topic in "Topics". Only every decimation-th sample of
+ * each topic is sent.
+ */
+public class TelemetryArchive {
+    private static final String TAG = TelemetryArchive.class.getSimpleName();
+
+    public static final int MAX_CHUNK_SIZE = 2048;
+    public static final int MAX_SAMPLES = 50000;
+    static final int INDEX_STRIDE = 256;
+
+    /** Receives the chunks of a query, on the thread running it. */
+    public interface Sink {
+        void send(String chunk);
+    }
+
+    private final TelemetryRecorder recorder;
+    private final Map<String, SegmentIndex> indexes = new HashMap<>();
+
+    // Reused from query to query
+    private final GorillaDecoder decoder = new GorillaDecoder();
+    private byte[] block = new byte[4096];
+    private final double[] values = new double[TelemetryRecorder.MAX_RECORD_VALUES];
+    private final int[] topicOfSignal = new int[TelemetryStateStore.MAX_SIGNALS];
+    private final StringBuilder chunk = new StringBuilder(MAX_CHUNK_SIZE);
+    private final StringBuilder sample = new StringBuilder(256);
+
+    // State of the running query
+    private Sink sink;
+    private int queryId;
+    private long fromMs;
+    private long toMs;
+    private int decimation;
+    private long[] topicSamples;
+    private int chunkCount;
+    private int sampleCount;
+    private boolean truncated;
+
+    public TelemetryArchive(TelemetryRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sends the samples of the given topics received between fromMs and toMs, inclusive.
+     *
+     * @param topics     Topic names, or null for every recorded topic
+     * @param decimation Send one sample out of this many of each topic
+     */
+    public synchronized void query(int id, String[] topics, long fromMs, long toMs, int decimation, Sink sink) {
+        File[] segments = listSegments();
+        if (topics == null) {
+            topics = recordedTopics(segments);
+        }
+        this.sink = sink;
+        this.queryId = id;
+        this.fromMs = fromMs;
+        this.toMs = toMs;
+        this.decimation = Math.max(1, decimation);
+        this.topicSamples = new long[topics.length];
+        chunkCount = 0;
+        sampleCount = 0;
+        truncated = false;
+
+        chunk.setLength(0);
+        chunk.append("{\"Telemetry Query\": ").append(id).append(", \"Topics\": [");
+        for (int i = 0; i < topics.length; i++) {
+            if (i > 0) {
+                chunk.append(", ");
+            }
+            appendString(chunk, topics[i]);
+        }
+        chunk.append("], \"From\": ").append(fromMs).append(", \"To\": ").append(toMs)
+                .append(", \"Decimation\": ").append(this.decimation).append('}');
+        sink.send(chunk.toString());
+        chunk.setLength(0);
+
+        for (File segment : segments) {
+            if (truncated) {
+                break;
+            }
+            try {
+                querySegment(segment, topics);
+            } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+                // A segment compressed and deleted under us, or a damaged one, is skipped
+                Log.e(TAG, "Could not read " + segment.getName() + ": " + e);
+            }
+        }
+        flushChunk();
+
+        sink.send("{\"Telemetry Query\": " + id + ", \"Done\": true, \"Chunks\": " + chunkCount
+                + ", \"Samples\": " + sampleCount + ", \"Truncated\": " + truncated + "}");
+        this.sink = null;
+    }
+
+    // Segments in the order they were written, dropping the stale index of any that are gone
+    private File[] listSegments() {
+        File[] files = recorder.getDirectory().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                if (name.endsWith(TelemetryCompactor.FILE_SUFFIX)) {
+                    return true;
+                }
+                // A segment whose compressed copy is complete is about to be deleted
+                return name.endsWith(TelemetryRecorder.FILE_SUFFIX)
+                        && !TelemetryCompactor.compressedFile(file).exists();
+            }
+        });
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        Set<String> names = new HashSet<>();
+        for (File file : files) {
+            names.add(file.getName());
+        }
+        Iterator<String> cached = indexes.keySet().iterator();
+        while (cached.hasNext()) {
+            if (!names.contains(cached.next())) {
+                cached.remove();
+            }
+        }
+        return files;
+    }
+
+    private String[] recordedTopics(File[] segments) {
+        Set<String> topics = new HashSet<>();
+        for (File segment : segments) {
+            try {
+                SegmentIndex index = indexFor(segment);
+                for (String name : index.names) {
+                    if (name != null) {
+                        topics.add(name);
+                    }
+                }
+            } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+                Log.e(TAG, "Could not read " + segment.getName() + ": " + e);
+            }
+        }
+        String[] sorted = topics.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void querySegment(File segment, String[] topics) throws IOException {
+        SegmentIndex index = indexFor(segment);
+        if (index.maxMs < fromMs || index.minMs > toMs) {
+            return;
+        }
+        Arrays.fill(topicOfSignal, -1);
+        boolean any = false;
+        for (int signal = 0; signal < index.names.length; signal++) {
+            if (index.names[signal] == null) {
+                continue;
+            }
+            for (int topic = 0; topic < topics.length; topic++) {
+                if (topics[topic].equals(index.names[signal])) {
+                    topicOfSignal[signal] = topic;
+                    any = true;
+                }
+            }
+        }
+        if (!any) {
+            return;
+        }
+        ByteBuffer buffer = map(segment, index.compressed ? Long.MAX_VALUE : index.scanned);
+        if (index.compressed) {
+            queryBlocks(buffer, index);
+        } else {
+            queryRecords(buffer, index);
+        }
+    }
+
+    private void queryBlocks(ByteBuffer buffer, SegmentIndex index) {
+        for (int signal = 0; signal < index.blocks.length && !truncated; signal++) {
+            TimeIndex blocks = index.blocks[signal];
+            if (blocks == null || topicOfSignal[signal] < 0) {
+                continue;
+            }
+            int last = blocks.last(toMs);
+            for (int i = blocks.first(fromMs); i <= last && !truncated; i++) {
+                buffer.position((int) blocks.offsets[i] + 3);
+                int width = buffer.get() & 0xFF;
+                int count = buffer.getShort() & 0xFFFF;
+                buffer.position(buffer.position() + 16);
+                int length = buffer.getInt();
+                if (block.length < length) {
+                    block = new byte[length];
+                }
+                buffer.get(block, 0, length);
+                decoder.reset(block, 0, length, width, count);
+                while (decoder.hasNext() && !truncated) {
+                    decoder.next(values, 0);
+                    addSample(topicOfSignal[signal], decoder.getReceiveTime(), decoder.getStamp(), width);
+                }
+            }
+        }
+    }
+
+    private void queryRecords(ByteBuffer buffer, SegmentIndex index) {
+        TimeIndex strides = index.records;
+        int first = strides.first(fromMs);
+        int last = strides.last(toMs);
+        long start = first < strides.size ? strides.offsets[first] : index.strideOffset;
+        long end = last + 1 < strides.size ? strides.offsets[last + 1] : index.strideOffset;
+        // The records after the last full stride aren't in the index yet
+        if (index.strideCount > 0 && index.strideMin <= toMs) {
+            end = index.scanned;
+        }
+        buffer.position((int) start);
+        while (buffer.position() < end && !truncated) {
+            buffer.get();
+            int signal = buffer.getShort() & 0xFFFF;
+            int width = buffer.get() & 0xFF;
+            long stamp = buffer.getLong();
+            long receiveTime = buffer.getLong();
+            for (int i = 0; i < width; i++) {
+                values[i] = buffer.getDouble();
+            }
+            if (signal < topicOfSignal.length && topicOfSignal[signal] >= 0) {
+                addSample(topicOfSignal[signal], receiveTime, stamp, width);
+            }
+        }
+    }
+
+    private void addSample(int topic, long receiveTime, long stamp, int width) {
+        if (receiveTime < fromMs || receiveTime > toMs) {
+            return;
+        }
+        if (topicSamples[topic]++ % decimation != 0) {
+            return;
+        }
+        sample.setLength(0);
+        sample.append('[').append(topic).append(", ").append(receiveTime).append(", ").append(stamp);
+        for (int i = 0; i < width; i++) {
+            sample.append(", ");
+            // NaN and infinities aren't JSON
+            if (Double.isNaN(values[i]) || Double.isInfinite(values[i])) {
+                sample.append("null");
+            } else {
+                sample.append(values[i]);
+            }
+        }
+        sample.append(']');
+        // Room for the wrapper and its closing brackets
+        if (chunk.length() > 0 && chunk.length() + sample.length() + 4 > MAX_CHUNK_SIZE) {
+            flushChunk();
+        }
+        if (chunk.length() == 0) {
+            chunk.append("{\"Telemetry Query\": ").append(queryId).append(", \"Chunk\": ")
+                    .append(chunkCount).append(", \"Samples\": [");
+        } else {
+            chunk.append(", ");
+        }
+        chunk.append(sample);
+        if (++sampleCount >= MAX_SAMPLES) {
+            truncated = true;
+        }
+    }
+
+    private void flushChunk() {
+        if (chunk.length() == 0) {
+            return;
+        }
+        chunk.append("]}");
+        sink.send(chunk.toString());
+        chunk.setLength(0);
+        chunkCount++;
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    // Builds a segment's index, or brings the index of a segment still being written up to date
+    private SegmentIndex indexFor(File segment) throws IOException {
+        SegmentIndex index = indexes.get(segment.getName());
+        if (index != null && index.compressed) {
+            return index;
+        }
+        long limit = Long.MAX_VALUE;
+        if (segment.equals(recorder.getActiveSegment())) {
+            limit = recorder.getActiveLength();
+        }
+        if (index != null && index.scanned >= limit) {
+            return index;
+        }
+        ByteBuffer buffer = map(segment, limit);
+        if (index == null) {
+            index = new SegmentIndex(segment.getName().endsWith(TelemetryCompactor.FILE_SUFFIX));
+            index.readHeader(buffer);
+            indexes.put(segment.getName(), index);
+        }
+        if (index.compressed) {
+            index.indexBlocks(buffer);
+        } else {
+            index.indexRecords(buffer);
+        }
+        return index;
+    }
+
+    private static ByteBuffer map(File file, long limit) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = Math.min(limit, in.length());
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    /** Offsets of the blocks or record strides of a segment, with the range of their receive times. */
+    static class TimeIndex {
+        long[] offsets = new long[16];
+        long[] mins = new long[16];
+        // Latest receive time of this entry and every one before it
+        long[] maxima = new long[16];
+        int size;
+
+        void add(long offset, long minMs, long maxMs) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                mins = Arrays.copyOf(mins, size * 2);
+                maxima = Arrays.copyOf(maxima, size * 2);
+            }
+            offsets[size] = offset;
+            mins[size] = minMs;
+            maxima[size] = size > 0 ? Math.max(maxMs, maxima[size - 1]) : maxMs;
+            size++;
+        }
+
+        /** First entry that may hold a time at or after fromMs, size if none does. */
+        int first(long fromMs) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (maxima[middle] < fromMs) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /** Last entry that may hold a time at or before toMs, -1 if none does. */
+        int last(long toMs) {
+            // Receive times from different listener threads can be slightly out of order, so the
+            // minima aren't sorted; the entries are few enough to look at each
+            for (int i = size - 1; i >= 0; i--) {
+                if (mins[i] <= toMs) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class SegmentIndex {
+        final boolean compressed;
+        // Topic name of each signal id, null for ids not in the segment
+        String[] names = new String[0];
+        long minMs = Long.MAX_VALUE;
+        long maxMs = Long.MIN_VALUE;
+        // Bytes of the segment indexed so far
+        long scanned;
+
+        // Compressed segments: the blocks of each signal
+        TimeIndex[] blocks;
+
+        // Raw segments: one entry every INDEX_STRIDE records, and the stride being filled
+        TimeIndex records;
+        long strideOffset;
+        int strideCount;
+        long strideMin;
+        long strideMax;
+
+        SegmentIndex(boolean compressed) {
+            this.compressed = compressed;
+            if (compressed) {
+                blocks = new TimeIndex[TelemetryStateStore.MAX_SIGNALS];
+            } else {
+                records = new TimeIndex();
+            }
+        }
+
+        void readHeader(ByteBuffer buffer) throws IOException {
+            byte[] magic = compressed ? TelemetryCompactor.MAGIC : TelemetryRecorder.MAGIC;
+            int version = compressed ? TelemetryCompactor.VERSION : TelemetryRecorder.VERSION;
+            for (byte b : magic) {
+                if (buffer.get() != b) {
+                    throw new IOException("Not a telemetry recording");
+                }
+            }
+            if (buffer.get() != version) {
+                throw new IOException("Unsupported recording version");
+            }
+            int count = buffer.getShort() & 0xFFFF;
+            names = new String[TelemetryStateStore.MAX_SIGNALS];
+            for (int i = 0; i < count; i++) {
+                int signal = buffer.getShort() & 0xFFFF;
+                buffer.get();
+                byte[] name = new byte[buffer.get() & 0xFF];
+                buffer.get(name);
+                if (signal < names.length) {
+                    names[signal] = new String(name, StandardCharsets.UTF_8);
+                }
+            }
+            scanned = buffer.position();
+            strideOffset = scanned;
+        }
+
+        void indexBlocks(ByteBuffer buffer) {
+            buffer.position((int) scanned);
+            while (buffer.remaining() >= TelemetryCompactor.BLOCK_HEADER_SIZE) {
+                int offset = buffer.position();
+                if (buffer.get() != TelemetryCompactor.BLOCK) {
+                    break;
+                }
+                int signal = buffer.getShort() & 0xFFFF;
+                buffer.get();
+                buffer.getShort();
+                long first = buffer.getLong();
+                long last = buffer.getLong();
+                int length = buffer.getInt();
+                if (signal >= blocks.length || length > buffer.remaining()) {
+                    throw new IllegalArgumentException("Bad block at " + offset);
+                }
+                buffer.position(buffer.position() + length);
+                if (blocks[signal] == null) {
+                    blocks[signal] = new TimeIndex();
+                }
+                blocks[signal].add(offset, first, last);
+                minMs = Math.min(minMs, first);
+                maxMs = Math.max(maxMs, last);
+            }
+            scanned = buffer.position();
+        }
+
+        // Only whole records are indexed, the rest is looked at again next time
+        void indexRecords(ByteBuffer buffer) {
+            buffer.position((int) scanned);
+            while (buffer.remaining() >= TelemetryRecorder.RECORD_HEADER_SIZE) {
+                int offset = buffer.position();
+                if (buffer.get() != TelemetryRecorder.RECORD) {
+                    break;
+                }
+                buffer.getShort();
+                int width = buffer.get() & 0xFF;
+                buffer.getLong();
+                long receiveTime = buffer.getLong();
+                if (buffer.remaining() < 8 * width) {
+                    break;
+                }
+                buffer.position(buffer.position() + 8 * width);
+                if (strideCount == 0) {
+                    strideOffset = offset;
+                    strideMin = receiveTime;
+                    strideMax = receiveTime;
+                } else {
+                    strideMin = Math.min(strideMin, receiveTime);
+                    strideMax = Math.max(strideMax, receiveTime);
+                }
+                minMs = Math.min(minMs, receiveTime);
+                maxMs = Math.max(maxMs, receiveTime);
+                scanned = buffer.position();
+                if (++strideCount == INDEX_STRIDE) {
+                    records.add(strideOffset, strideMin, strideMax);
+                    strideCount = 0;
+                    strideOffset = scanned;
+                }
+            }
+        }
+    }
+}
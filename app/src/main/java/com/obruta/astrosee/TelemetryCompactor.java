@@ -0,0 +1,205 @@
+package com.obruta.astrosee;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compresses the segments written by {@link TelemetryRecorder} once they are closed, on its own
+ * thread, into files that are several times smaller to downlink. Each topic's records are cut
+ * into blocks of up to BLOCK_SAMPLES samples compressed by a {@link GorillaEncoder}.
+ *
+ * Compressed file layout (big-endian):
+ * <pre>
+ *   u8[4]  magic 'A' 'S' 'G' 'Z'
+ *   u8     format version
+ *   the topic table of the segment, see TelemetryRecorder
+ *   blocks, each:
+ *          u8 BLOCK, u16 signal id, u8 number of values, u16 number of samples,
+ *          i64 first receive time, i64 last receive time (ms since the epoch),
+ *          u32 length, the bit stream of a GorillaEncoder
+ *   u8     END
+ * </pre>
+ * The receive times let a reader skip blocks outside the time range it wants.
+ *
+ * How long each segment took and how much it shrank is logged, as the running benchmark of the
+ * codec on real data; GorillaCodecTest holds it to a floor on representative samples.
+ */
+public class TelemetryCompactor {
+    private static final String TAG = TelemetryCompactor.class.getSimpleName();
+
+    public static final byte[] MAGIC = {'A', 'S', 'G', 'Z'};
+    public static final int VERSION = 2;
+    public static final byte END = 0;
+    public static final byte BLOCK = 1;
+    public static final int BLOCK_HEADER_SIZE = 26;
+    public static final int BLOCK_SAMPLES = 1024;
+    public static final String FILE_SUFFIX = ".grz";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Only used on the executor's thread, reused from segment to segment
+    private final GorillaEncoder[] encoders = new GorillaEncoder[TelemetryStateStore.MAX_SIGNALS];
+    private final double[] values = new double[TelemetryRecorder.MAX_RECORD_VALUES];
+
+    /** Queues a closed segment; it is deleted once its compressed copy is complete. */
+    public void submit(final File segment) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(segment);
+            }
+        });
+    }
+
+    /** Queues the segments left in a directory by a recording that didn't finish compacting. */
+    public void submitPending(File directory) {
+        File[] segments = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(TelemetryRecorder.FILE_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return;
+        }
+        for (File segment : segments) {
+            submit(segment);
+        }
+    }
+
+    /** The name of a segment's compressed copy. */
+    public static File compressedFile(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(),
+                name.substring(0, name.length() - TelemetryRecorder.FILE_SUFFIX.length()) + FILE_SUFFIX);
+    }
+
+    private void compact(File segment) {
+        File target = compressedFile(segment);
+        File partial = new File(target.getPath() + ".part");
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        long records = 0;
+        long before = 0;
+        try (RandomAccessFile in = new RandomAccessFile(segment, "r");
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)))) {
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            for (byte b : TelemetryRecorder.MAGIC) {
+                if (buffer.get() != b) {
+                    throw new IOException("Not a telemetry recording");
+                }
+            }
+            if (buffer.get() != TelemetryRecorder.VERSION) {
+                throw new IOException("Unsupported recording version");
+            }
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            copyTopicTable(buffer, out);
+
+            while (buffer.hasRemaining()) {
+                byte tag = buffer.get();
+                if (tag != TelemetryRecorder.RECORD) {
+                    break;
+                }
+                int signal = buffer.getShort() & 0xFFFF;
+                int width = buffer.get() & 0xFF;
+                long stamp = buffer.getLong();
+                long receiveTime = buffer.getLong();
+                for (int i = 0; i < width; i++) {
+                    values[i] = buffer.getDouble();
+                }
+                if (signal >= encoders.length) {
+                    throw new IOException("Bad signal id " + signal);
+                }
+                GorillaEncoder encoder = encoders[signal];
+                if (encoder == null) {
+                    encoder = encoders[signal] = new GorillaEncoder();
+                    encoder.reset(width);
+                }
+                if (encoder.getCount() > 0 && encoder.getWidth() != width) {
+                    writeBlock(out, signal, encoder);
+                }
+                if (encoder.getCount() == 0) {
+                    encoder.reset(width);
+                }
+                encoder.add(receiveTime, stamp, values, 0);
+                records++;
+                if (encoder.getCount() == BLOCK_SAMPLES) {
+                    writeBlock(out, signal, encoder);
+                }
+            }
+            // Up to the end mark, the rest of the segment was never written
+            before = buffer.position();
+            for (int signal = 0; signal < encoders.length; signal++) {
+                if (encoders[signal] != null && encoders[signal].getCount() > 0) {
+                    writeBlock(out, signal, encoders[signal]);
+                }
+            }
+            out.writeByte(END);
+        } catch (IOException | BufferUnderflowException e) {
+            Log.e(TAG, "Could not compress " + segment + ": " + e);
+            partial.delete();
+            resetEncoders();
+            return;
+        }
+
+        if (!partial.renameTo(target)) {
+            Log.e(TAG, "Could not rename " + partial);
+            return;
+        }
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        long after = target.length();
+        segment.delete();
+        Log.i(TAG, String.format(Locale.US, "%s: %d records, %d -> %d bytes (%.1fx), %.0f ns per record",
+                target.getName(), records, before, after, after > 0 ? (double) before / after : 0.0,
+                records > 0 ? (double) elapsedNs / records : 0.0));
+    }
+
+    private static void copyTopicTable(ByteBuffer in, DataOutputStream out) throws IOException {
+        int count = in.getShort() & 0xFFFF;
+        out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            out.writeShort(in.getShort());
+            out.writeByte(in.get());
+            int length = in.get() & 0xFF;
+            out.writeByte(length);
+            for (int j = 0; j < length; j++) {
+                out.writeByte(in.get());
+            }
+        }
+    }
+
+    private static void writeBlock(DataOutputStream out, int signal, GorillaEncoder encoder) throws IOException {
+        int length = encoder.finish();
+        out.writeByte(BLOCK);
+        out.writeShort(signal);
+        out.writeByte(encoder.getWidth());
+        out.writeShort(encoder.getCount());
+        out.writeLong(encoder.getFirstReceiveTime());
+        out.writeLong(encoder.getLastReceiveTime());
+        out.writeInt(length);
+        out.write(encoder.getBuffer(), 0, length);
+        encoder.reset(encoder.getWidth());
+    }
+
+    private void resetEncoders() {
+        for (GorillaEncoder encoder : encoders) {
+            if (encoder != null) {
+                encoder.reset(encoder.getWidth());
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.obruta.astrosee;
+
+/**
+ * Picks which telemetry fields to send when the downlink is in delta mode: only the fields that
+ * moved by more than their epsilon since they were last sent, plus a full keyframe every
+ * keyframeInterval ticks so the ground can recover from lost frames.
+ *
+ * Values are compared against what was last sent, not against the previous tick, so a slow drift
+ * still goes out once it adds up to more than the epsilon.
+ */
+public class TelemetryDeltaTracker {
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 10;
+
+    private static final TelemetryField[] FIELDS = TelemetryField.values();
+
+    private final double[] sentValues = new double[TelemetryField.VALUE_COUNT];
+    private final boolean[] sentValid = new boolean[FIELDS.length];
+    private final double[] epsilons = new double[FIELDS.length];
+    private String sentRobotName;
+
+    private volatile int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+    private volatile boolean keyframePending = true;
+    private int ticksSinceKeyframe = 0;
+    private boolean lastWasKeyframe = false;
+
+    public TelemetryDeltaTracker() {
+        for (TelemetryField field : FIELDS) {
+            epsilons[field.ordinal()] = defaultEpsilon(field);
+        }
+    }
+
+    /**
+     * By default a field counts as changed once the difference would show up in the JSON
+     * snapshot, i.e. half a unit of its last printed digit.
+     */
+    public static double defaultEpsilon(TelemetryField field) {
+        return 0.5 / Math.pow(10, field.getDecimals());
+    }
+
+    /** @param interval Ticks between full frames, 1 sends every frame in full */
+    public void setKeyframeInterval(int interval) {
+        keyframeInterval = Math.max(1, interval);
+    }
+
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    public void setEpsilon(TelemetryField field, double epsilon) {
+        epsilons[field.ordinal()] = epsilon;
+    }
+
+    public double getEpsilon(TelemetryField field) {
+        return epsilons[field.ordinal()];
+    }
+
+    /** Makes the next call to {@link #update} send a keyframe. */
+    public void reset() {
+        keyframePending = true;
+    }
+
+    /**
+     * Selects the fields to send this tick and remembers their values as sent.
+     *
+     * @return Mask of the fields to send, see {@link TelemetryField#mask()}
+     */
+    public long update(TelemetryFrame frame) {
+        return update(frame, TelemetryField.ALL_FIELDS);
+    }
+
+    /**
+     * Selects the fields to send this tick among the candidates and remembers their values as
+     * sent. Fields outside the candidates are left alone, so they still count as changed the next
+     * time they are offered.
+     *
+     * @return Mask of the fields to send, see {@link TelemetryField#mask()}
+     */
+    public long update(TelemetryFrame frame, long candidateMask) {
+        boolean keyframe = keyframePending || ++ticksSinceKeyframe >= keyframeInterval;
+        if (keyframe) {
+            keyframePending = false;
+            ticksSinceKeyframe = 0;
+        }
+        lastWasKeyframe = keyframe;
+
+        long mask = 0;
+        for (TelemetryField field : FIELDS) {
+            if ((candidateMask & field.mask()) == 0) {
+                continue;
+            }
+            if (keyframe || hasChanged(frame, field)) {
+                mask |= field.mask();
+                remember(frame, field);
+            }
+        }
+        return mask;
+    }
+
+    /** Whether the last call to {@link #update} selected a keyframe. */
+    public boolean isKeyframe() {
+        return lastWasKeyframe;
+    }
+
+    private boolean hasChanged(TelemetryFrame frame, TelemetryField field) {
+        switch (field.getKind()) {
+            case TEXT:
+                return !frame.getRobotName().equals(sentRobotName);
+            case NUMERIC:
+                boolean valid = frame.isValid(field);
+                if (valid != sentValid[field.ordinal()]) {
+                    return true;
+                }
+                if (!valid) {
+                    return false;
+                }
+                double epsilon = epsilons[field.ordinal()];
+                int offset = field.getOffset();
+                for (int i = 0; i < field.getWidth(); i++) {
+                    if (differs(frame.get(field, i), sentValues[offset + i], epsilon)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                // Dividers never change, they only go out with keyframes
+                return false;
+        }
+    }
+
+    private void remember(TelemetryFrame frame, TelemetryField field) {
+        if (field.getKind() == TelemetryField.Kind.TEXT) {
+            sentRobotName = frame.getRobotName();
+            return;
+        }
+        sentValid[field.ordinal()] = frame.isValid(field);
+        int offset = field.getOffset();
+        for (int i = 0; i < field.getWidth(); i++) {
+            sentValues[offset + i] = frame.get(field, i);
+        }
+    }
+
+    private static boolean differs(double value, double sent, double epsilon) {
+        if (Double.isNaN(value) || Double.isNaN(sent)) {
+            return Double.isNaN(value) != Double.isNaN(sent);
+        }
+        return Math.abs(value - sent) > epsilon;
+    }
+}
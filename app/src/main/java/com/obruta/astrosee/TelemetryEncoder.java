@@ -0,0 +1,326 @@
+package com.obruta.astrosee;
+
+import java.util.Locale;
+
+/**
+ * Writes a {@link TelemetryFrame} as the JSON snapshot sent to the Ground Data System.
+ *
+ * The output is byte-identical to what building a JSONObject with String.format("%.4f") values
+ * used to produce (with the HLP's default US locale), but keys are escaped once up front and
+ * numbers are written straight into a reused buffer, so encoding a tick allocates nothing.
+ */
+public class TelemetryEncoder {
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+    // Past this magnitude the scaled double is too coarse to round exactly
+    private static final double MAX_FAST_SCALED = 1e12;
+
+    private static final TelemetryField[] FIELDS = TelemetryField.values();
+    private static final String[] STAT_NAMES = {"min", "max", "mean", "rms"};
+    private static final String DELTA_KEY = "\"Delta\":true";
+
+    // "\"key\":" for every field, and the quoted value of every divider
+    private final char[][] keys = new char[FIELDS.length][];
+    private final char[][] constants = new char[FIELDS.length][];
+    // "\"key (stat)\":" for every statistic of every numeric field
+    private final char[][][] statKeys = new char[FIELDS.length][][];
+
+    // "\"Topic name\":" for every topic summary sent so far, rebuilt if the name changes
+    private final char[][] topicKeys = new char[TelemetryStateStore.MAX_SIGNALS][];
+    private final String[] topicKeyNames = new String[TelemetryStateStore.MAX_SIGNALS];
+
+    private final StringBuilder out = new StringBuilder(4096);
+
+    public TelemetryEncoder() {
+        StringBuilder sb = new StringBuilder();
+        for (TelemetryField field : FIELDS) {
+            sb.setLength(0);
+            appendQuoted(sb, field.getKey());
+            sb.append(':');
+            keys[field.ordinal()] = sb.toString().toCharArray();
+
+            if (field.getKind() == TelemetryField.Kind.DIVIDER) {
+                sb.setLength(0);
+                appendQuoted(sb, field.getConstant());
+                constants[field.ordinal()] = sb.toString().toCharArray();
+            }
+            if (field.getKind() == TelemetryField.Kind.NUMERIC) {
+                statKeys[field.ordinal()] = new char[STAT_NAMES.length][];
+                for (int stat = 0; stat < STAT_NAMES.length; stat++) {
+                    sb.setLength(0);
+                    appendQuoted(sb, statKey(field, stat));
+                    sb.append(':');
+                    statKeys[field.ordinal()][stat] = sb.toString().toCharArray();
+                }
+            }
+        }
+    }
+
+    /** Key of one statistic of a field, e.g. "EKF Position (rms)". */
+    public static String statKey(TelemetryField field, int stat) {
+        String key = field.getKey().trim();
+        if (key.endsWith(":")) {
+            key = key.substring(0, key.length() - 1).trim();
+        }
+        return key + " (" + STAT_NAMES[stat] + ")";
+    }
+
+    /**
+     * Encodes every field of the frame.
+     *
+     * @return The JSON text. The buffer is reused, so it is only valid until the next call.
+     */
+    public CharSequence encode(TelemetryFrame frame) {
+        return encode(frame, TelemetryField.ALL_FIELDS);
+    }
+
+    /**
+     * Encodes the fields of the frame selected by the mask, see {@link TelemetryField#mask()}.
+     * A field with statistics is followed by them, or replaced by them if the frame says so.
+     * Topic summaries come last, as "Topic name": "[rate, jitter, latency p50, latency p99]".
+     *
+     * @return The JSON text. The buffer is reused, so it is only valid until the next call.
+     */
+    public CharSequence encode(TelemetryFrame frame, long fieldMask) {
+        return encode(frame, fieldMask, false);
+    }
+
+    /**
+     * Encodes the fields of the frame selected by the mask, see
+     * {@link #encode(TelemetryFrame, long)}.
+     *
+     * @param delta Whether the frame only carries some of the fields, which the ground then
+     *              merges into its last values; it starts with "Delta": true. Fields that lost
+     *              their value are in it as empty strings.
+     * @return The JSON text. The buffer is reused, so it is only valid until the next call.
+     */
+    public CharSequence encode(TelemetryFrame frame, long fieldMask, boolean delta) {
+        out.setLength(0);
+        out.append('{');
+        boolean first = true;
+        if (delta) {
+            out.append(DELTA_KEY);
+            first = false;
+        }
+        for (TelemetryField field : FIELDS) {
+            if ((fieldMask & field.mask()) == 0) {
+                continue;
+            }
+            if (frame.isValueSent(field)) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendField(frame, field);
+            }
+            if (!frame.hasStats(field)) {
+                continue;
+            }
+            for (int stat = 0; stat < TelemetryHistory.STAT_COUNT; stat++) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append(statKeys[field.ordinal()][stat]);
+                out.append('"');
+                appendNumbers(frame, field, stat);
+                out.append('"');
+            }
+        }
+        if (frame.hasTopicSummaries()) {
+            for (int signal = 0; signal < TelemetryStateStore.MAX_SIGNALS; signal++) {
+                if (!frame.hasTopicSummary(signal)) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendTopicSummary(frame, signal);
+            }
+        }
+        out.append('}');
+        return out;
+    }
+
+    private void appendTopicSummary(TelemetryFrame frame, int signal) {
+        String name = frame.getTopicName(signal);
+        if (topicKeys[signal] == null || name != topicKeyNames[signal]) {
+            StringBuilder sb = new StringBuilder();
+            appendQuoted(sb, "Topic " + (name != null ? name : "#" + signal));
+            sb.append(':');
+            topicKeys[signal] = sb.toString().toCharArray();
+            topicKeyNames[signal] = name;
+        }
+        out.append(topicKeys[signal]);
+        out.append("\"[");
+        for (int summary = 0; summary < TopicMonitor.SUMMARY_COUNT; summary++) {
+            if (summary > 0) {
+                out.append(", ");
+            }
+            appendFixed(out, frame.getTopicSummary(signal, summary), 2);
+        }
+        out.append("]\"");
+    }
+
+    /** Bytes taken by the text once encoded as UTF-8, which is how it goes down. */
+    public static int utf8Length(CharSequence text) {
+        int bytes = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired, replaced by '?'
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /** The snapshot sent before the node has started. */
+    public CharSequence encodeEmpty() {
+        out.setLength(0);
+        out.append("{}");
+        return out;
+    }
+
+    private void appendField(TelemetryFrame frame, TelemetryField field) {
+        out.append(keys[field.ordinal()]);
+        switch (field.getKind()) {
+            case TEXT:
+                appendQuoted(out, frame.getRobotName());
+                break;
+            case DIVIDER:
+                out.append(constants[field.ordinal()]);
+                break;
+            case NUMERIC:
+                out.append('"');
+                if (frame.isValid(field)) {
+                    appendNumbers(frame, field, -1);
+                }
+                out.append('"');
+                break;
+        }
+    }
+
+    // The field's values, or one of its statistics when stat >= 0
+    private void appendNumbers(TelemetryFrame frame, TelemetryField field, int stat) {
+        int width = field.getWidth();
+        int decimals = field.getDecimals();
+        if (decimals == 0 && (stat == TelemetryHistory.STAT_MEAN || stat == TelemetryHistory.STAT_RMS)) {
+            // Averages of integers aren't integers
+            decimals = 2;
+        }
+        if (width == 1) {
+            appendNumber(out, value(frame, field, stat, 0), decimals);
+            return;
+        }
+        out.append('[');
+        for (int i = 0; i < width; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            appendNumber(out, value(frame, field, stat, i), decimals);
+        }
+        out.append(']');
+    }
+
+    private static double value(TelemetryFrame frame, TelemetryField field, int stat, int index) {
+        return stat < 0 ? frame.get(field, index) : frame.getStat(field, stat, index);
+    }
+
+    private static void appendNumber(StringBuilder sb, double value, int decimals) {
+        if (decimals == 0) {
+            sb.append((long) value);
+        } else {
+            appendFixed(sb, value, decimals);
+        }
+    }
+
+    /**
+     * Appends value the way String.format("%.Nf") does: the sign of negative values (and -0.0)
+     * is kept, and ties are rounded half-up on the shortest decimal representation.
+     */
+    static void appendFixed(StringBuilder sb, double value, int decimals) {
+        if (Double.isNaN(value)) {
+            sb.append("NaN");
+            return;
+        }
+        boolean negative = Double.compare(value, 0.0) < 0;
+        double abs = Math.abs(value);
+        if (Double.isInfinite(abs)) {
+            sb.append(negative ? "-Infinity" : "Infinity");
+            return;
+        }
+        long scale = POW10[decimals];
+        if (abs * scale >= MAX_FAST_SCALED) {
+            // Far outside anything we send, not worth an exact fast path
+            sb.append(String.format(Locale.US, "%." + decimals + "f", value));
+            return;
+        }
+
+        // Pick between k and k + 1 by comparing against the double nearest to the midpoint,
+        // which is exactly the half-up decision made on the shortest representation
+        long k = (long) (abs * scale);
+        double midpoint = (2 * k + 1) / (2.0 * scale);
+        long scaled = abs >= midpoint ? k + 1 : k;
+
+        if (negative) {
+            sb.append('-');
+        }
+        sb.append(scaled / scale);
+        sb.append('.');
+        long fraction = scaled % scale;
+        for (long digit = scale / 10; digit > 0; digit /= 10) {
+            sb.append((char) ('0' + (fraction / digit) % 10));
+        }
+    }
+
+    // Same escaping as org.json's JSONStringer
+    static void appendQuoted(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append('\\').append(c);
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        sb.append("\\u00");
+                        sb.append(Character.forDigit(c >> 4, 16));
+                        sb.append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,221 @@
+package com.obruta.astrosee;
+
+/**
+ * The fields sent to the Ground Data System every telemetry tick, in the order they appear in the
+ * JSON snapshot. Each field owns a fixed slice of the value array in {@link TelemetryFrame}.
+ *
+ * The ids are part of the binary frame format and must never be reused; commented out fields
+ * keep theirs reserved. Fields are not read from topics.xml: a topic only listed there is
+ * recorded and monitored, but never sent until it has a field here.
+ */
+public enum TelemetryField {
+    ROBOT_NAME(1, "robot_name", Kind.TEXT, 0, 0, Encoding.UTF8,
+            "/robot_name", "data", 0),
+    TIME(2, "Time: ", Kind.NUMERIC, 1, 2, Encoding.FLOAT64,
+            "/simulinkclock", "data", 0),
+    PHASE(3, "Phase: ", Kind.NUMERIC, 1, 0, Encoding.INT32,
+            "/simulinkphase", "data", 0),
+    //FLIGHT_MODE(4, "Flight Mode: ", Kind.NUMERIC, 1, 0, Encoding.INT32,
+    //        null, null, 0),
+    EKF_POSITION(5, "EKF Position: ", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/gnc/ekf", "position", 0),
+    EKF_ATTITUDE(6, "EKF Attitude: ", Kind.NUMERIC, 4, 4, Encoding.FLOAT32,
+            "/gnc/ekf", "orientation", 0),
+    NOZZLES_SIDE_1(7, "Nozzle Positions Side 1", Kind.NUMERIC, 6, 0, Encoding.UINT8,
+            "/hw/pmc/command", "nozzles", 0),
+    NOZZLES_SIDE_2(8, "Nozzle Positions Side 2", Kind.NUMERIC, 6, 0, Encoding.UINT8,
+            "/hw/pmc/command", "nozzles", 6),
+    CLIENT_DIVIDER(9, "--------------------", "------------------------------------"),
+    //CLIENT_KF_POSITION(10, "Client KF Position: ", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+    //        "/client/gnc/nav/position_est", "vector", 0),
+    CLIENT_POSITION_ERROR(11, "Client Position Error: ", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/client/gnc/guidance/error", "vector", 0),
+    CLIENT_QUATERNION_ERROR(12, "Client Quaternion Error: ", Kind.NUMERIC, 4, 4, Encoding.FLOAT32,
+            "/client/attitude_control/q_error", "quaternion", 0),
+    CLIENT_QUATERNION_DESIRED(13, "Client Quaternion Desired", Kind.NUMERIC, 4, 4, Encoding.FLOAT32,
+            "/client/attitude_control/qdesired", "quaternion", 0),
+    CLIENT_DESIRED_POSITION(14, "Client Desired Position: ", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/client/gnc/guidance/pos", "vector", 0),
+    CLIENT_DESIRED_ACCELERATION(15, "Client Desired Acceleration: ", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/client/gnc/ctl/acceleration", "vector", 0),
+    CLIENT_CONTROL_TORQUE(16, "Client Control Torque", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "client/attitude_control/torque", "vector", 0),
+    SERVICER_DIVIDER(17, "-------------------", "-----------------------------------"),
+    SERVICER_XM_POSITION_ERROR(18, "Servicer Xm Position Error", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/adaptive_gnc/ctl/xm/pos_error", "vector", 0),
+    //SERVICER_GUIDED_POSITION_ERROR(19, "Servicer Guided Position Error", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+    //        "/adaptive_gnc/guidance/error", "vector", 0),
+    SERVICER_XM_POSITION(20, "Servicer Xm Position", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/adaptive_gnc/ctl/xm/pos", "vector", 0),
+    //SERVICER_GUIDED_POSITION(21, "Servicer Guided Position", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+    //        "/adaptive_gnc/guidance/pos", "vector", 0),
+    //SERVICER_XM_VELOCITY(22, "Servicer Xm Velocity", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+    //        "/adaptive_gnc/ctl/xm/vel", "vector", 0),
+    SERVICER_XM_VELOCITY_ERROR(23, "Servicer Xm Velocity Error", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/adaptive_gnc/ctl/xm/vel_error", "vector", 0),
+    SERVICER_CONTROL_ACCELERATION(24, "Servicer Control Acceleration", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/adaptive_gnc/ctl/acceleration", "vector", 0),
+    //SERVICER_QUATERNION_DESIRED(25, "Servicer Quaternion Desired", Kind.NUMERIC, 4, 4, Encoding.FLOAT32,
+    //        "/attitude_control/qdesired", "quaternion", 0),
+    SERVICER_QUATERNION_ERROR(26, "Servicer Quaternion Error", Kind.NUMERIC, 4, 4, Encoding.FLOAT32,
+            "/attitude_control/q_error", "quaternion", 0),
+    //SERVICER_CONTROL_TORQUE(27, "Servicer Control Torque", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+    //        "/attitude_control/torque", "vector", 0),
+    //SERVICER_POS_WRT_CLIENT(28, "Servicer Pos Wrt Client", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+    //        "/adaptive_gnc/nav/relative_position", "vector", 0),
+    //SERVICER_RECVD_CLIENT_POSITION(29, "Servicer's Recv'd Abs Client Position", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+    //        "/adaptive_gnc/nav/target_states", "vector", 0),
+    CV_REL_POSITION(30, "CV Rel Pos: ", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/cv/rel_position", "vector", 0),
+    GNC_CAM_REL_POSITION(31, "GNC Cam Rel Pos: ", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/adaptive_gnc/nav/cv/rel_position", "vector", 0),
+    CV_REL_QUATERNION(32, "CV Rel Quat: ", Kind.NUMERIC, 4, 4, Encoding.FLOAT32,
+            "/cv/rel_quaternion", "quaternion", 0),
+    GNC_CAM_REL_QUATERNION(33, "GNC Cam Rel Quat: ", Kind.NUMERIC, 4, 4, Encoding.FLOAT32,
+            "/attitude_nav/cv/rel_quaternion", "quaternion", 0),
+    CV_BB_CENTRE(34, "CV BB Centre: ", Kind.NUMERIC, 3, 4, Encoding.FLOAT32,
+            "/cv/bb_centre", "vector", 0);
+
+    public enum Kind {
+        TEXT,       // free text, e.g. the robot name
+        DIVIDER,    // constant key/value pair used to group fields on the GDS
+        NUMERIC     // one value as a plain number, several values as "[a, b, c]"
+    }
+
+    // How each value of a field is written in a binary frame
+    public enum Encoding {
+        NONE,       // not sent in binary frames
+        UTF8,       // u8 length followed by the bytes
+        FLOAT64,
+        FLOAT32,
+        INT32,
+        UINT8
+    }
+
+    // Total number of doubles needed to hold one value of every field
+    public static final int VALUE_COUNT;
+
+    static {
+        int offset = 0;
+        for (TelemetryField field : values()) {
+            field.offset = offset;
+            offset += field.width;
+        }
+        VALUE_COUNT = offset;
+    }
+
+    private static final TelemetryField[] BY_ID = new TelemetryField[256];
+
+    static {
+        for (TelemetryField field : values()) {
+            BY_ID[field.id] = field;
+        }
+    }
+
+    // Field sets are passed around as bit masks over the ordinals
+    public static final long ALL_FIELDS = (1L << values().length) - 1;
+
+    /** This field's bit in a field mask. */
+    public long mask() {
+        return 1L << ordinal();
+    }
+
+    /** The field with the given binary id, or null if the id is unknown. */
+    public static TelemetryField fromId(int id) {
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+
+    private final int id;
+    private final String key;
+    private final Kind kind;
+    private final int width;
+    private final int decimals;
+    private final Encoding encoding;
+    private final String constant;
+    private final String source;
+    private final String sourcePart;
+    private final int partOffset;
+    private int offset;
+
+    TelemetryField(int id, String key, Kind kind, int width, int decimals, Encoding encoding,
+                   String source, String sourcePart, int partOffset) {
+        this.id = id;
+        this.key = key;
+        this.kind = kind;
+        this.width = width;
+        this.decimals = decimals;
+        this.encoding = encoding;
+        this.constant = null;
+        this.source = source;
+        this.sourcePart = sourcePart;
+        this.partOffset = partOffset;
+    }
+
+    TelemetryField(int id, String key, String constant) {
+        this.id = id;
+        this.key = key;
+        this.kind = Kind.DIVIDER;
+        this.width = 0;
+        this.decimals = 0;
+        this.encoding = Encoding.NONE;
+        this.constant = constant;
+        this.source = null;
+        this.sourcePart = null;
+        this.partOffset = 0;
+    }
+
+    /** Fixed id of this field in binary frames. */
+    public int getId() {
+        return id;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /** Number of values held by this field (0 for text and dividers). */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Digits after the decimal point, 0 for integers. */
+    public int getDecimals() {
+        return decimals;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /** Topic whose values feed this field, null for dividers. */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Part of the source topic's message holding this field's values, as named in the topic
+     * manifest, e.g. "orientation" for the EKF attitude; see {@link TopicSubscriber}.
+     */
+    public String getSourcePart() {
+        return sourcePart;
+    }
+
+    /** Index of this field's first value within its source part. */
+    public int getPartOffset() {
+        return partOffset;
+    }
+
+    /** The fixed value of a divider, null for every other kind. */
+    public String getConstant() {
+        return constant;
+    }
+
+    /** Index of this field's first value in {@link TelemetryFrame}. */
+    public int getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,17 @@
+package com.obruta.astrosee;
+
+import java.util.Locale;
+
+/**
+ * Formats the periodic telemetry can be downlinked in. Selected from the GDS with the
+ * set_telemetry_format command.
+ */
+public enum TelemetryFormat {
+    JSON,   // human readable snapshot, see TelemetryEncoder
+    BINARY; // compact frame, see BinaryTelemetryEncoder
+
+    /** Parses a command argument such as "json" or "binary". */
+    public static TelemetryFormat fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.US));
+    }
+}
@@ -0,0 +1,169 @@
+package com.obruta.astrosee;
+
+import java.util.Arrays;
+
+/**
+ * One telemetry snapshot held as primitive doubles, laid out by {@link TelemetryField}.
+ * A frame is meant to be reused from tick to tick, so none of the setters allocate.
+ */
+public class TelemetryFrame {
+    private final double[] values = new double[TelemetryField.VALUE_COUNT];
+    private final boolean[] valid = new boolean[TelemetryField.values().length];
+    // Windowed statistics, laid out as TelemetryHistory.STAT_COUNT blocks of VALUE_COUNT values
+    private final double[] stats = new double[TelemetryHistory.STAT_COUNT * TelemetryField.VALUE_COUNT];
+    private final boolean[] hasStats = new boolean[TelemetryField.values().length];
+    private boolean statsInPlace;
+    // Arrival summary of each topic, laid out as TopicMonitor.SUMMARY_COUNT values per signal
+    private final double[] topicSummaries = new double[TelemetryStateStore.MAX_SIGNALS * TopicMonitor.SUMMARY_COUNT];
+    private final String[] topicNames = new String[TelemetryStateStore.MAX_SIGNALS];
+    private final boolean[] hasTopicSummary = new boolean[TelemetryStateStore.MAX_SIGNALS];
+    private boolean topicSummary;
+    private String robotName = "";
+    private long seq;
+    private long stamp;
+
+    /** Frame counter and wall clock time (ms) carried in the binary frame header. */
+    public void setHeader(long seq, long stamp) {
+        this.seq = seq;
+        this.stamp = stamp;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getStamp() {
+        return stamp;
+    }
+
+    public void setRobotName(String robotName) {
+        this.robotName = robotName;
+        valid[TelemetryField.ROBOT_NAME.ordinal()] = true;
+    }
+
+    public String getRobotName() {
+        return robotName;
+    }
+
+    public void set(TelemetryField field, double value) {
+        values[field.getOffset()] = value;
+        valid[field.ordinal()] = true;
+    }
+
+    public void set(TelemetryField field, double x, double y, double z) {
+        int offset = field.getOffset();
+        values[offset] = x;
+        values[offset + 1] = y;
+        values[offset + 2] = z;
+        valid[field.ordinal()] = true;
+    }
+
+    public void set(TelemetryField field, double x, double y, double z, double w) {
+        int offset = field.getOffset();
+        values[offset] = x;
+        values[offset + 1] = y;
+        values[offset + 2] = z;
+        values[offset + 3] = w;
+        valid[field.ordinal()] = true;
+    }
+
+    public void set(TelemetryField field, int index, double value) {
+        values[field.getOffset() + index] = value;
+        valid[field.ordinal()] = true;
+    }
+
+    /** Marks a field as having no value; it is still sent, but as an empty string. */
+    public void clear(TelemetryField field) {
+        valid[field.ordinal()] = false;
+    }
+
+    public void clearAll() {
+        Arrays.fill(valid, false);
+        Arrays.fill(hasStats, false);
+        clearTopicSummaries();
+    }
+
+    public double get(TelemetryField field, int index) {
+        return values[field.getOffset() + index];
+    }
+
+    public boolean isValid(TelemetryField field) {
+        return valid[field.ordinal()];
+    }
+
+    /**
+     * Sets one statistic of a field over the last window, see {@link TelemetryHistory#summarize}.
+     *
+     * @param stat One of the TelemetryHistory.STAT_ constants
+     */
+    public void setStat(TelemetryField field, int stat, int index, double value) {
+        stats[stat * TelemetryField.VALUE_COUNT + field.getOffset() + index] = value;
+        hasStats[field.ordinal()] = true;
+    }
+
+    public double getStat(TelemetryField field, int stat, int index) {
+        return stats[stat * TelemetryField.VALUE_COUNT + field.getOffset() + index];
+    }
+
+    public void clearStats(TelemetryField field) {
+        hasStats[field.ordinal()] = false;
+    }
+
+    public boolean hasStats(TelemetryField field) {
+        return hasStats[field.ordinal()];
+    }
+
+    /** Whether fields with statistics are sent as their statistics only, without their value. */
+    public void setStatsInPlace(boolean statsInPlace) {
+        this.statsInPlace = statsInPlace;
+    }
+
+    public boolean isStatsInPlace() {
+        return statsInPlace;
+    }
+
+    /**
+     * Whether the field's latest value is sent, as opposed to only its statistics. A field with
+     * no value is still sent, as an empty string, unless its statistics replace it.
+     */
+    public boolean isValueSent(TelemetryField field) {
+        return !hasStats[field.ordinal()] || !statsInPlace;
+    }
+
+    /**
+     * Sets one value of a topic's arrival summary, see {@link TopicMonitor.Window#get}.
+     *
+     * @param name    Topic name, null if only its signal id is known
+     * @param summary One of the TopicMonitor.SUMMARY_ constants
+     */
+    public void setTopicSummary(int signal, String name, int summary, double value) {
+        topicSummaries[signal * TopicMonitor.SUMMARY_COUNT + summary] = value;
+        topicNames[signal] = name;
+        hasTopicSummary[signal] = true;
+        topicSummary = true;
+    }
+
+    public double getTopicSummary(int signal, int summary) {
+        return topicSummaries[signal * TopicMonitor.SUMMARY_COUNT + summary];
+    }
+
+    public String getTopicName(int signal) {
+        return topicNames[signal];
+    }
+
+    public boolean hasTopicSummary(int signal) {
+        return hasTopicSummary[signal];
+    }
+
+    /** Whether any topic has a summary in this frame. */
+    public boolean hasTopicSummaries() {
+        return topicSummary;
+    }
+
+    public void clearTopicSummaries() {
+        if (topicSummary) {
+            Arrays.fill(hasTopicSummary, false);
+            topicSummary = false;
+        }
+    }
+}
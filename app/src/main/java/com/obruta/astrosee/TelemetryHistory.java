@@ -0,0 +1,122 @@
+package com.obruta.astrosee;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last few hundred samples of every signal of a {@link TelemetryStateStore}, kept at the rate
+ * they were received, so a telemetry tick can summarise what happened since the previous one
+ * instead of only showing the latest value.
+ *
+ * Each signal has a fixed ring of samples written by its single listener thread without allocating.
+ * Readers never block it: a sample the writer may have started to overwrite while it was being
+ * read is simply left out of the summary.
+ *
+ * A ring only reaches back capacity samples, so a summary window is bounded by the fastest topic:
+ * MAX_WINDOW_MS with the default capacity and /gnc/ekf at MAX_RATE_HZ.
+ */
+public class TelemetryHistory {
+    public static final int DEFAULT_CAPACITY = 512;
+    // Fastest rate a recorded topic comes at, /gnc/ekf
+    public static final double MAX_RATE_HZ = 62.5;
+    /** Longest window every default ring covers, ms. */
+    public static final long MAX_WINDOW_MS = (long) (DEFAULT_CAPACITY * 1000 / MAX_RATE_HZ);
+
+    public static final int STAT_MIN = 0;
+    public static final int STAT_MAX = 1;
+    public static final int STAT_MEAN = 2;
+    public static final int STAT_RMS = 3;
+    public static final int STAT_COUNT = 4;
+
+    private final int capacity;
+    // Per signal: capacity * width value bits, and the receive time of each sample
+    private final AtomicLongArray[] samples = new AtomicLongArray[TelemetryStateStore.MAX_SIGNALS];
+    private final AtomicLongArray[] times = new AtomicLongArray[TelemetryStateStore.MAX_SIGNALS];
+    private final int[] widths = new int[TelemetryStateStore.MAX_SIGNALS];
+    // Number of samples ever committed per signal
+    private final AtomicLongArray heads = new AtomicLongArray(TelemetryStateStore.MAX_SIGNALS);
+    // One sample being summarised, sized for the widest signal
+    private double[] scratch = new double[0];
+
+    public TelemetryHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TelemetryHistory(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** Allocates the ring of a signal; must happen before its listener starts. */
+    public synchronized void register(int signal, int width) {
+        if (samples[signal] == null) {
+            samples[signal] = new AtomicLongArray(capacity * width);
+            times[signal] = new AtomicLongArray(capacity);
+            widths[signal] = width;
+            if (width > scratch.length) {
+                scratch = new double[width];
+            }
+        }
+    }
+
+    public boolean isRegistered(int signal) {
+        return samples[signal] != null;
+    }
+
+    /** Writes one value of the signal's next sample, made visible by {@link #commit}. */
+    public void put(int signal, int index, double value) {
+        int slot = (int) (heads.get(signal) % capacity);
+        samples[signal].set(slot * widths[signal] + index, Double.doubleToRawLongBits(value));
+    }
+
+    public void commit(int signal, long timeMs) {
+        long head = heads.get(signal);
+        times[signal].set((int) (head % capacity), timeMs);
+        heads.set(signal, head + 1);
+    }
+
+    /**
+     * Summarises values [offset, offset + width) of a signal over the samples received since
+     * fromMs. Meant to be called from a single reader thread.
+     *
+     * @param out Receives the min, max, mean and RMS of each value, in that order, each a block
+     *            of width values
+     * @return Number of samples summarised; out is left untouched when 0
+     */
+    public int summarize(int signal, long fromMs, int offset, int width, double[] out) {
+        AtomicLongArray values = samples[signal];
+        AtomicLongArray stamps = times[signal];
+        int stride = widths[signal];
+        long head = heads.get(signal);
+        int count = 0;
+        for (long seq = head - 1; seq >= 0 && seq > head - capacity; seq--) {
+            int slot = (int) (seq % capacity);
+            long stamp = stamps.get(slot);
+            for (int i = 0; i < width; i++) {
+                scratch[i] = Double.longBitsToDouble(values.get(slot * stride + offset + i));
+            }
+            // Once the head reaches seq + capacity the writer may be reusing the slot, and every
+            // older slot has been reused already
+            if (stamp < fromMs || heads.get(signal) >= seq + capacity) {
+                break;
+            }
+            for (int i = 0; i < width; i++) {
+                double value = scratch[i];
+                if (count == 0) {
+                    out[STAT_MIN * width + i] = value;
+                    out[STAT_MAX * width + i] = value;
+                    out[STAT_MEAN * width + i] = 0;
+                    out[STAT_RMS * width + i] = 0;
+                }
+                out[STAT_MIN * width + i] = Math.min(out[STAT_MIN * width + i], value);
+                out[STAT_MAX * width + i] = Math.max(out[STAT_MAX * width + i], value);
+                out[STAT_MEAN * width + i] += value;
+                out[STAT_RMS * width + i] += value * value;
+            }
+            count++;
+        }
+        for (int i = 0; count > 0 && i < width; i++) {
+            out[STAT_MEAN * width + i] /= count;
+            out[STAT_RMS * width + i] = Math.sqrt(out[STAT_RMS * width + i] / count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,315 @@
+package com.obruta.astrosee;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records every message taken by the topic listeners to memory-mapped segment files, so the full
+ * rate data can be downlinked after the session.
+ *
+ * Listeners hand their values to a bounded queue shared by all topics and return straight away;
+ * if the queue is ever full the record is dropped and counted, the listener never waits. A
+ * writer thread drains the queue into the current segment and starts a new one when it is full.
+ * Closed segments are handed to a {@link TelemetryCompactor}.
+ *
+ * Segment layout (big-endian):
+ * <pre>
+ *   u8[4]  magic 'A' 'S' 'R' 'C'
+ *   u8     format version
+ *   u16    number of topics, then for each:
+ *          u16 signal id, u8 number of values, u8 name length, name (UTF-8)
+ *   records, each:
+ *          u8 RECORD, u16 signal id, u8 number of values, i64 header stamp (ns, 0 if the message
+ *          has none), i64 receive time (ms since the epoch), the values as float64
+ *   u8     END, or the zeros left at the end of the segment
+ * </pre>
+ * Segments keep their full mapped size, the unwritten part being left as a hole in the file;
+ * readers stop at END.
+ */
+public class TelemetryRecorder {
+    private static final String TAG = TelemetryRecorder.class.getSimpleName();
+
+    public static final byte[] MAGIC = {'A', 'S', 'R', 'C'};
+    public static final int VERSION = 1;
+    public static final byte END = 0;
+    public static final byte RECORD = 1;
+    public static final int RECORD_HEADER_SIZE = 20;
+    public static final int MAX_RECORD_VALUES = 16;
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    // Mapped at once, so well within the HLP's address space
+    public static final int MAX_SEGMENT_SIZE = 512 * 1024 * 1024;
+    public static final String FILE_PREFIX = "telemetry_";
+    public static final String FILE_SUFFIX = ".rec";
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final long IDLE_SLEEP_MS = 10;
+
+    private final TelemetryStateStore store;
+    private final File directory;
+    private final TelemetryCompactor compactor = new TelemetryCompactor();
+    private boolean pendingSubmitted = false;
+
+    // Bounded multi-producer queue: a producer claims a slot by moving the tail, fills it and
+    // publishes it by setting the slot's sequence to its position + 1
+    private final AtomicLongArray sequences = new AtomicLongArray(QUEUE_CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final int[] signals = new int[QUEUE_CAPACITY];
+    private final int[] widths = new int[QUEUE_CAPACITY];
+    private final long[] stamps = new long[QUEUE_CAPACITY];
+    private final long[] receiveTimes = new long[QUEUE_CAPACITY];
+    private final double[] values = new double[QUEUE_CAPACITY * MAX_RECORD_VALUES];
+    private long head = 0;
+    // Records claimed by listeners after a recording's last drain, dropped by the next one
+    private long discardBefore = 0;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean recording = false;
+    private volatile int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private Thread writer;
+
+    // Segment being written and how much of it holds complete records, for readers
+    private volatile File activeSegment;
+    private volatile int activeLength;
+
+    // Only touched by the writer thread
+    private RandomAccessFile segmentFile;
+    private File segmentPath;
+    private MappedByteBuffer segment;
+    private int segmentIndex = 0;
+
+    public TelemetryRecorder(TelemetryStateStore store, String directory) {
+        this.store = store;
+        this.directory = new File(directory);
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Starts a new recording in a fresh segment.
+     *
+     * @param segmentSize Size of each segment file, in bytes, clamped to MIN_SEGMENT_SIZE and
+     *                    MAX_SEGMENT_SIZE
+     */
+    public synchronized void start(int segmentSize) {
+        if (recording) {
+            return;
+        }
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        if (!pendingSubmitted) {
+            // Left over from a run that stopped before compacting them
+            compactor.submitPending(directory);
+            pendingSubmitted = true;
+        }
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(segmentSize, MAX_SEGMENT_SIZE));
+        // A listener that saw the previous recording still running may have queued a message
+        // after its writer stopped; it doesn't belong in this one
+        discardBefore = tail.get();
+        recording = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        writer.start();
+    }
+
+    /** Stops recording once everything already queued has been written. */
+    public synchronized void stop() {
+        if (!recording) {
+            return;
+        }
+        recording = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        Log.i(TAG, "Recorded " + recorded.get() + " messages, dropped " + dropped.get());
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public long getRecordedCount() {
+        return recorded.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /** The segment being written, null when not recording. */
+    public File getActiveSegment() {
+        return activeSegment;
+    }
+
+    /** Length of the active segment that holds complete records. */
+    public int getActiveLength() {
+        return activeLength;
+    }
+
+    /**
+     * Queues one message. Safe to call from any number of threads, never blocks.
+     *
+     * @param stampNs       Header stamp of the message, 0 if it has none
+     * @param receiveTimeMs Wall clock time the message was received
+     */
+    public void record(int signal, long stampNs, long receiveTimeMs, double[] messageValues, int width) {
+        if (!recording) {
+            return;
+        }
+        long position = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) (position % QUEUE_CAPACITY);
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The writer is a whole queue behind
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        width = Math.min(width, MAX_RECORD_VALUES);
+        signals[slot] = signal;
+        widths[slot] = width;
+        stamps[slot] = stampNs;
+        receiveTimes[slot] = receiveTimeMs;
+        System.arraycopy(messageValues, 0, values, slot * MAX_RECORD_VALUES, width);
+        sequences.set(slot, position + 1);
+    }
+
+    private void writeLoop() {
+        try {
+            openSegment();
+            while (true) {
+                boolean stopping = !recording;
+                int written = drain();
+                if (written > 0) {
+                    activeLength = segment.position();
+                }
+                if (written == 0) {
+                    if (stopping) {
+                        break;
+                    }
+                    Thread.sleep(IDLE_SLEEP_MS);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Recording stopped: " + e.getMessage());
+            recording = false;
+        } catch (InterruptedException e) {
+            recording = false;
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private int drain() throws IOException {
+        int written = 0;
+        while (true) {
+            int slot = (int) (head % QUEUE_CAPACITY);
+            if (sequences.get(slot) != head + 1) {
+                return written;
+            }
+            if (head < discardBefore) {
+                sequences.set(slot, head + QUEUE_CAPACITY);
+                head++;
+                dropped.incrementAndGet();
+                continue;
+            }
+            int width = widths[slot];
+            if (segment.remaining() < RECORD_HEADER_SIZE + 8 * width + 1) {
+                closeSegment();
+                openSegment();
+            }
+            segment.put(RECORD);
+            segment.putShort((short) signals[slot]);
+            segment.put((byte) width);
+            segment.putLong(stamps[slot]);
+            segment.putLong(receiveTimes[slot]);
+            for (int i = 0; i < width; i++) {
+                segment.putDouble(values[slot * MAX_RECORD_VALUES + i]);
+            }
+            sequences.set(slot, head + QUEUE_CAPACITY);
+            head++;
+            written++;
+            recorded.incrementAndGet();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        File file = new File(directory, String.format(Locale.US, "%s%s_%03d%s",
+                FILE_PREFIX, timestamp, segmentIndex++, FILE_SUFFIX));
+        segmentPath = file;
+        segmentFile = new RandomAccessFile(file, "rw");
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.put(MAGIC);
+        segment.put((byte) VERSION);
+        int signalCount = store.getSignalCount();
+        segment.putShort((short) signalCount);
+        for (int signal = 0; signal < signalCount; signal++) {
+            byte[] name = store.getName(signal).getBytes(StandardCharsets.UTF_8);
+            segment.putShort((short) signal);
+            segment.put((byte) store.getWidth(signal));
+            segment.put((byte) name.length);
+            segment.put(name);
+        }
+        activeLength = segment.position();
+        activeSegment = file;
+        Log.i(TAG, "Recording to " + file);
+    }
+
+    // Marks the end and queues the segment for compression. The file isn't trimmed: it can't be
+    // unmapped, and truncating a mapped file is unsafe
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        activeSegment = null;
+        if (segment.hasRemaining()) {
+            segment.put(END);
+        }
+        segment.force();
+        try {
+            segmentFile.close();
+            compactor.submit(segmentPath);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close " + segmentPath, e);
+        }
+        segment = null;
+        segmentFile = null;
+        segmentPath = null;
+    }
+}
@@ -0,0 +1,141 @@
+package com.obruta.astrosee;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest values of every subscribed topic, kept as primitive doubles instead of the rosjava
+ * messages themselves.
+ *
+ * Each topic (a "signal") is guarded by its own sequence lock: the rosjava thread delivering that
+ * topic bumps the signal's version to odd, writes the values and bumps it back to even, and readers
+ * retry until they see the same even version before and after copying. Writers never wait, and a
+ * reader always gets all the values of one message, never a mix of two. Each signal must only be
+ * written by one thread, which is what rosjava does with one subscriber per topic.
+ */
+public class TelemetryStateStore {
+    public static final int MAX_SIGNALS = 128;
+    public static final int MAX_VALUES = 1024;
+
+    // Double bits, so every access has volatile semantics and the seqlock is sound
+    private final AtomicLongArray values = new AtomicLongArray(MAX_VALUES);
+    private final AtomicIntegerArray versions = new AtomicIntegerArray(MAX_SIGNALS);
+    private final int[] offsets = new int[MAX_SIGNALS];
+    private final int[] widths = new int[MAX_SIGNALS];
+    private final String[] names = new String[MAX_SIGNALS];
+    private final Map<String, Integer> ids = new HashMap<>();
+    private volatile int signalCount = 0;
+    private int valueCount = 0;
+
+    /**
+     * Adds a signal, or returns the existing one if the name is already known.
+     *
+     * @return Id used to write and read the signal
+     */
+    public synchronized int register(String name, int width) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            if (widths[existing] != width) {
+                throw new IllegalArgumentException("Signal " + name + " already has " + widths[existing] + " values");
+            }
+            return existing;
+        }
+        if (signalCount == MAX_SIGNALS || valueCount + width > MAX_VALUES) {
+            throw new IllegalStateException("Telemetry state store is full");
+        }
+        int id = signalCount;
+        offsets[id] = valueCount;
+        widths[id] = width;
+        names[id] = name;
+        valueCount += width;
+        ids.put(name, id);
+        signalCount = id + 1;
+        return id;
+    }
+
+    /** @return Id of the named signal, -1 if it isn't registered */
+    public synchronized int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public int getSignalCount() {
+        return signalCount;
+    }
+
+    public int getWidth(int signal) {
+        return widths[signal];
+    }
+
+    public String getName(int signal) {
+        return names[signal];
+    }
+
+    /** Starts updating a signal; follow with {@link #put} for each value and {@link #endWrite}. */
+    public void beginWrite(int signal) {
+        versions.incrementAndGet(signal);
+    }
+
+    public void put(int signal, int index, double value) {
+        values.set(offsets[signal] + index, Double.doubleToRawLongBits(value));
+    }
+
+    public void endWrite(int signal) {
+        versions.incrementAndGet(signal);
+    }
+
+    public void write(int signal, double value) {
+        beginWrite(signal);
+        put(signal, 0, value);
+        endWrite(signal);
+    }
+
+    public void write(int signal, double x, double y, double z) {
+        beginWrite(signal);
+        put(signal, 0, x);
+        put(signal, 1, y);
+        put(signal, 2, z);
+        endWrite(signal);
+    }
+
+    public void write(int signal, double x, double y, double z, double w) {
+        beginWrite(signal);
+        put(signal, 0, x);
+        put(signal, 1, y);
+        put(signal, 2, z);
+        put(signal, 3, w);
+        endWrite(signal);
+    }
+
+    /**
+     * Copies the latest values of a signal.
+     *
+     * @param dst       Destination, must hold getWidth(signal) values from dstOffset
+     * @return False if the signal was never written, in which case dst holds zeros
+     */
+    public boolean read(int signal, double[] dst, int dstOffset) {
+        int offset = offsets[signal];
+        int width = widths[signal];
+        while (true) {
+            int before = versions.get(signal);
+            if ((before & 1) != 0) {
+                // A write is in progress, it only takes a few stores
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < width; i++) {
+                dst[dstOffset + i] = Double.longBitsToDouble(values.get(offset + i));
+            }
+            if (versions.get(signal) == before) {
+                return before != 0;
+            }
+        }
+    }
+
+    /** Number of writes made to the signal so far. */
+    public int getVersion(int signal) {
+        return versions.get(signal) >>> 1;
+    }
+}
@@ -0,0 +1,151 @@
+package com.obruta.astrosee;
+
+import android.content.Context;
+import android.content.res.XmlResourceParser;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The telemetry topics the node subscribes to, read at startup from res/xml/topics.xml.
+ *
+ * A topics.xml file placed in the data path takes precedence over the bundled one, so topics can
+ * be added, dropped or throttled on the robot without a new APK. Each entry looks like
+ * <pre>
+ *   &lt;topic name="/gnc/ekf" type="ff_msgs/EkfState" fields="position,orientation" max_rate="10" /&gt;
+ * </pre>
+ * where fields lists, in order, the parts of the message kept in the state store (see
+ * {@link TopicSubscriber} for the ones each type has) and max_rate, in Hz, is optional.
+ *
+ * A topic added here is subscribed to, recorded and monitored, but only the parts named by a
+ * {@link TelemetryField} are sent with the telemetry frame; sending a new one takes a field in
+ * that enum and a new APK.
+ */
+public class TopicManifest {
+    private static final String TAG = TopicManifest.class.getSimpleName();
+    public static final String FILE_NAME = "topics.xml";
+
+    public static class Entry {
+        private final String topic;
+        private final String type;
+        private final String[] fields;
+        private final double maxRate;
+
+        public Entry(String topic, String type, String[] fields, double maxRate) {
+            this.topic = topic;
+            this.type = type;
+            this.fields = fields;
+            this.maxRate = maxRate;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String[] getFields() {
+            return fields;
+        }
+
+        /** Highest rate at which messages are taken, in Hz; 0 takes them all. */
+        public double getMaxRate() {
+            return maxRate;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private TopicManifest(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Loads dataPath/topics.xml if there is one, and the bundled manifest otherwise or if that
+     * file can't be read.
+     */
+    public static TopicManifest load(Context context, String dataPath) {
+        File override = new File(dataPath, FILE_NAME);
+        if (override.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(override);
+                XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(in, null);
+                TopicManifest manifest = parse(parser);
+                Log.i(TAG, "Loaded " + manifest.entries.size() + " topics from " + override);
+                return manifest;
+            } catch (IOException | XmlPullParserException | IllegalArgumentException e) {
+                Log.e(TAG, "Ignoring " + override + ": " + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not close " + override + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        XmlResourceParser parser = context.getResources().getXml(R.xml.topics);
+        try {
+            return parse(parser);
+        } catch (IOException | XmlPullParserException e) {
+            // The bundled manifest is checked at build time, this can't happen
+            throw new IllegalStateException("Bad bundled topic manifest", e);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if an entry is missing its name, type or fields, or has a
+     *                                  bad max_rate
+     */
+    public static TopicManifest parse(XmlPullParser parser) throws IOException, XmlPullParserException {
+        List<Entry> entries = new ArrayList<>();
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event != XmlPullParser.START_TAG || !"topic".equals(parser.getName())) {
+                continue;
+            }
+            String topic = parser.getAttributeValue(null, "name");
+            String type = parser.getAttributeValue(null, "type");
+            String fields = parser.getAttributeValue(null, "fields");
+            String maxRate = parser.getAttributeValue(null, "max_rate");
+            if (topic == null || type == null || fields == null) {
+                throw new IllegalArgumentException("Topic entry on line " + parser.getLineNumber()
+                        + " needs a name, a type and fields");
+            }
+            double rate = 0;
+            if (maxRate != null) {
+                try {
+                    rate = Double.parseDouble(maxRate);
+                } catch (NumberFormatException e) {
+                    rate = -1;
+                }
+                if (!(rate >= 0)) {
+                    throw new IllegalArgumentException("Bad max_rate for " + topic + ": " + maxRate);
+                }
+            }
+            entries.add(new Entry(topic, type, fields.trim().split("\\s*,\\s*"), rate));
+        }
+        return new TopicManifest(entries);
+    }
+}
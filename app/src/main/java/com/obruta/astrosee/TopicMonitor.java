@@ -0,0 +1,160 @@
+package com.obruta.astrosee;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How each subscribed topic is arriving: the number of messages, a histogram of the time between
+ * them and a histogram of their transport latency, from the header stamp to the moment the
+ * listener got the message. Signal ids are those of the {@link TelemetryStateStore}.
+ *
+ * Every message is counted, including the ones a max rate then drops. Each signal is written by
+ * its own listener thread without allocating; readers look at the counts through a
+ * {@link Window}, which reports on what arrived since its previous update.
+ */
+public class TopicMonitor {
+    // Summary of a topic, see Window.get
+    public static final int SUMMARY_RATE = 0;
+    public static final int SUMMARY_JITTER = 1;
+    public static final int SUMMARY_LATENCY_P50 = 2;
+    public static final int SUMMARY_LATENCY_P99 = 3;
+    public static final int SUMMARY_COUNT = 4;
+
+    private final AtomicLongArray messages = new AtomicLongArray(TelemetryStateStore.MAX_SIGNALS);
+    // In us
+    private final LogHistogram[] intervals = new LogHistogram[TelemetryStateStore.MAX_SIGNALS];
+    private final LogHistogram[] latencies = new LogHistogram[TelemetryStateStore.MAX_SIGNALS];
+    // Only touched by each signal's listener thread
+    private final long[] lastArrivalNs = new long[TelemetryStateStore.MAX_SIGNALS];
+
+    /** Call before the signal's listener is added. */
+    public synchronized void register(int signal) {
+        intervals[signal] = new LogHistogram();
+        latencies[signal] = new LogHistogram();
+    }
+
+    public synchronized boolean isRegistered(int signal) {
+        return latencies[signal] != null;
+    }
+
+    /**
+     * Counts one message; only call from the signal's listener thread.
+     *
+     * @param arrivalNs     SystemClock.elapsedRealtimeNanos() when it was received
+     * @param receiveTimeMs Wall clock time it was received
+     * @param stampNs       Its header stamp, 0 if it has none
+     */
+    public void onMessage(int signal, long arrivalNs, long receiveTimeMs, long stampNs) {
+        messages.lazySet(signal, messages.get(signal) + 1);
+        if (lastArrivalNs[signal] != 0) {
+            intervals[signal].record((arrivalNs - lastArrivalNs[signal]) / 1000);
+        }
+        lastArrivalNs[signal] = arrivalNs;
+        if (stampNs != 0) {
+            // A stamp ahead of the HLP clock counts as no latency
+            latencies[signal].record(receiveTimeMs * 1000 - stampNs / 1000);
+        }
+    }
+
+    /**
+     * A reader's view of the monitor: each update summarises what arrived since the previous one.
+     * A window is used by one thread at a time, and allocates only for topics it hasn't seen yet.
+     */
+    public class Window {
+        private final long[][] intervalBase = new long[TelemetryStateStore.MAX_SIGNALS][];
+        private final long[][] latencyBase = new long[TelemetryStateStore.MAX_SIGNALS][];
+        private final long[] messageBase = new long[TelemetryStateStore.MAX_SIGNALS];
+        private final long[] scratch = new long[LogHistogram.BUCKETS];
+        private long lastUpdateNs = SystemClock.elapsedRealtimeNanos();
+        private long durationNs;
+
+        // Results of the last update, per signal
+        private final long[] messageCounts = new long[TelemetryStateStore.MAX_SIGNALS];
+        private final long[] intervalCounts = new long[TelemetryStateStore.MAX_SIGNALS];
+        private final long[] latencyCounts = new long[TelemetryStateStore.MAX_SIGNALS];
+        private final long[][] intervalUs = new long[TelemetryStateStore.MAX_SIGNALS][];
+        private final long[][] latencyUs = new long[TelemetryStateStore.MAX_SIGNALS][];
+
+        // Quantiles kept for each histogram
+        public static final int P50 = 0;
+        public static final int P90 = 1;
+        public static final int P99 = 2;
+        public static final int MAX = 3;
+        private final double[] quantiles = {0.5, 0.9, 0.99, 1.0};
+
+        /** Summarises every registered topic over the time since the previous update. */
+        public void update() {
+            long now = SystemClock.elapsedRealtimeNanos();
+            durationNs = now - lastUpdateNs;
+            lastUpdateNs = now;
+            for (int signal = 0; signal < TelemetryStateStore.MAX_SIGNALS; signal++) {
+                if (!isRegistered(signal)) {
+                    continue;
+                }
+                if (intervalBase[signal] == null) {
+                    intervalBase[signal] = new long[LogHistogram.BUCKETS];
+                    latencyBase[signal] = new long[LogHistogram.BUCKETS];
+                    intervalUs[signal] = new long[quantiles.length];
+                    latencyUs[signal] = new long[quantiles.length];
+                }
+                long count = messages.get(signal);
+                messageCounts[signal] = count - messageBase[signal];
+                messageBase[signal] = count;
+                intervalCounts[signal] = summarize(intervals[signal], intervalBase[signal], intervalUs[signal]);
+                latencyCounts[signal] = summarize(latencies[signal], latencyBase[signal], latencyUs[signal]);
+            }
+        }
+
+        // Quantiles of what the histogram counted since base, which then moves up to now
+        private long summarize(LogHistogram histogram, long[] base, long[] out) {
+            long total = histogram.copySince(base, scratch);
+            for (int q = 0; q < quantiles.length; q++) {
+                out[q] = LogHistogram.valueAt(scratch, total, quantiles[q]);
+            }
+            return total;
+        }
+
+        /** Length of the last update's window, ms. */
+        public long getDurationMs() {
+            return durationNs / 1000000;
+        }
+
+        public boolean hasTopic(int signal) {
+            return intervalUs[signal] != null;
+        }
+
+        public long getMessages(int signal) {
+            return messageCounts[signal];
+        }
+
+        public double getRate(int signal) {
+            return durationNs > 0 ? messageCounts[signal] * 1e9 / durationNs : 0;
+        }
+
+        /** One of P50, P90, P99 and MAX of the time between messages, ms. */
+        public double getInterval(int signal, int quantile) {
+            return intervalCounts[signal] > 0 ? intervalUs[signal][quantile] / 1000.0 : Double.NaN;
+        }
+
+        /** One of P50, P90, P99 and MAX of the latency, ms; NaN if the messages have no stamp. */
+        public double getLatency(int signal, int quantile) {
+            return latencyCounts[signal] > 0 ? latencyUs[signal][quantile] / 1000.0 : Double.NaN;
+        }
+
+        /** One of the SUMMARY_ values of a topic. Jitter is the p99 interval less the median one. */
+        public double get(int signal, int summary) {
+            switch (summary) {
+                case SUMMARY_RATE:
+                    return getRate(signal);
+                case SUMMARY_JITTER:
+                    return getInterval(signal, P99) - getInterval(signal, P50);
+                case SUMMARY_LATENCY_P50:
+                    return getLatency(signal, P50);
+                case SUMMARY_LATENCY_P99:
+                default:
+                    return getLatency(signal, P99);
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.obruta.astrosee;
+
+import android.os.SystemClock;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.message.MessageListener;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Subscriber;
+
+import java.util.List;
+
+import ff_hw_msgs.PmcCommand;
+import ff_hw_msgs.PmcGoal;
+import ff_msgs.EkfState;
+import geometry_msgs.Point;
+import geometry_msgs.Quaternion;
+import geometry_msgs.QuaternionStamped;
+import geometry_msgs.Vector3;
+import geometry_msgs.Vector3Stamped;
+import std_msgs.Float64;
+import std_msgs.Int32;
+
+/**
+ * Subscribes to the topics of a {@link TopicManifest} and writes the fields they list into a
+ * {@link TelemetryStateStore}, one signal per topic, into its {@link TelemetryHistory} and, while
+ * it is recording, to the {@link TelemetryRecorder}. How the messages arrive is counted by a
+ * {@link TopicMonitor}.
+ *
+ * Supported types and their fields:
+ * <pre>
+ *   geometry_msgs/Vector3Stamped     vector (3)
+ *   geometry_msgs/QuaternionStamped  quaternion (4)
+ *   ff_msgs/EkfState                 position (3), orientation (4), velocity (3), omega (3), accel (3)
+ *   ff_hw_msgs/PmcCommand            nozzles (12, both sides, NaN while there are fewer than two goals)
+ *   std_msgs/Float64                 data (1)
+ *   std_msgs/Int32                   data (1)
+ * </pre>
+ */
+public class TopicSubscriber {
+    private static final int NOZZLE_COUNT = 6;
+
+    private final TelemetryStateStore store;
+    private final TelemetryHistory history;
+    private final TelemetryRecorder recorder;
+    private final TopicMonitor monitor;
+
+    public TopicSubscriber(TelemetryStateStore store, TelemetryHistory history, TelemetryRecorder recorder,
+                           TopicMonitor monitor) {
+        this.store = store;
+        this.history = history;
+        this.recorder = recorder;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Registers the entry's signal and subscribes to its topic.
+     *
+     * @return Id of the signal in the store
+     * @throws IllegalArgumentException if the type or one of the fields isn't supported
+     */
+    public int subscribe(ConnectedNode connectedNode, TopicManifest.Entry entry) {
+        String type = entry.getType();
+        String[] fields = entry.getFields();
+        int[] codes = new int[fields.length];
+        int width = 0;
+        for (int i = 0; i < fields.length; i++) {
+            codes[i] = fieldCode(type, fields[i]);
+            if (codes[i] < 0) {
+                throw new IllegalArgumentException(type + " has no field " + fields[i]);
+            }
+            width += fieldWidth(codes[i]);
+        }
+        int signal = store.register(entry.getTopic(), width);
+        history.register(signal, width);
+        monitor.register(signal);
+        long minIntervalMs = entry.getMaxRate() > 0 ? Math.round(1000 / entry.getMaxRate()) : 0;
+
+        if (type.equals(Vector3Stamped._TYPE)) {
+            Subscriber<Vector3Stamped> subscriber = connectedNode.newSubscriber(entry.getTopic(), type);
+            subscriber.addMessageListener(new ThrottledListener<Vector3Stamped>(signal, codes, width, minIntervalMs) {
+                @Override
+                int extract(Vector3Stamped message, int field, int index) {
+                    return putVector(message.getVector(), index);
+                }
+
+                @Override
+                long stamp(Vector3Stamped message) {
+                    return message.getHeader().getStamp().totalNsecs();
+                }
+            });
+        } else if (type.equals(QuaternionStamped._TYPE)) {
+            Subscriber<QuaternionStamped> subscriber = connectedNode.newSubscriber(entry.getTopic(), type);
+            subscriber.addMessageListener(new ThrottledListener<QuaternionStamped>(signal, codes, width, minIntervalMs) {
+                @Override
+                int extract(QuaternionStamped message, int field, int index) {
+                    return putQuaternion(message.getQuaternion(), index);
+                }
+
+                @Override
+                long stamp(QuaternionStamped message) {
+                    return message.getHeader().getStamp().totalNsecs();
+                }
+            });
+        } else if (type.equals(EkfState._TYPE)) {
+            Subscriber<EkfState> subscriber = connectedNode.newSubscriber(entry.getTopic(), type);
+            subscriber.addMessageListener(new ThrottledListener<EkfState>(signal, codes, width, minIntervalMs) {
+                @Override
+                int extract(EkfState message, int field, int index) {
+                    switch (field) {
+                        case EKF_POSITION:
+                            Point position = message.getPose().getPosition();
+                            put(index, position.getX());
+                            put(index + 1, position.getY());
+                            put(index + 2, position.getZ());
+                            return index + 3;
+                        case EKF_ORIENTATION:
+                            return putQuaternion(message.getPose().getOrientation(), index);
+                        case EKF_VELOCITY:
+                            return putVector(message.getVelocity(), index);
+                        case EKF_OMEGA:
+                            return putVector(message.getOmega(), index);
+                        case EKF_ACCEL:
+                        default:
+                            return putVector(message.getAccel(), index);
+                    }
+                }
+
+                @Override
+                long stamp(EkfState message) {
+                    return message.getHeader().getStamp().totalNsecs();
+                }
+            });
+        } else if (type.equals(PmcCommand._TYPE)) {
+            Subscriber<PmcCommand> subscriber = connectedNode.newSubscriber(entry.getTopic(), type);
+            ThrottledListener<PmcCommand> listener = new ThrottledListener<PmcCommand>(signal, codes, width, minIntervalMs) {
+                @Override
+                int extract(PmcCommand message, int field, int index) {
+                    List<PmcGoal> goals = message.getGoals();
+                    for (int side = 0; side < 2; side++) {
+                        ChannelBuffer nozzles = goals.size() >= 2 ? goals.get(side).getNozzlePositions() : null;
+                        for (int i = 0; i < NOZZLE_COUNT; i++) {
+                            put(index++, nozzles != null ? nozzles.getUnsignedByte(i) : Double.NaN);
+                        }
+                    }
+                    return index;
+                }
+
+                @Override
+                long stamp(PmcCommand message) {
+                    return message.getHeader().getStamp().totalNsecs();
+                }
+            };
+            // No command yet reads as no goals, not as closed nozzles
+            store.beginWrite(signal);
+            for (int i = 0; i < width; i++) {
+                store.put(signal, i, Double.NaN);
+            }
+            store.endWrite(signal);
+            subscriber.addMessageListener(listener);
+        } else if (type.equals(Float64._TYPE)) {
+            Subscriber<Float64> subscriber = connectedNode.newSubscriber(entry.getTopic(), type);
+            subscriber.addMessageListener(new ThrottledListener<Float64>(signal, codes, width, minIntervalMs) {
+                @Override
+                int extract(Float64 message, int field, int index) {
+                    put(index, message.getData());
+                    return index + 1;
+                }
+            });
+        } else {
+            Subscriber<Int32> subscriber = connectedNode.newSubscriber(entry.getTopic(), type);
+            subscriber.addMessageListener(new ThrottledListener<Int32>(signal, codes, width, minIntervalMs) {
+                @Override
+                int extract(Int32 message, int field, int index) {
+                    put(index, message.getData());
+                    return index + 1;
+                }
+            });
+        }
+        return signal;
+    }
+
+    /**
+     * Where a part of the entry's message starts among the values kept for its topic, see
+     * {@link TelemetryField#getSourcePart()}.
+     *
+     * @return The index of the part's first value, or -1 if the entry doesn't list it
+     */
+    public static int findPart(TopicManifest.Entry entry, String part) {
+        int offset = 0;
+        for (String field : entry.getFields()) {
+            int code = fieldCode(entry.getType(), field);
+            if (code < 0) {
+                return -1;
+            }
+            if (field.equals(part)) {
+                return offset;
+            }
+            offset += fieldWidth(code);
+        }
+        return -1;
+    }
+
+    /** Number of values in a part of a message of the given type, -1 if it has no such part. */
+    public static int partWidth(String type, String part) {
+        int code = fieldCode(type, part);
+        return code >= 0 ? fieldWidth(code) : -1;
+    }
+
+    private static final int VECTOR = 0;
+    private static final int QUATERNION = 1;
+    private static final int EKF_POSITION = 2;
+    private static final int EKF_ORIENTATION = 3;
+    private static final int EKF_VELOCITY = 4;
+    private static final int EKF_OMEGA = 5;
+    private static final int EKF_ACCEL = 6;
+    private static final int NOZZLES = 7;
+    private static final int DATA = 8;
+
+    private static int fieldCode(String type, String field) {
+        if (type.equals(Vector3Stamped._TYPE)) {
+            return field.equals("vector") ? VECTOR : -1;
+        } else if (type.equals(QuaternionStamped._TYPE)) {
+            return field.equals("quaternion") ? QUATERNION : -1;
+        } else if (type.equals(EkfState._TYPE)) {
+            switch (field) {
+                case "position":
+                    return EKF_POSITION;
+                case "orientation":
+                    return EKF_ORIENTATION;
+                case "velocity":
+                    return EKF_VELOCITY;
+                case "omega":
+                    return EKF_OMEGA;
+                case "accel":
+                    return EKF_ACCEL;
+                default:
+                    return -1;
+            }
+        } else if (type.equals(PmcCommand._TYPE)) {
+            return field.equals("nozzles") ? NOZZLES : -1;
+        } else if (type.equals(Float64._TYPE) || type.equals(Int32._TYPE)) {
+            return field.equals("data") ? DATA : -1;
+        }
+        return -1;
+    }
+
+    private static int fieldWidth(int code) {
+        switch (code) {
+            case QUATERNION:
+            case EKF_ORIENTATION:
+                return 4;
+            case NOZZLES:
+                return 2 * NOZZLE_COUNT;
+            case DATA:
+                return 1;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * Drops messages arriving faster than the topic's max rate, before any of their fields are
+     * read, and writes the fields of the others as one store update. rosjava delivers each topic
+     * on its own thread, so the throttling state needs no locking.
+     */
+    private abstract class ThrottledListener<T> implements MessageListener<T> {
+        private final int signal;
+        private final int[] fields;
+        private final long minIntervalMs;
+        private long nextAcceptMs = 0;
+        // The values of the message being handled, for the recorder
+        private final double[] messageValues;
+
+        ThrottledListener(int signal, int[] fields, int width, long minIntervalMs) {
+            this.signal = signal;
+            this.fields = fields;
+            this.minIntervalMs = minIntervalMs;
+            this.messageValues = new double[width];
+        }
+
+        @Override
+        public void onNewMessage(T message) {
+            long arrivalNs = SystemClock.elapsedRealtimeNanos();
+            long now = arrivalNs / 1000000;
+            long receiveTimeMs = System.currentTimeMillis();
+            long stampNs = stamp(message);
+            monitor.onMessage(signal, arrivalNs, receiveTimeMs, stampNs);
+            if (minIntervalMs > 0) {
+                if (now < nextAcceptMs) {
+                    return;
+                }
+                // Keep to the max rate on average, but don't catch up in bursts after a gap
+                nextAcceptMs += minIntervalMs;
+                if (nextAcceptMs <= now) {
+                    nextAcceptMs = now + minIntervalMs;
+                }
+            }
+            store.beginWrite(signal);
+            int index = 0;
+            for (int field : fields) {
+                index = extract(message, field, index);
+            }
+            store.endWrite(signal);
+            history.commit(signal, now);
+            if (recorder.isRecording()) {
+                recorder.record(signal, stampNs, receiveTimeMs, messageValues, index);
+            }
+        }
+
+        /**
+         * Writes one field of the message from value index onwards.
+         *
+         * @return Index after the field's last value
+         */
+        abstract int extract(T message, int field, int index);
+
+        /** Header stamp of the message in ns, 0 for messages without a header. */
+        long stamp(T message) {
+            return 0;
+        }
+
+        void put(int index, double value) {
+            store.put(signal, index, value);
+            history.put(signal, index, value);
+            messageValues[index] = value;
+        }
+
+        int putVector(Vector3 vector, int index) {
+            put(index, vector.getX());
+            put(index + 1, vector.getY());
+            put(index + 2, vector.getZ());
+            return index + 3;
+        }
+
+        int putQuaternion(Quaternion quaternion, int index) {
+            put(index, quaternion.getX());
+            put(index + 1, quaternion.getY());
+            put(index + 2, quaternion.getZ());
+            put(index + 3, quaternion.getW());
+            return index + 4;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.obruta.astrosee;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time of the dock cam pipeline goes: a histogram of the duration of each stage of
+ * every frame, on the monotonic clock, with the number of frames processed and dropped.
+ *
+ * The inference thread marks the end of each stage as it goes, without allocating. A frame is
+ * counted as dropped when the camera's sequence numbers show it never reached the listener, or
+ * when a newer frame replaced it before inference got to it. Frames the detector skipped, whose
+ * box was only predicted, are counted apart, and so are frames that couldn't be decoded or
+ * whose processing threw. Readers look at the counts through a
+ * {@link Window}.
+ */
+public class VisionStats {
+    public static final int STAGE_DECODE = 0;
+    public static final int STAGE_CONVERT = 1;
+    public static final int STAGE_DETECT = 2;
+    public static final int STAGE_PUBLISH = 3;
+    public static final int STAGE_SAVE = 4;
+    // Solving and publishing the target's pose from the keypoints
+    public static final int STAGE_POSE = 5;
+    // From the listener receiving the frame to inference starting on it
+    public static final int STAGE_WAIT = 6;
+    // Whole frame, from the start of the decode
+    public static final int STAGE_TOTAL = 7;
+    public static final int STAGE_COUNT = 8;
+    static final String[] STAGE_NAMES = {"decode", "convert", "detect", "publish", "save", "pose", "wait", "total"};
+
+    private static final int PROCESSED = 0;
+    private static final int DROPPED = 1;
+    private static final int PREDICTED = 2;
+    private static final int FAILED = 3;
+    private static final int COUNTERS = 4;
+
+    // Readiness of the detectors, see DetectorScheduler.State
+    private volatile String modelState = "LOADING";
+    private volatile String detectionModel = "";
+
+    // In us
+    private final LogHistogram[] stages = new LogHistogram[STAGE_COUNT];
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+
+    // Only touched by the inference thread
+    private long frameStartNs;
+    private long stageStartNs;
+    // Only touched by the listener thread
+    private long lastSeq = -1;
+
+    public VisionStats() {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            stages[stage] = new LogHistogram();
+        }
+    }
+
+    /**
+     * Notes a frame reaching the listener.
+     *
+     * @param seq Header sequence number of the image, gaps in it count as dropped frames
+     */
+    public void receiveFrame(long seq) {
+        if (lastSeq >= 0 && seq > lastSeq + 1) {
+            addDropped(seq - lastSeq - 1);
+        }
+        lastSeq = seq;
+    }
+
+    /** Notes a frame that vision wasn't enabled for, so that it doesn't count as dropped. */
+    public void ignoreFrame(long seq) {
+        lastSeq = seq;
+    }
+
+    /**
+     * Starts timing a frame on the inference thread.
+     *
+     * @param receivedNs SystemClock.elapsedRealtimeNanos() when the listener got it
+     */
+    public void beginFrame(long receivedNs) {
+        frameStartNs = SystemClock.elapsedRealtimeNanos();
+        stageStartNs = frameStartNs;
+        stages[STAGE_WAIT].record((frameStartNs - receivedNs) / 1000);
+    }
+
+    /** Records the time since the previous stage ended, or since the frame began. */
+    public void endStage(int stage) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        stages[stage].record((now - stageStartNs) / 1000);
+        stageStartNs = now;
+    }
+
+    /** Records the frame's total time and counts it as processed. */
+    public void endFrame() {
+        stages[STAGE_TOTAL].record((SystemClock.elapsedRealtimeNanos() - frameStartNs) / 1000);
+        counters.lazySet(PROCESSED, counters.get(PROCESSED) + 1);
+    }
+
+    /** Counts a frame whose box was predicted rather than detected; only call from inference. */
+    public void predictFrame() {
+        counters.lazySet(PREDICTED, counters.get(PREDICTED) + 1);
+    }
+
+    /** Counts a frame that failed part way through; only call from inference. */
+    public void failFrame() {
+        counters.lazySet(FAILED, counters.get(FAILED) + 1);
+    }
+
+    /** Notes whether the detectors are ready for frames; safe from any thread. */
+    public void setModelState(String state) {
+        modelState = state;
+    }
+
+    /** Notes the file of the detection model running; safe from any thread. */
+    public void setDetectionModel(String file) {
+        detectionModel = file;
+    }
+
+    /** Counts frames the pipeline didn't process; safe from any thread. */
+    public void addDropped(long frames) {
+        counters.addAndGet(DROPPED, frames);
+    }
+
+    /**
+     * A reader's view of the statistics: each update covers what happened since the previous one.
+     * A window is used by one thread at a time.
+     */
+    public class Window {
+        public static final int P50 = 0;
+        public static final int P90 = 1;
+        public static final int P99 = 2;
+        public static final int MAX = 3;
+        private final double[] quantiles = {0.5, 0.9, 0.99, 1.0};
+
+        private final long[][] base = new long[STAGE_COUNT][LogHistogram.BUCKETS];
+        private final long[] scratch = new long[LogHistogram.BUCKETS];
+        private final long[] counterBase = new long[COUNTERS];
+        private long lastUpdateNs = SystemClock.elapsedRealtimeNanos();
+        private long durationNs;
+
+        // Results of the last update
+        private final long[] counts = new long[COUNTERS];
+        private final long[][] stageUs = new long[STAGE_COUNT][quantiles.length];
+        private final long[] stageSamples = new long[STAGE_COUNT];
+
+        public void update() {
+            long now = SystemClock.elapsedRealtimeNanos();
+            durationNs = now - lastUpdateNs;
+            lastUpdateNs = now;
+            for (int i = 0; i < counts.length; i++) {
+                long count = counters.get(i);
+                counts[i] = count - counterBase[i];
+                counterBase[i] = count;
+            }
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                long total = stages[stage].copySince(base[stage], scratch);
+                stageSamples[stage] = total;
+                for (int q = 0; q < quantiles.length; q++) {
+                    stageUs[stage][q] = LogHistogram.valueAt(scratch, total, quantiles[q]);
+                }
+            }
+        }
+
+        /** Length of the last update's window, ms. */
+        public long getDurationMs() {
+            return durationNs / 1000000;
+        }
+
+        public long getProcessed() {
+            return counts[PROCESSED];
+        }
+
+        public long getDropped() {
+            return counts[DROPPED];
+        }
+
+        public long getPredicted() {
+            return counts[PREDICTED];
+        }
+
+        public long getFailed() {
+            return counts[FAILED];
+        }
+
+        /** Frames processed per second. */
+        public double getFps() {
+            return durationNs > 0 ? counts[PROCESSED] * 1e9 / durationNs : 0;
+        }
+
+        /** One of P50, P90, P99 and MAX of a stage, ms; NaN if the stage never ran. */
+        public double getStage(int stage, int quantile) {
+            return stageSamples[stage] > 0 ? stageUs[stage][quantile] / 1000.0 : Double.NaN;
+        }
+
+        /**
+         * The last update as JSON: {"Vision Stats": {"Models": state, "Detection model": file, "Window ms": ms, "Processed": n,
+         * "Dropped": n, "Predicted": n, "Failed": n, "FPS": fps, "Stages ms": {"decode": [p50, p90, p99, max], ...}}}, with
+         * null for the stages that never ran.
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append("{\"Vision Stats\": {\"Models\": \"").append(modelState)
+                    .append("\", \"Detection model\": \"").append(detectionModel)
+                    .append("\", \"Window ms\": ").append(getDurationMs())
+                    .append(", \"Processed\": ").append(getProcessed())
+                    .append(", \"Dropped\": ").append(getDropped())
+                    .append(", \"Predicted\": ").append(getPredicted())
+                    .append(", \"Failed\": ").append(getFailed())
+                    .append(", \"FPS\": ");
+            TelemetryEncoder.appendFixed(sb, getFps(), 2);
+            sb.append(", \"Stages ms\": {");
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                if (stage > 0) {
+                    sb.append(", ");
+                }
+                sb.append('"').append(STAGE_NAMES[stage]).append("\": ");
+                if (stageSamples[stage] == 0) {
+                    sb.append("null");
+                    continue;
+                }
+                sb.append('[');
+                for (int q = 0; q < quantiles.length; q++) {
+                    if (q > 0) {
+                        sb.append(", ");
+                    }
+                    TelemetryEncoder.appendFixed(sb, getStage(stage, q), 3);
+                }
+                sb.append(']');
+            }
+            sb.append("}}}");
+            return sb.toString();
+        }
+
+        /** The last update on one line, for the log. */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(String.format(Locale.US, "models %s, detection %s, %d frames, %d dropped, %d predicted, %d failed, %.1f fps over %d ms;",
+                    modelState, detectionModel, getProcessed(), getDropped(), getPredicted(), getFailed(), getFps(),
+                    getDurationMs()));
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                if (stageSamples[stage] > 0) {
+                    sb.append(String.format(Locale.US, " %s p50 %.1f p99 %.1f ms", STAGE_NAMES[stage],
+                            getStage(stage, P50), getStage(stage, P99)));
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.obruta.astrosee;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link EpnpSolver} on exact projections of the target's keypoints, as AstroseeNode gives them
+ * to it: the pose has to come back, or no pose at all.
+ */
+public class EpnpSolverTest {
+    // AstroseeNode's keypoints, by pose class; classes 4 and 5 are the same point
+    private static final double[][] OBJECT_POINTS = {
+            {-0.148048, -0.125818, 0.099267},
+            {0.133917, -0.112317, -0.156238},
+            {-0.120165, 0.106573, -0.114485},
+            {0.133836, 0.142346, 0.141878},
+            {-0.137991, -0.152850, -0.155571},
+            {-0.137991, -0.152850, -0.155571},
+            {-0.148946, 0.137467, 0.138683},
+            {-0.140832, -0.147009, 0.142015}};
+    private static final double FX = 900;
+    private static final double FY = 900;
+    private static final double CX = 525;
+    private static final double CY = 600;
+
+    private final Random random = new Random(7);
+    private final double[] rotation = new double[9];
+    private final double[] translation = new double[3];
+
+    // A random attitude, and a position in front of the camera
+    private void randomPose() {
+        double w = random.nextGaussian();
+        double x = random.nextGaussian();
+        double y = random.nextGaussian();
+        double z = random.nextGaussian();
+        double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+        w /= norm;
+        x /= norm;
+        y /= norm;
+        z /= norm;
+        double[] r = rotation;
+        r[0] = 1 - 2 * (y * y + z * z);
+        r[1] = 2 * (x * y - w * z);
+        r[2] = 2 * (x * z + w * y);
+        r[3] = 2 * (x * y + w * z);
+        r[4] = 1 - 2 * (x * x + z * z);
+        r[5] = 2 * (y * z - w * x);
+        r[6] = 2 * (x * z - w * y);
+        r[7] = 2 * (y * z + w * x);
+        r[8] = 1 - 2 * (x * x + y * y);
+        translation[0] = random.nextDouble() - 0.5;
+        translation[1] = random.nextDouble() - 0.5;
+        translation[2] = 1 + 2 * random.nextDouble();
+    }
+
+    private static boolean add(EpnpSolver solver, int pointClass, double[] r, double[] t) {
+        double[] p = OBJECT_POINTS[pointClass];
+        double x = r[0] * p[0] + r[1] * p[1] + r[2] * p[2] + t[0];
+        double y = r[3] * p[0] + r[4] * p[1] + r[5] * p[2] + t[1];
+        double z = r[6] * p[0] + r[7] * p[1] + r[8] * p[2] + t[2];
+        return solver.add(p[0], p[1], p[2], FX * x / z + CX, FY * y / z + CY);
+    }
+
+    private static EpnpSolver newSolver() {
+        return new EpnpSolver(FX, FY, CX, CY, OBJECT_POINTS.length);
+    }
+
+    @Test
+    public void samePointIsCountedOnce() {
+        randomPose();
+        EpnpSolver solver = newSolver();
+        for (int pointClass : new int[]{0, 1, 4, 5, 6}) {
+            add(solver, pointClass, rotation, translation);
+        }
+        assertEquals(4, solver.getCount());
+        assertFalse(solver.solve(new double[9], new double[3]));
+    }
+
+    @Test
+    public void anyFivePointsGiveThePoseOrNone() {
+        EpnpSolver solver = newSolver();
+        double[] solvedRotation = new double[9];
+        double[] solvedTranslation = new double[3];
+        int[] classes = new int[OBJECT_POINTS.length];
+        int solved = 0;
+        for (int trial = 0; trial < 2000; trial++) {
+            randomPose();
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = i;
+            }
+            solver.clear();
+            // Five classes at random, both duplicates included at times
+            for (int i = 0; i < 5; i++) {
+                int j = i + random.nextInt(classes.length - i);
+                int pointClass = classes[j];
+                classes[j] = classes[i];
+                classes[i] = pointClass;
+                add(solver, pointClass, rotation, translation);
+            }
+            if (!solver.solve(solvedRotation, solvedTranslation)) {
+                assertTrue("trial " + trial, solver.getCount() < EpnpSolver.MIN_POINTS);
+                continue;
+            }
+            solved++;
+            assertEquals("trial " + trial, 0, solver.getError(), 1e-6);
+            for (int i = 0; i < 3; i++) {
+                assertEquals("trial " + trial + " translation " + i, translation[i], solvedTranslation[i], 1e-6);
+            }
+            for (int i = 0; i < 9; i++) {
+                assertEquals("trial " + trial + " rotation " + i, rotation[i], solvedRotation[i], 1e-6);
+            }
+        }
+        assertTrue("Solved " + solved, solved > 1000);
+    }
+}
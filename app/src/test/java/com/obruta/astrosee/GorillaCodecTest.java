@@ -0,0 +1,183 @@
+package com.obruta.astrosee;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip and compression ratio of {@link GorillaEncoder} on samples shaped like the recorded
+ * topics. The ratio is against the records the samples take in a raw segment, see
+ * TelemetryRecorder, so it is the one TelemetryCompactor logs for a segment.
+ */
+public class GorillaCodecTest {
+    private static final long START_MS = 1700000000000L;
+    private static final long START_NS = START_MS * 1000000L;
+
+    /** Samples of one topic, as the recorder hands them to the compactor. */
+    private static class Samples {
+        final int width;
+        final long[] receiveTimes;
+        final long[] stamps;
+        final double[] values;
+
+        Samples(int count, int width) {
+            this.width = width;
+            receiveTimes = new long[count];
+            stamps = new long[count];
+            values = new double[count * width];
+        }
+
+        int count() {
+            return receiveTimes.length;
+        }
+
+        int rawSize() {
+            return count() * (TelemetryRecorder.RECORD_HEADER_SIZE + 8 * width);
+        }
+    }
+
+    // /gnc/ekf at 62.5 Hz: position and attitude from float32 fields, a slow drift and rotation
+    private static Samples ekf(int count) {
+        Random random = new Random(1);
+        Samples samples = new Samples(count, 7);
+        for (int n = 0; n < count; n++) {
+            long stamp = START_NS + n * 16000000L + random.nextInt(200000);
+            samples.stamps[n] = stamp;
+            samples.receiveTimes[n] = stamp / 1000000L + 2 + random.nextInt(3);
+            double t = n / 62.5;
+            int offset = n * 7;
+            samples.values[offset] = (float) (10.9 + 0.05 * Math.sin(0.1 * t));
+            samples.values[offset + 1] = (float) (-9.5 + 0.02 * t);
+            samples.values[offset + 2] = (float) (4.8 + 0.001 * random.nextGaussian());
+            double angle = 0.01 * t;
+            samples.values[offset + 3] = 0;
+            samples.values[offset + 4] = 0;
+            samples.values[offset + 5] = (float) Math.sin(angle / 2);
+            samples.values[offset + 6] = (float) Math.cos(angle / 2);
+        }
+        return samples;
+    }
+
+    // /simulinkphase at 10 Hz: a header-less Int32 that rarely changes
+    private static Samples phase(int count) {
+        Samples samples = new Samples(count, 1);
+        for (int n = 0; n < count; n++) {
+            samples.receiveTimes[n] = START_MS + n * 100L;
+            samples.values[n] = n < count / 2 ? 0 : 3;
+        }
+        return samples;
+    }
+
+    private static byte[] encode(GorillaEncoder encoder, Samples samples) {
+        encoder.reset(samples.width);
+        for (int n = 0; n < samples.count(); n++) {
+            encoder.add(samples.receiveTimes[n], samples.stamps[n], samples.values, n * samples.width);
+        }
+        int length = encoder.finish();
+        byte[] block = new byte[length];
+        System.arraycopy(encoder.getBuffer(), 0, block, 0, length);
+        return block;
+    }
+
+    private static void assertRoundTrip(Samples samples, byte[] block) {
+        GorillaDecoder decoder = new GorillaDecoder();
+        decoder.reset(block, 0, block.length, samples.width, samples.count());
+        double[] values = new double[samples.width];
+        for (int n = 0; n < samples.count(); n++) {
+            assertTrue(decoder.hasNext());
+            decoder.next(values, 0);
+            assertEquals("receive time " + n, samples.receiveTimes[n], decoder.getReceiveTime());
+            assertEquals("stamp " + n, samples.stamps[n], decoder.getStamp());
+            for (int i = 0; i < samples.width; i++) {
+                // Bit for bit, so NaNs and signed zeros count too
+                assertEquals("sample " + n + " value " + i,
+                        Double.doubleToRawLongBits(samples.values[n * samples.width + i]),
+                        Double.doubleToRawLongBits(values[i]));
+            }
+        }
+        assertFalse(decoder.hasNext());
+    }
+
+    @Test
+    public void ekfRoundTripsAndShrinks() {
+        Samples samples = ekf(TelemetryCompactor.BLOCK_SAMPLES);
+        byte[] block = encode(new GorillaEncoder(), samples);
+        assertRoundTrip(samples, block);
+        double ratio = (double) samples.rawSize() / block.length;
+        assertTrue("EKF compressed " + ratio + "x", ratio > 5);
+    }
+
+    @Test
+    public void steadyTopicShrinksMost() {
+        Samples samples = phase(TelemetryCompactor.BLOCK_SAMPLES);
+        byte[] block = encode(new GorillaEncoder(), samples);
+        assertRoundTrip(samples, block);
+        double ratio = (double) samples.rawSize() / block.length;
+        assertTrue("Phase compressed " + ratio + "x", ratio > 50);
+    }
+
+    @Test
+    public void oddValuesAndTimesRoundTrip() {
+        Samples samples = new Samples(8, 3);
+        long[] receiveTimes = {START_MS, START_MS, START_MS + 5, START_MS + 1, START_MS + 100000,
+                START_MS + 3000000000L, 0, Long.MAX_VALUE};
+        double[] values = {
+                0.0, -0.0, 1.0,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE,
+                1.0, 1.0, 1.0,
+                1.0000000000000002, 1.0, -1.0,
+                Double.longBitsToDouble(0x7ff8000000000001L), 0.1, 0.2,
+                0.1, 0.1, 0.1,
+                1e-300, 1e300, 0.0};
+        System.arraycopy(receiveTimes, 0, samples.receiveTimes, 0, receiveTimes.length);
+        for (int n = 0; n < samples.count(); n++) {
+            samples.stamps[n] = -receiveTimes[n] * 7;
+        }
+        System.arraycopy(values, 0, samples.values, 0, values.length);
+        assertRoundTrip(samples, encode(new GorillaEncoder(), samples));
+    }
+
+    @Test
+    public void floatValuesWidenWhenTheyStopFitting() {
+        Samples samples = new Samples(6, 2);
+        double[] values = {
+                1.5, 0.1,
+                (float) 1.25, 0.2,
+                0.1, (float) 0.3,
+                (float) 2.5, (float) 0.4,
+                -0.0, Double.NaN,
+                (float) 3.75, 1e300};
+        for (int n = 0; n < samples.count(); n++) {
+            samples.receiveTimes[n] = START_MS + n * 100L;
+        }
+        System.arraycopy(values, 0, samples.values, 0, values.length);
+        assertRoundTrip(samples, encode(new GorillaEncoder(), samples));
+    }
+
+    @Test
+    public void encoderIsReusedAcrossBlocks() {
+        GorillaEncoder encoder = new GorillaEncoder();
+        Samples ekf = ekf(300);
+        Samples phase = phase(50);
+        assertRoundTrip(ekf, encode(encoder, ekf));
+        assertRoundTrip(phase, encode(encoder, phase));
+        assertRoundTrip(ekf, encode(encoder, ekf));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBlockIsRejected() {
+        Samples samples = ekf(100);
+        byte[] block = encode(new GorillaEncoder(), samples);
+        GorillaDecoder decoder = new GorillaDecoder();
+        decoder.reset(block, 0, block.length / 2, samples.width, samples.count());
+        double[] values = new double[samples.width];
+        while (decoder.hasNext()) {
+            decoder.next(values, 0);
+        }
+    }
+}